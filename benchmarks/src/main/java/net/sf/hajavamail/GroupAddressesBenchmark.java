@@ -0,0 +1,84 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link net.sf.hajavamail.HostGroupingSenderStrategy#groupAddresses(Address[])} for various recipient counts.
+ * Run with <code>-prof gc</code> to measure allocation per operation.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupAddressesBenchmark
+{
+	@Param({ "1", "10", "100", "1000", "10000" })
+	private int recipients;
+
+	@Param({ "10" })
+	private int domains;
+
+	private HostGroupingSenderStrategy strategy;
+	private Address[] addresses;
+
+	@Setup
+	public void setUp() throws AddressException
+	{
+		this.strategy = new HostGroupingSenderStrategy();
+		this.addresses = new Address[this.recipients];
+
+		for (int i = 0; i < this.recipients; ++i)
+		{
+			// Mixed case domains, as found in the wild
+			this.addresses[i] = new InternetAddress("user" + i + "@" + (((i & 1) == 0) ? "Domain" : "domain") + (i % this.domains) + ".example.com");
+		}
+	}
+
+	@Benchmark
+	public Collection<Address[]> groupAddresses()
+	{
+		return this.strategy.groupAddresses(this.addresses);
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures acquire/release contention of the sender and connector pools, with more threads than pooled indexes.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class PoolBenchmark
+{
+	@Param({ "4", "16" })
+	private int size;
+
+	private IndexPool indexPool;
+	private ConnectorPool connectorPool;
+
+	@Setup
+	public void setUp()
+	{
+		this.indexPool = new IndexPool(this.size);
+		this.connectorPool = new ConnectorPool(this.size);
+
+		int[] hostIndexes = new int[this.size];
+
+		for (int i = 0; i < this.size; ++i)
+		{
+			hostIndexes[i] = i % 2;
+		}
+
+		this.connectorPool.configure(new String[] { "relay1", "relay2" }, hostIndexes);
+
+		for (int i = 0; i < this.size; ++i)
+		{
+			this.indexPool.release(i);
+			this.connectorPool.release(i);
+		}
+	}
+
+	@Benchmark
+	public int indexPool()
+	{
+		int index = this.indexPool.acquire();
+
+		this.indexPool.release(index);
+
+		return index;
+	}
+
+	@Benchmark
+	public int connectorPool()
+	{
+		int index = this.connectorPool.acquire();
+
+		this.connectorPool.release(index);
+
+		return index;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end-to-end send throughput of a {@link net.sf.hajavamail.TransportProxy} over the in-process fake transport,
+ * whose per-send latency simulates a relay host.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class SendMessageBenchmark
+{
+	@Param({ "1", "8" })
+	private int poolSize;
+
+	// Microseconds
+	@Param({ "0", "500" })
+	private int sendLatency;
+
+	@Param({ "pooled" })
+	private String executionMode;
+
+	private TransportProxy transport;
+	private MimeMessage message;
+	private Address[] addresses;
+
+	@Setup
+	public void setUp() throws MessagingException
+	{
+		Properties properties = new Properties();
+
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, Integer.toString(this.poolSize));
+		properties.setProperty(TransportProxy.EXECUTION_MODE, this.executionMode);
+		properties.setProperty(FakeTransport.SEND_LATENCY, Integer.toString(this.sendLatency));
+
+		Session session = Session.getInstance(properties);
+
+		this.transport = (TransportProxy) session.getTransport();
+		this.transport.connect();
+
+		this.message = new MimeMessage(session);
+		this.message.setRecipient(Message.RecipientType.TO, new InternetAddress("user@example.com"));
+		this.message.setSubject("Benchmark");
+		this.message.setText("Benchmark");
+		this.message.saveChanges();
+
+		this.addresses = this.message.getAllRecipients();
+	}
+
+	@TearDown
+	public void tearDown() throws MessagingException
+	{
+		this.transport.close();
+	}
+
+	@Benchmark
+	public DeliveryReport sendMessage() throws MessagingException
+	{
+		return this.transport.sendMessageAsync(this.message, this.addresses).join();
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Locale;
+
+/**
+ * Determines how a {@link net.sf.hajavamail.TransportProxy} handles a send when all of its senders are busy and its submission queue is full.
+ * To configure a specific policy use the {@link net.sf.hajavamail.TransportProxy#BACKPRESSURE_POLICY} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public enum BackpressurePolicy
+{
+	/**
+	 * The calling thread waits for room in the queue, for at most the time, in milliseconds, configured via the {@link net.sf.hajavamail.TransportProxy#QUEUE_TIMEOUT} session property,
+	 * which defaults to the connect timeout.  A timeout of 0 waits forever.
+	 */
+	BLOCK,
+	/**
+	 * The send is rejected immediately.
+	 */
+	FAIL,
+	/**
+	 * The calling thread performs the send itself.
+	 */
+	CALLER_RUNS,
+	/**
+	 * The oldest queued bulk message (i.e. with a Precedence header of bulk, list or junk) is dropped to make room.
+	 * If no bulk message is queued, bulk sends are rejected immediately, while other sends block as per {@link #BLOCK}.
+	 */
+	DROP_OLDEST_BULK;
+
+	/**
+	 * Returns the policy matching the specified session property value.
+	 * @param value a case-insensitive policy name, using either dashes or underscores, e.g. caller-runs
+	 * @return a backpressure policy
+	 * @throws IllegalArgumentException if the value does not name a policy
+	 */
+	public static BackpressurePolicy forName(String value)
+	{
+		return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+	}
+}
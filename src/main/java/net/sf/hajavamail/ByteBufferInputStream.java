@@ -0,0 +1,173 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * Shared input stream backed by a, typically direct or memory-mapped, byte buffer.
+ * Like {@link javax.mail.util.SharedByteArrayInputStream}, streams created via {@link #newStream(long, long)} share the underlying buffer,
+ * which allows a parsed {@link javax.mail.internet.MimeMessage} to stream its content without copying or decoding it.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class ByteBufferInputStream extends InputStream implements SharedInputStream
+{
+	private final ByteBuffer root;
+	private final int start;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Constructs a new stream over the entire content of the specified buffer.
+	 * @param buffer a byte buffer
+	 */
+	ByteBufferInputStream(ByteBuffer buffer)
+	{
+		this(buffer, 0, buffer.limit());
+	}
+
+	private ByteBufferInputStream(ByteBuffer root, int start, int end)
+	{
+		ByteBuffer buffer = root.duplicate();
+
+		buffer.limit(end);
+		buffer.position(start);
+
+		this.root = root;
+		this.start = start;
+		this.buffer = buffer.slice();
+	}
+
+	/**
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read()
+	{
+		return this.buffer.hasRemaining() ? (this.buffer.get() & 0xFF) : -1;
+	}
+
+	/**
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] bytes, int offset, int length)
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+
+		int remaining = this.buffer.remaining();
+
+		if (remaining == 0)
+		{
+			return -1;
+		}
+
+		int count = Math.min(length, remaining);
+
+		this.buffer.get(bytes, offset, count);
+
+		return count;
+	}
+
+	/**
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long count)
+	{
+		int skipped = (int) Math.max(0, Math.min(count, this.buffer.remaining()));
+
+		this.buffer.position(this.buffer.position() + skipped);
+
+		return skipped;
+	}
+
+	/**
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available()
+	{
+		return this.buffer.remaining();
+	}
+
+	/**
+	 * @see java.io.InputStream#markSupported()
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return true;
+	}
+
+	/**
+	 * @see java.io.InputStream#mark(int)
+	 */
+	@Override
+	public void mark(int limit)
+	{
+		this.buffer.mark();
+	}
+
+	/**
+	 * @see java.io.InputStream#reset()
+	 */
+	@Override
+	public void reset()
+	{
+		this.buffer.reset();
+	}
+
+	/**
+	 * @see javax.mail.internet.SharedInputStream#getPosition()
+	 */
+	@Override
+	public long getPosition()
+	{
+		return this.buffer.position();
+	}
+
+	/**
+	 * @see javax.mail.internet.SharedInputStream#newStream(long, long)
+	 */
+	@Override
+	public InputStream newStream(long start, long end)
+	{
+		if (start < 0)
+		{
+			throw new IllegalArgumentException("start < 0");
+		}
+
+		if (end == -1)
+		{
+			end = this.buffer.limit();
+		}
+
+		return new ByteBufferInputStream(this.root, this.start + (int) start, this.start + (int) end);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-host circuit breaker, which stops connectors from hammering a relay host that is down.
+ * <ul>
+ *  <li>Closed: connects and sends are allowed.  Consecutive failures beyond a threshold open the breaker.</li>
+ *  <li>Open: sends skip the host, and connects are deferred until the open period, which grows exponentially with each reopening, elapses.</li>
+ *  <li>Half-open: a single connect is allowed as a trial.  Success closes the breaker, failure reopens it.</li>
+ * </ul>
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class CircuitBreaker
+{
+	enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private volatile State state = State.CLOSED;
+	private volatile long openUntil = 0;
+	private volatile int failures = 0;
+	private int openings = 0;
+	private boolean trialPending = false;
+
+	/**
+	 * Constructs a new CircuitBreaker.
+	 * @param failureThreshold the number of consecutive failures that opens the breaker
+	 * @param initialBackoff the initial open period, in milliseconds
+	 * @param maxBackoff the maximum open period, in milliseconds
+	 */
+	CircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff)
+	{
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * @return the current state of this breaker
+	 */
+	State getState()
+	{
+		return this.state;
+	}
+
+	/**
+	 * Indicates whether sends may use this host.  Cheap enough for the send path.
+	 * Sends resume only once a trial connect closed the breaker, so that live sends never probe a failed host.
+	 * @return true, if the breaker is closed, false otherwise
+	 */
+	boolean allowsTraffic()
+	{
+		return this.state == State.CLOSED;
+	}
+
+	/**
+	 * Indicates whether a connect to this host may be attempted now, moving an open breaker whose open period elapsed to half-open.
+	 * @return true, if the caller may attempt to connect, false if it should retry later
+	 */
+	synchronized boolean allowConnect()
+	{
+		switch (this.state)
+		{
+			case CLOSED:
+			{
+				return true;
+			}
+			case OPEN:
+			{
+				if (System.currentTimeMillis() < this.openUntil)
+				{
+					return false;
+				}
+
+				this.state = State.HALF_OPEN;
+				this.trialPending = true;
+
+				return true;
+			}
+			default:
+			{
+				// Only one trial at a time
+				if (this.trialPending)
+				{
+					return false;
+				}
+
+				this.trialPending = true;
+
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of milliseconds until a connect should next be attempted, including jitter, so that the connectors of a host do not retry in lockstep.
+	 * @param attempt the number of consecutive failed connects of the caller
+	 * @return a delay in milliseconds
+	 */
+	long getRetryDelay(int attempt)
+	{
+		long delay = backoff(this.initialBackoff, this.maxBackoff, attempt);
+
+		if (this.state != State.CLOSED)
+		{
+			delay = Math.max(delay, this.openUntil - System.currentTimeMillis());
+		}
+
+		return delay;
+	}
+
+	/**
+	 * Records a successful connect or send, closing the breaker.
+	 */
+	void recordSuccess()
+	{
+		// Avoid synchronizing on the send path of a healthy host
+		if ((this.state == State.CLOSED) && (this.failures == 0))
+		{
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (this.state != State.CLOSED)
+			{
+				TransportProxy.log.info("Closing circuit breaker");
+			}
+
+			this.state = State.CLOSED;
+			this.failures = 0;
+			this.openings = 0;
+			this.trialPending = false;
+		}
+	}
+
+	/**
+	 * Records a failed connect or send, opening the breaker if the failure threshold is reached, or if a trial failed.
+	 * @return true, if this failure opened the breaker, false otherwise
+	 */
+	synchronized boolean recordFailure()
+	{
+		this.failures += 1;
+
+		if ((this.state == State.HALF_OPEN) || ((this.state == State.CLOSED) && (this.failures >= this.failureThreshold)))
+		{
+			long period = backoff(this.initialBackoff, this.maxBackoff, this.openings);
+
+			this.openings += 1;
+			this.openUntil = System.currentTimeMillis() + period;
+			this.trialPending = false;
+			this.state = State.OPEN;
+
+			TransportProxy.log.warn("Opening circuit breaker for " + period + " ms after " + this.failures + " consecutive failures");
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Computes an exponential backoff with "equal jitter", i.e. a random delay between half and all of the exponential delay.
+	 * @param initial the delay of the first attempt, in milliseconds
+	 * @param max the maximum delay, in milliseconds
+	 * @param attempt the number of previous attempts
+	 * @return a delay in milliseconds
+	 */
+	static long backoff(long initial, long max, int attempt)
+	{
+		long delay = Math.min(max, initial << Math.min(attempt, 30));
+		long half = delay / 2;
+
+		return half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Locale;
+
+/**
+ * Determines how many connections a {@link net.sf.hajavamail.TransportProxy} must establish before connecting it returns.
+ * Only the connections of the minimum pool size of each relay host, configured via the {@link net.sf.hajavamail.TransportProxy#POOL_MIN_SIZE} session property, count towards this total.
+ * To configure a specific mode use the {@link net.sf.hajavamail.TransportProxy#CONNECT_MODE} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public enum ConnectMode
+{
+	/**
+	 * Connecting returns as soon as any connection is ready.
+	 */
+	ONE
+	{
+		@Override
+		int getRequired(int total)
+		{
+			return Math.min(total, 1);
+		}
+	},
+	/**
+	 * Connecting returns once a majority of connections are ready.
+	 */
+	QUORUM
+	{
+		@Override
+		int getRequired(int total)
+		{
+			return total / 2 + 1;
+		}
+	},
+	/**
+	 * Connecting returns once every connection is ready.
+	 */
+	ALL
+	{
+		@Override
+		int getRequired(int total)
+		{
+			return total;
+		}
+	};
+
+	/**
+	 * Returns the number of connections that must be ready before connecting returns.
+	 * @param total the total number of connections to establish
+	 * @return a number of connections
+	 */
+	abstract int getRequired(int total);
+
+	/**
+	 * Returns the mode matching the specified session property value.
+	 * @param value a case-insensitive mode name
+	 * @return a connect mode
+	 * @throws IllegalArgumentException if the value does not name a mode
+	 */
+	public static ConnectMode forName(String value)
+	{
+		return valueOf(value.trim().toUpperCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,538 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of idle connector indexes, partitioned by relay host, which favors healthy hosts when handing out connectors.
+ * Each host keeps its idle connectors in a lock-free {@link net.sf.hajavamail.IndexPool}, while a semaphore tracks idle connectors across all hosts.
+ * A host is chosen using the power of two choices: of two randomly chosen hosts with idle connectors, the one with the better {@link net.sf.hajavamail.HostHealth} score wins.
+ * Traffic thereby drifts away from slow or failing hosts, without starving them of the samples needed to notice their recovery.
+ * Hosts whose {@link net.sf.hajavamail.CircuitBreaker} is open are skipped entirely, and their idle connectors are evicted by the transport once the breaker opens.
+ * Only if such a connector is taken before its eviction, and no other host has idle connectors, is it handed out, so that callers holding a permit never spin;
+ * callers must then evict it themselves.
+ * Alternatively, connectors can be acquired with affinity to a key (e.g. a recipient domain), which is mapped to a preferred host via a {@link net.sf.hajavamail.HashRing}.
+ * Affinity is bounded by load: a host that already holds more than its share of busy connectors, scaled by a load factor, passes the key on to the next host on the ring.
+ * Not every connector need be active: each host has a fixed number of connector slots, of which inactive (i.e. parked) slots are neither idle nor busy,
+ * so that the pool can grow and shrink with demand.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class ConnectorPool
+{
+	private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	private static final long DEFAULT_INITIAL_BACKOFF = 1000;
+	private static final long DEFAULT_MAX_BACKOFF = 60000;
+	private static final double DEFAULT_LOAD_FACTOR = 1.25;
+	private static final long DRAIN_POLL_INTERVAL = 100;
+
+	private final int size;
+	private final int failureThreshold;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final double loadFactor;
+	private final Semaphore permits = new Semaphore(0);
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile int waiters = 0;
+	private HostPool[] hostPools = new HostPool[0];
+	private HostPool[] hostPoolIndex;
+	private HashRing ring;
+
+	/**
+	 * Constructs a new empty pool.
+	 * @param size the number of connectors managed by this pool
+	 */
+	ConnectorPool(int size)
+	{
+		this(size, DEFAULT_FAILURE_THRESHOLD, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Constructs a new empty pool.
+	 * @param size the number of connectors managed by this pool
+	 * @param failureThreshold the number of consecutive failures that opens the circuit breaker of a host
+	 * @param initialBackoff the initial backoff, in milliseconds, of connects and of open circuit breakers
+	 * @param maxBackoff the maximum backoff, in milliseconds, of connects and of open circuit breakers
+	 */
+	ConnectorPool(int size, int failureThreshold, long initialBackoff, long maxBackoff)
+	{
+		this(size, failureThreshold, initialBackoff, maxBackoff, DEFAULT_LOAD_FACTOR);
+	}
+
+	/**
+	 * Constructs a new empty pool.
+	 * @param size the number of connectors managed by this pool
+	 * @param failureThreshold the number of consecutive failures that opens the circuit breaker of a host
+	 * @param initialBackoff the initial backoff, in milliseconds, of connects and of open circuit breakers
+	 * @param maxBackoff the maximum backoff, in milliseconds, of connects and of open circuit breakers
+	 * @param loadFactor the multiple of its fair share of busy connectors beyond which a host no longer accepts keys with affinity to it
+	 */
+	ConnectorPool(int size, int failureThreshold, long initialBackoff, long maxBackoff, double loadFactor)
+	{
+		this.size = size;
+		this.failureThreshold = failureThreshold;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.loadFactor = loadFactor;
+		this.hostPoolIndex = new HostPool[size];
+	}
+
+	/**
+	 * Assigns each connector to a relay host.  Must only be called while the pool is empty.
+	 * All connectors are initially active.
+	 * @param hosts the relay host names
+	 * @param hostIndexes the index of the host of each connector
+	 */
+	void configure(String[] hosts, int[] hostIndexes)
+	{
+		int[] capacities = new int[hosts.length];
+
+		for (int i = 0; i < this.size; ++i)
+		{
+			capacities[hostIndexes[i]] += 1;
+		}
+
+		HostPool[] hostPools = new HostPool[hosts.length];
+
+		for (int i = 0; i < hosts.length; ++i)
+		{
+			hostPools[i] = new HostPool(hosts[i], capacities[i], new CircuitBreaker(this.failureThreshold, this.initialBackoff, this.maxBackoff));
+		}
+
+		for (int i = 0; i < this.size; ++i)
+		{
+			this.hostPoolIndex[i] = hostPools[hostIndexes[i]];
+		}
+
+		this.ring = new HashRing(hosts);
+		this.hostPools = hostPools;
+		this.active.set(this.size);
+	}
+
+	/**
+	 * Marks the specified connector as active, i.e. as either idle or busy.
+	 * @param index an inactive connector index
+	 */
+	void activate(int index)
+	{
+		this.hostPoolIndex[index].active.incrementAndGet();
+		this.active.incrementAndGet();
+	}
+
+	/**
+	 * Marks the specified connector as inactive.  The connector must not be idle.
+	 * @param index an active connector index
+	 */
+	void deactivate(int index)
+	{
+		this.hostPoolIndex[index].active.decrementAndGet();
+		this.active.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of active connectors
+	 */
+	int getActive()
+	{
+		return this.active.get();
+	}
+
+	/**
+	 * @param host the index of a relay host
+	 * @return the number of active connectors of the specified host
+	 */
+	int getActive(int host)
+	{
+		return this.hostPools[host].active.get();
+	}
+
+	/**
+	 * @return the approximate number of threads blocked waiting for an idle connector
+	 */
+	int getWaiters()
+	{
+		return this.permits.getQueueLength();
+	}
+
+	/**
+	 * Takes an idle connector index from this pool, blocking until one is available.  Interrupts do not abort the wait.
+	 * @return an idle connector index
+	 */
+	int acquire()
+	{
+		this.permits.acquireUninterruptibly();
+
+		return this.take();
+	}
+
+	/**
+	 * Takes an idle connector index from this pool, preferring the host to which the specified key hashes, blocking until one is available.
+	 * The ring is walked past hosts that have no idle connectors, whose circuit breaker is open, or that exceed their bound on busy connectors,
+	 * so a failed or overloaded host only displaces its own keys, each to the next host on the ring.
+	 * If no host qualifies, this falls back to {@link #acquire()}.
+	 * @param hash the hash of an affinity key, as computed by {@link HashRing#hash(String)}
+	 * @return an idle connector index
+	 */
+	int acquire(int hash)
+	{
+		this.permits.acquireUninterruptibly();
+
+		HostPool[] hostPools = this.hostPools;
+		HashRing ring = this.ring;
+
+		if (hostPools.length > 1)
+		{
+			int active = this.active.get();
+			// Includes the connector about to be taken
+			int busy = active - this.permits.availablePermits();
+			int position = ring.locate(hash);
+
+			for (int rank = 0; rank < hostPools.length; ++rank)
+			{
+				HostPool hostPool = hostPools[ring.getHost(position, rank)];
+
+				if (hostPool.isEligible() && hostPool.accepts(busy, active, this.loadFactor))
+				{
+					int index = hostPool.pool.tryAcquire();
+
+					if (index >= 0)
+					{
+						return index;
+					}
+				}
+			}
+		}
+
+		return this.take();
+	}
+
+	/**
+	 * Takes an idle connector index of the specified host from this pool, without blocking.
+	 * Used by background maintenance, which must visit the idle connectors of every host, regardless of health.
+	 * @param host the index of a relay host
+	 * @return an idle connector index, or -1 if the host has no idle connectors
+	 */
+	int tryAcquire(int host)
+	{
+		if (!this.permits.tryAcquire())
+		{
+			return -1;
+		}
+
+		int index = this.hostPools[host].pool.tryAcquire();
+
+		if (index < 0)
+		{
+			// Return the permit to whichever host it was meant for
+			this.permits.release();
+		}
+
+		return index;
+	}
+
+	/**
+	 * @return the number of relay hosts
+	 */
+	int getHostCount()
+	{
+		return this.hostPools.length;
+	}
+
+	/**
+	 * @param host the index of a relay host
+	 * @return the number of idle connectors of the specified host
+	 */
+	int available(int host)
+	{
+		return this.hostPools[host].pool.available();
+	}
+
+	/**
+	 * Returns the specified connector index to this pool.
+	 * @param index a connector index previously taken from this pool
+	 */
+	void release(int index)
+	{
+		this.hostPoolIndex[index].pool.release(index);
+
+		this.permits.release();
+
+		if (this.waiters > 0)
+		{
+			synchronized (this)
+			{
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Removes all idle connector indexes from this pool.
+	 */
+	void clear()
+	{
+		while (this.permits.tryAcquire())
+		{
+			this.take();
+		}
+	}
+
+	/**
+	 * @return the number of idle connectors
+	 */
+	int available()
+	{
+		return this.permits.availablePermits();
+	}
+
+	/**
+	 * Returns the health of the host of the specified connector.
+	 * @param index a connector index
+	 * @return the health of a relay host
+	 */
+	HostHealth getHealth(int index)
+	{
+		return this.hostPoolIndex[index].health;
+	}
+
+	/**
+	 * @param host the index of a relay host
+	 * @return the health of the specified relay host
+	 */
+	HostHealth getHostHealth(int host)
+	{
+		return this.hostPools[host].health;
+	}
+
+	/**
+	 * Returns the circuit breaker of the host of the specified connector.
+	 * @param index a connector index
+	 * @return the circuit breaker of a relay host
+	 */
+	CircuitBreaker getBreaker(int index)
+	{
+		return this.hostPoolIndex[index].breaker;
+	}
+
+	/**
+	 * Blocks until this pool contains at least the specified number of idle connectors, without taking any of them.
+	 * Like {@link Object#wait(long)}, a timeout of 0 waits forever.
+	 * @param count the number of idle connectors to wait for
+	 * @param timeout the maximum number of milliseconds to wait, or 0 to wait forever
+	 * @param interruptible indicates whether an interrupt should abort the wait
+	 * @return true, if the pool contains the requested number of idle connectors, false if the timeout elapsed or the wait was interrupted
+	 */
+	boolean await(int count, long timeout, boolean interruptible)
+	{
+		if (this.available() >= count)
+		{
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (this)
+		{
+			this.waiters += 1;
+
+			try
+			{
+				while (this.available() < count)
+				{
+					long remaining = (timeout > 0) ? deadline - System.currentTimeMillis() : 0;
+
+					if ((timeout > 0) && (remaining <= 0))
+					{
+						return false;
+					}
+
+					try
+					{
+						this.wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						if (interruptible)
+						{
+							Thread.currentThread().interrupt();
+							return false;
+						}
+					}
+				}
+
+				return true;
+			}
+			finally
+			{
+				this.waiters -= 1;
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every active connector is idle, or until the specified timeout elapses, or the calling thread is interrupted.
+	 * @param timeout the maximum number of milliseconds to wait
+	 * @return true, if every active connector is idle, false otherwise
+	 */
+	boolean drain(long timeout)
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		// Connectors may be deactivated while draining, which does not notify waiters
+		while (!this.await(this.active.get(), Math.min(DRAIN_POLL_INTERVAL, Math.max(deadline - System.currentTimeMillis(), 1)), true))
+		{
+			if (Thread.currentThread().isInterrupted() || (System.currentTimeMillis() >= deadline))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Takes an idle connector index from the host chosen by {@link #choose()}.
+	 * Callers must already hold a permit, which guarantees that some host has, or is about to have, an idle connector.
+	 */
+	private int take()
+	{
+		while (true)
+		{
+			HostPool hostPool = this.choose();
+
+			if (hostPool != null)
+			{
+				int index = hostPool.pool.tryAcquire();
+
+				if (index >= 0)
+				{
+					return index;
+				}
+			}
+
+			// A concurrent release has not yet published its connector
+			Thread.onSpinWait();
+		}
+	}
+
+	private HostPool choose()
+	{
+		HostPool[] hostPools = this.hostPools;
+		int count = hostPools.length;
+
+		if (count <= 1)
+		{
+			return (count == 1) ? hostPools[0] : null;
+		}
+
+		Random random = ThreadLocalRandom.current();
+		int first = random.nextInt(count);
+		int second = random.nextInt(count - 1);
+
+		if (second >= first)
+		{
+			second += 1;
+		}
+
+		HostPool firstPool = hostPools[first];
+		HostPool secondPool = hostPools[second];
+		boolean firstIdle = firstPool.isEligible();
+		boolean secondIdle = secondPool.isEligible();
+
+		if (firstIdle && secondIdle)
+		{
+			return (firstPool.health.getScore() <= secondPool.health.getScore()) ? firstPool : secondPool;
+		}
+
+		if (firstIdle)
+		{
+			return firstPool;
+		}
+
+		if (secondIdle)
+		{
+			return secondPool;
+		}
+
+		// Neither choice has idle connectors, so fall back to the healthiest host that does
+		HostPool bestPool = null;
+		HostPool openPool = null;
+
+		for (HostPool hostPool: hostPools)
+		{
+			if (hostPool.pool.available() > 0)
+			{
+				if (!hostPool.breaker.allowsTraffic())
+				{
+					openPool = hostPool;
+				}
+				else if ((bestPool == null) || (hostPool.health.getScore() < bestPool.health.getScore()))
+				{
+					bestPool = hostPool;
+				}
+			}
+		}
+
+		// Only use a host whose breaker is open if it is the only one with idle connectors, since callers already hold a permit, and evict its connector
+		return (bestPool != null) ? bestPool : openPool;
+	}
+
+	/**
+	 * Idle connectors, health and circuit breaker of a single relay host.
+	 */
+	private static class HostPool
+	{
+		final IndexPool pool;
+		final HostHealth health;
+		final CircuitBreaker breaker;
+		final AtomicInteger active;
+
+		HostPool(String host, int capacity, CircuitBreaker breaker)
+		{
+			this.active = new AtomicInteger(capacity);
+			this.pool = new IndexPool(capacity);
+			this.health = new HostHealth(host);
+			this.breaker = breaker;
+		}
+
+		boolean isEligible()
+		{
+			return (this.pool.available() > 0) && this.breaker.allowsTraffic();
+		}
+
+		/**
+		 * Indicates whether taking another connector keeps this host within its bound on busy connectors,
+		 * i.e. its share, by active connectors, of all busy connectors, scaled by the load factor and rounded up.
+		 */
+		boolean accepts(int busy, int active, double loadFactor)
+		{
+			int hostActive = this.active.get();
+			int hostBusy = hostActive - this.pool.available() + 1;
+
+			return hostBusy <= Math.ceil(loadFactor * busy * hostActive / active);
+		}
+	}
+}
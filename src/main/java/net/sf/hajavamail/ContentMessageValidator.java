@@ -0,0 +1,76 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.IOException;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+/**
+ * A message validator that parses the content of the message, including every part of a multipart message,
+ * so that malformed messages are rejected before they reach a relay host.
+ * Parsing costs time proportional to the size of the message, so this validator is best configured via the {@link net.sf.hajavamail.TransportProxy#DEFERRED_VALIDATORS} session property.
+ * 
+ * @author  mathieu
+ * @since   1.1
+ */
+public class ContentMessageValidator implements MessageValidator
+{
+	/**
+	 * @see net.sf.hajavamail.MessageValidator#validate(javax.mail.Message, javax.mail.Address[])
+	 */
+	@Override
+	public void validate(Message message, Address[] addresses) throws MessagingException
+	{
+		try
+		{
+			validate(message);
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to get message content", e);
+		}
+	}
+	
+	private static void validate(Part part) throws MessagingException, IOException
+	{
+		Object content = part.getContent();
+		
+		if (content == null)
+		{
+			throw new MessagingException("Message contains no content.");
+		}
+		
+		if (content instanceof Multipart)
+		{
+			Multipart multipart = (Multipart) content;
+			
+			for (int i = 0; i < multipart.getCount(); ++i)
+			{
+				validate(multipart.getBodyPart(i));
+			}
+		}
+	}
+}
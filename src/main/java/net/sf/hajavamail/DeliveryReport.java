@@ -0,0 +1,198 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Address;
+
+/**
+ * Describes the outcome of an asynchronous send initiated via {@link net.sf.hajavamail.TransportProxy#sendMessageAsync(javax.mail.Message, javax.mail.Address[])}.
+ * Address classification follows the conventions of {@link javax.mail.SendFailedException}:
+ * invalid addresses were rejected permanently, while valid unsent addresses either failed transiently on every attempt until the retry period expired,
+ * or belong to a message that was rejected permanently as a whole.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class DeliveryReport
+{
+	private static final Address[] NO_ADDRESSES = new Address[0];
+
+	private final String host;
+	private final long latency;
+	private final Address[] validSentAddresses;
+	private final Address[] validUnsentAddresses;
+	private final Address[] invalidAddresses;
+	private final int attempts;
+
+	/**
+	 * Constructs a new DeliveryReport.
+	 * @param host the host of the transport that sent the message, or a comma separated list of hosts
+	 * @param latency the number of milliseconds elapsed between submission and completion of the send
+	 * @param validSentAddresses addresses to which the message was sent
+	 * @param validUnsentAddresses valid addresses to which the message was not sent
+	 * @param invalidAddresses addresses rejected as invalid
+	 */
+	public DeliveryReport(String host, long latency, Address[] validSentAddresses, Address[] validUnsentAddresses, Address[] invalidAddresses)
+	{
+		this(host, latency, validSentAddresses, validUnsentAddresses, invalidAddresses, 1);
+	}
+
+	/**
+	 * Constructs a new DeliveryReport.
+	 * @param host the host of the transport that sent the message, or a comma separated list of hosts
+	 * @param latency the number of milliseconds elapsed between submission and completion of the send
+	 * @param validSentAddresses addresses to which the message was sent
+	 * @param validUnsentAddresses valid addresses to which the message was not sent
+	 * @param invalidAddresses addresses rejected as invalid
+	 * @param attempts the number of attempts made to send the message
+	 */
+	public DeliveryReport(String host, long latency, Address[] validSentAddresses, Address[] validUnsentAddresses, Address[] invalidAddresses, int attempts)
+	{
+		this.attempts = attempts;
+		this.host = host;
+		this.latency = latency;
+		this.validSentAddresses = nonNull(validSentAddresses);
+		this.validUnsentAddresses = nonNull(validUnsentAddresses);
+		this.invalidAddresses = nonNull(invalidAddresses);
+	}
+
+	/**
+	 * Combines the reports of the individual sends of a single message into one report.
+	 * The host of the combined report lists the distinct hosts used, its latency is that of the slowest send.
+	 * @param reports a collection of delivery reports
+	 * @return a combined delivery report
+	 */
+	static DeliveryReport merge(Collection<DeliveryReport> reports)
+	{
+		if (reports.size() == 1)
+		{
+			return reports.iterator().next();
+		}
+
+		Set<String> hosts = new LinkedHashSet<>();
+		long latency = 0;
+		int attempts = 0;
+		List<Address> validSentList = new ArrayList<>();
+		List<Address> validUnsentList = new ArrayList<>();
+		List<Address> invalidList = new ArrayList<>();
+
+		for (DeliveryReport report: reports)
+		{
+			if (report.host != null)
+			{
+				hosts.add(report.host);
+			}
+
+			latency = Math.max(latency, report.latency);
+			attempts = Math.max(attempts, report.attempts);
+
+			addAll(validSentList, report.validSentAddresses);
+			addAll(validUnsentList, report.validUnsentAddresses);
+			addAll(invalidList, report.invalidAddresses);
+		}
+
+		return new DeliveryReport(hosts.isEmpty() ? null : String.join(",", hosts), latency, validSentList.toArray(NO_ADDRESSES), validUnsentList.toArray(NO_ADDRESSES), invalidList.toArray(NO_ADDRESSES), attempts);
+	}
+
+	/**
+	 * @return the host of the transport used to send the message, a comma separated list if several were used, or null if nothing was sent
+	 */
+	public String getHost()
+	{
+		return this.host;
+	}
+
+	/**
+	 * @return the number of milliseconds elapsed between submission and completion of the send
+	 */
+	public long getLatency()
+	{
+		return this.latency;
+	}
+
+	/**
+	 * @return the number of attempts made to send the message, including retries of addresses that failed transiently, or the maximum of the individual sends of a combined report
+	 */
+	public int getAttempts()
+	{
+		return this.attempts;
+	}
+
+	/**
+	 * @return the addresses to which the message was sent
+	 */
+	public Address[] getValidSentAddresses()
+	{
+		return this.validSentAddresses.clone();
+	}
+
+	/**
+	 * @return the valid addresses to which the message was not sent
+	 */
+	public Address[] getValidUnsentAddresses()
+	{
+		return this.validUnsentAddresses.clone();
+	}
+
+	/**
+	 * @return the addresses rejected as invalid
+	 */
+	public Address[] getInvalidAddresses()
+	{
+		return this.invalidAddresses.clone();
+	}
+
+	/**
+	 * @return true, if the message was sent to all of its addresses, false otherwise
+	 */
+	public boolean isComplete()
+	{
+		return (this.validUnsentAddresses.length == 0) && (this.invalidAddresses.length == 0);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "DeliveryReport[host=" + this.host + ", latency=" + this.latency + " ms, sent=" + this.validSentAddresses.length + ", unsent=" + this.validUnsentAddresses.length + ", invalid=" + this.invalidAddresses.length + ", attempts=" + this.attempts + "]";
+	}
+
+	private static Address[] nonNull(Address[] addresses)
+	{
+		return (addresses != null) ? addresses : NO_ADDRESSES;
+	}
+
+	private static void addAll(List<Address> list, Address[] addresses)
+	{
+		for (int i = 0; i < addresses.length; ++i)
+		{
+			list.add(addresses[i]);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Locale;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Bounded cache of canonical, i.e. lower case, domain names, keyed by the domain part of an address.
+ * Lookups hash the domain part of an address in place, and compare it case-insensitively to the cached domain,
+ * so that a hit creates no intermediate strings.
+ * The cache is 2-way set associative: each domain hashes to a pair of slots, and a miss replaces an occupant of its pair.
+ * Slots hold immutable entries, so concurrent lookups need no synchronization; a race merely costs a miss.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class DomainCache
+{
+	/**
+	 * Domain of addresses without one.
+	 */
+	static final String NO_DOMAIN = "";
+
+	private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+	private final Entry[] entries;
+	private final int shift;
+
+	/**
+	 * Constructs a new DomainCache.
+	 * @param capacity the maximum number of cached domains, rounded up to a power of 2
+	 */
+	DomainCache(int capacity)
+	{
+		int size = Math.max(Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1, 2);
+
+		this.entries = new Entry[size];
+		// Selects the upper bits of the hash of a set
+		this.shift = Integer.numberOfLeadingZeros(size / 2) + 1;
+	}
+
+	/**
+	 * Returns the canonical domain of the specified address.
+	 * @param address a JavaMail address
+	 * @return a lower case domain name, or {@link #NO_DOMAIN} if the address has no domain
+	 */
+	String getDomain(Address address)
+	{
+		String value = (address instanceof InternetAddress) ? ((InternetAddress) address).getAddress() : address.toString();
+
+		if (value == null)
+		{
+			return NO_DOMAIN;
+		}
+
+		int start = value.lastIndexOf('@') + 1;
+		int end = value.length();
+
+		if ((start == 0) || (start == end))
+		{
+			return NO_DOMAIN;
+		}
+
+		int hash = 0;
+
+		for (int i = start; i < end; ++i)
+		{
+			hash = 31 * hash + fold(value.charAt(i));
+		}
+
+		// Fibonacci hashing spreads the similar hashes of similar domains
+		int slot = ((hash * GOLDEN_RATIO) >>> this.shift) << 1;
+		Entry first = this.entries[slot];
+
+		if ((first != null) && first.matches(hash, value, start))
+		{
+			return first.domain;
+		}
+
+		Entry second = this.entries[slot + 1];
+
+		if ((second != null) && second.matches(hash, value, start))
+		{
+			return second.domain;
+		}
+
+		String domain = value.substring(start).toLowerCase(Locale.ROOT);
+
+		// Demote the previous occupant of the first slot, so that the least recently inserted domain is replaced
+		this.entries[slot + 1] = first;
+		this.entries[slot] = new Entry(hash, domain);
+
+		return domain;
+	}
+
+	/**
+	 * Folds case like {@link String#regionMatches(boolean, int, String, int, int)}, with a fast path for ASCII.
+	 */
+	private static int fold(char c)
+	{
+		if (c < 0x80)
+		{
+			return ((c >= 'A') && (c <= 'Z')) ? c + ('a' - 'A') : c;
+		}
+
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	private static class Entry
+	{
+		final int hash;
+		final String domain;
+
+		Entry(int hash, String domain)
+		{
+			this.hash = hash;
+			this.domain = domain;
+		}
+
+		boolean matches(int hash, String value, int start)
+		{
+			int length = value.length() - start;
+
+			// Most domains are already lower case, so try the cheaper exact comparison first
+			return (this.hash == hash) && (this.domain.length() == length) && (this.domain.regionMatches(0, value, start, length) || this.domain.regionMatches(true, 0, value, start, length));
+		}
+	}
+}
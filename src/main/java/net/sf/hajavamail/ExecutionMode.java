@@ -0,0 +1,141 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Determines how the sender and connector tasks of a {@link net.sf.hajavamail.TransportProxy} are executed.
+ * To configure a specific execution mode use the {@link net.sf.hajavamail.TransportProxy#EXECUTION_MODE} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public enum ExecutionMode
+{
+	/**
+	 * Tasks run on a bounded pool of daemon threads shared by all senders and connectors of a transport.
+	 */
+	POOLED
+	{
+		@Override
+		ExecutorService createExecutorService(String name, int threads)
+		{
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(name));
+
+			// Let idle threads die off during quiet periods
+			executor.allowCoreThreadTimeOut(true);
+
+			return executor;
+		}
+	},
+
+	/**
+	 * Each task runs on its own virtual thread.
+	 * Requires a Java 21+ runtime - falls back to {@link #POOLED} otherwise.
+	 */
+	VIRTUAL
+	{
+		@Override
+		ExecutorService createExecutorService(String name, int threads)
+		{
+			try
+			{
+				Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+				return (ExecutorService) method.invoke(null);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				TransportProxy.log.warn("Virtual threads are not supported by this runtime, using " + POOLED + " execution mode instead.");
+
+				return POOLED.createExecutorService(name, threads);
+			}
+		}
+	};
+
+	static final long KEEP_ALIVE_TIME = 60;
+
+	/**
+	 * Creates the executor service used to run sender and connector tasks.
+	 * @param name prefix for the names of created threads
+	 * @param threads the maximum number of concurrently running tasks, ignored by unbounded modes
+	 * @return a new executor service
+	 */
+	abstract ExecutorService createExecutorService(String name, int threads);
+
+	/**
+	 * Returns the execution mode matching the specified session property value.
+	 * @param value a case-insensitive execution mode name
+	 * @return an execution mode
+	 * @throws IllegalArgumentException if the value does not name an execution mode
+	 */
+	public static ExecutionMode forName(String value)
+	{
+		return valueOf(value.trim().toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Creates the single-threaded scheduler used for timed background work of a transport.
+	 * Scheduled tasks are expected to be short-lived, regardless of execution mode.
+	 * @param name the name prefix of the scheduler thread
+	 * @return a new scheduled executor service
+	 */
+	static ScheduledExecutorService createScheduledExecutorService(String name)
+	{
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(name));
+
+		executor.setRemoveOnCancelPolicy(true);
+
+		return executor;
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger count = new AtomicInteger();
+		private final String name;
+
+		DaemonThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable task)
+		{
+			Thread thread = new Thread(task, this.name + "-" + this.count.incrementAndGet());
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
+}
@@ -21,7 +21,6 @@
 package net.sf.hajavamail;
 
 import java.util.Collection;
-import java.util.Iterator;
 
 import javax.mail.Address;
 import javax.mail.Message;
@@ -29,9 +28,11 @@ import javax.mail.MessagingException;
 
 /**
  * Sender strategy implementation that groups the target addresses before sending.
+ * Each address group is dispatched via a separate call to {@link net.sf.hajavamail.Sender#send(Message, Address[])},
+ * which {@link net.sf.hajavamail.TransportProxy} services with its own pooled sender, so that groups are sent in parallel across the connector pool.
  * 
  * @author  Paul Ferraro
- * @version $Revision: 1.3 $
+ * @version $Revision: 1.4 $
  * @since   1.0
  */
 public abstract class GroupingSenderStrategy extends SimpleSenderStrategy
@@ -43,12 +44,8 @@ public abstract class GroupingSenderStrategy extends SimpleSenderStrategy
 	{
 		if (addresses.length > 1)
 		{
-			Iterator addressGroups = this.groupAddresses(addresses).iterator();
-			
-			while (addressGroups.hasNext())
+			for (Address[] addressGroup: this.groupAddresses(addresses))
 			{
-				Address[] addressGroup = (Address[]) addressGroups.next();
-				
 				sender.send(message, addressGroup);
 			}
 		}
@@ -61,7 +58,7 @@ public abstract class GroupingSenderStrategy extends SimpleSenderStrategy
 	/**
 	 * Organizes the specified addresses into groups.
 	 * @param addresses all recipients of the message to be sent
-	 * @return a collection of javax.mail.Address[]
+	 * @return a collection of address groups
 	 */
-	protected abstract Collection groupAddresses(Address[] addresses);
+	protected abstract Collection<Address[]> groupAddresses(Address[] addresses);
 }
@@ -0,0 +1,163 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring of relay hosts, used to give each recipient domain a stable order of preferred hosts.
+ * Each host is placed on the ring at a number of pseudo-random points (i.e. virtual nodes), derived from its name alone,
+ * so that adding or removing a host only remaps the keys adjacent to its points, rather than reshuffling every key.
+ * For each point, the distinct hosts encountered walking clockwise from it are computed up front,
+ * so that lookups neither allocate nor revisit hosts.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class HashRing
+{
+	private static final int VIRTUAL_NODES = 160;
+
+	private final int hostCount;
+	private final int[] points;
+	private final int[] preferences;
+
+	/**
+	 * Constructs a new HashRing.
+	 * @param hosts the relay host names
+	 */
+	HashRing(String[] hosts)
+	{
+		this(hosts, VIRTUAL_NODES);
+	}
+
+	/**
+	 * Constructs a new HashRing.
+	 * @param hosts the relay host names
+	 * @param virtualNodes the number of points of each host on the ring
+	 */
+	HashRing(String[] hosts, int virtualNodes)
+	{
+		int size = hosts.length * virtualNodes;
+		// Pack point and host into a single long, so that a single sort orders both
+		long[] nodes = new long[size];
+
+		for (int i = 0; i < hosts.length; ++i)
+		{
+			for (int j = 0; j < virtualNodes; ++j)
+			{
+				int point = hash(hosts[i] + '#' + j);
+
+				nodes[i * virtualNodes + j] = ((long) (point ^ Integer.MIN_VALUE) << 32) | i;
+			}
+		}
+
+		Arrays.sort(nodes);
+
+		this.hostCount = hosts.length;
+		this.points = new int[size];
+		this.preferences = new int[size * hosts.length];
+
+		for (int i = 0; i < size; ++i)
+		{
+			this.points[i] = (int) (nodes[i] >> 32);
+		}
+
+		boolean[] visited = new boolean[hosts.length];
+
+		for (int i = 0; i < size; ++i)
+		{
+			Arrays.fill(visited, false);
+
+			int offset = i * hosts.length;
+			int rank = 0;
+
+			for (int j = 0; (j < size) && (rank < hosts.length); ++j)
+			{
+				int host = (int) nodes[(i + j) % size];
+
+				if (!visited[host])
+				{
+					visited[host] = true;
+					this.preferences[offset + rank] = host;
+					rank += 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of hosts on this ring
+	 */
+	int getHostCount()
+	{
+		return this.hostCount;
+	}
+
+	/**
+	 * Locates the first point at or after the specified key hash on this ring.
+	 * @param hash the hash of a key, as computed by {@link #hash(String)}
+	 * @return the position of a point on this ring
+	 */
+	int locate(int hash)
+	{
+		// Points are stored with their sign bit flipped, so that signed comparison orders them as unsigned
+		int position = Arrays.binarySearch(this.points, hash ^ Integer.MIN_VALUE);
+
+		if (position < 0)
+		{
+			position = -(position + 1);
+		}
+
+		return (position == this.points.length) ? 0 : position;
+	}
+
+	/**
+	 * Returns the host of the specified rank, in order of preference, for keys located at the specified position.
+	 * @param position a position returned by {@link #locate(int)}
+	 * @param rank the preference rank, from 0 (most preferred) to {@link #getHostCount()} - 1
+	 * @return the index of a relay host
+	 */
+	int getHost(int position, int rank)
+	{
+		return this.preferences[position * this.hostCount + rank];
+	}
+
+	/**
+	 * Hashes the specified key onto the ring.
+	 * Mixes the bits of {@link String#hashCode()}, whose values for similar strings (e.g. consecutive virtual node names) are themselves similar.
+	 * @param key a host name or a domain name
+	 * @return a well-distributed hash
+	 */
+	static int hash(String key)
+	{
+		int hash = key.hashCode();
+
+		// Finalizer of MurmurHash3
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		hash *= 0xC2B2AE35;
+		hash ^= hash >>> 16;
+
+		return hash;
+	}
+}
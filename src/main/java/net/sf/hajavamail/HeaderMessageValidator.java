@@ -0,0 +1,105 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.activation.DataHandler;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePartDataSource;
+
+/**
+ * The default message validator, which inspects headers and structure only.
+ * Supplies an empty subject and an empty body to messages without them, and rejects messages without recipients.
+ * The body of a MIME message is located, but never parsed nor decoded, so that validation costs the same regardless of the size of the message.
+ * 
+ * @author  mathieu
+ * @since   1.1
+ */
+public class HeaderMessageValidator implements MessageValidator
+{
+	/**
+	 * @see net.sf.hajavamail.MessageValidator#validate(javax.mail.Message, javax.mail.Address[])
+	 */
+	@Override
+	public void validate(Message message, Address[] addresses) throws MessagingException
+	{
+		if (message.getSubject() == null)
+		{
+			message.setSubject("");
+		}
+
+		Address[] recipients = message.getAllRecipients();
+		
+		if ((recipients == null) || (recipients.length == 0))
+		{
+			throw new MessagingException("Message contains no recipients.");
+		}
+		
+		if (!hasContent(message))
+		{
+			message.setText("");
+		}
+	}
+	
+	private static boolean hasContent(Message message) throws MessagingException
+	{
+		if (message instanceof MimeMessage)
+		{
+			DataHandler handler = message.getDataHandler();
+			
+			// Content set via setContent() or setText() is held by the data handler itself
+			if (!(handler.getDataSource() instanceof MimePartDataSource))
+			{
+				return true;
+			}
+			
+			// Otherwise, the content was parsed, or is streamed, from raw bytes, which are located without being read
+			try (InputStream input = ((MimeMessage) message).getRawInputStream())
+			{
+				return input != null;
+			}
+			catch (MessagingException e)
+			{
+				// No MimeMessage content
+				return false;
+			}
+			catch (IOException e)
+			{
+				throw new MessagingException("Failed to get message content", e);
+			}
+		}
+		
+		// Other messages offer no cheaper way to check for content
+		try
+		{
+			return message.getContent() != null;
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to get message content", e);
+		}
+	}
+}
@@ -20,60 +20,153 @@
  */
 package net.sf.hajavamail;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
 
 import javax.mail.Address;
-import javax.mail.internet.InternetAddress;
 
 /**
  * Grouping sender strategy implementation that groups target addresses by host.
+ * Addresses are classified in a single pass, using cached canonical domains, then scattered into exactly sized groups,
+ * which preserve the relative order of their addresses.
  * 
  * @author  Paul Ferraro
- * @version $Revision: 1.3 $
+ * @version $Revision: 1.4 $
  * @since   1.0
  */
 public class HostGroupingSenderStrategy extends GroupingSenderStrategy
 {
+	private static final int DOMAIN_CACHE_SIZE = 1024;
+	
+	private final DomainCache domainCache = new DomainCache(DOMAIN_CACHE_SIZE);
+	
 	/**
 	 * @see net.sf.hajavamail.GroupingSenderStrategy#groupAddresses(javax.mail.Address[])
 	 */
-	protected Collection groupAddresses(Address[] addresses)
+	protected Collection<Address[]> groupAddresses(Address[] addresses)
 	{
-		Map addressListMap = new HashMap();
-
+		DomainIndex domainIndex = new DomainIndex();
+		int[] groupIndexes = new int[addresses.length];
+		
 		for (int i = 0; i < addresses.length; ++i)
 		{
-			InternetAddress internetAddress = (InternetAddress) addresses[i];
-			String address = internetAddress.getAddress();
-			String host = address.substring(address.indexOf("@") + 1).toLowerCase();
+			groupIndexes[i] = domainIndex.add(this.getGroupKey(this.domainCache.getDomain(addresses[i])));
+		}
+		
+		if (domainIndex.count == 1)
+		{
+			return Collections.singletonList(addresses);
+		}
+		
+		Address[][] addressGroups = new Address[domainIndex.count][];
+		int[] sizes = domainIndex.sizes;
+		
+		for (int i = 0; i < addressGroups.length; ++i)
+		{
+			addressGroups[i] = new Address[sizes[i]];
+		}
+		
+		// Fill each group from its end, which preserves address order without separate offsets
+		for (int i = addresses.length - 1; i >= 0; --i)
+		{
+			int group = groupIndexes[i];
+			
+			addressGroups[group][--sizes[group]] = addresses[i];
+		}
+		
+		return Arrays.asList(addressGroups);
+	}
+	
+	/**
+	 * Returns the key by which to group addresses of the specified domain.
+	 * Must not block, since addresses are grouped on the send path.
+	 * @param domain a lower case domain name, or an empty string for addresses without a domain
+	 * @return a group key, the domain itself by default
+	 */
+	protected String getGroupKey(String domain)
+	{
+		return domain;
+	}
+	
+	/**
+	 * Open addressing hash table mapping the distinct group keys of a single message to group indexes, and counting the addresses of each group.
+	 */
+	private static class DomainIndex
+	{
+		private String[] domains = new String[16];
+		private int[] groups = new int[16];
+		int[] sizes = new int[8];
+		int count = 0;
+		
+		/**
+		 * Adds an address with the specified domain.
+		 * @return the index of the group of the domain
+		 */
+		int add(String domain)
+		{
+			int slot = this.find(domain);
+			
+			if (this.domains[slot] != null)
+			{
+				int group = this.groups[slot];
+				
+				this.sizes[group] += 1;
+				
+				return group;
+			}
+			
+			int group = this.count++;
+			
+			if (group == this.sizes.length)
+			{
+				this.sizes = Arrays.copyOf(this.sizes, 2 * group);
+			}
 			
-			List addressList = (List) addressListMap.get(host);
+			this.sizes[group] = 1;
+			this.domains[slot] = domain;
+			this.groups[slot] = group;
 			
-			if (addressList == null)
+			// Keep load factor at most 1/2
+			if (2 * this.count > this.domains.length)
 			{
-				addressList = new LinkedList();
-				addressListMap.put(host, addressList);
+				this.rehash();
 			}
 			
-			addressList.add(addresses[i]);
+			return group;
 		}
 		
-		List addressGroupList = new ArrayList(addressListMap.size());
-		Iterator addressLists = addressListMap.values().iterator();
-		
-		while (addressLists.hasNext())
+		private int find(String domain)
 		{
-			List addressList = (List) addressLists.next();
+			int mask = this.domains.length - 1;
+			int slot = domain.hashCode() & mask;
 			
-			addressGroupList.add(addressList.toArray(new Address[addressList.size()]));
+			while ((this.domains[slot] != null) && !this.domains[slot].equals(domain))
+			{
+				slot = (slot + 1) & mask;
+			}
+			
+			return slot;
 		}
 		
-		return addressGroupList;
+		private void rehash()
+		{
+			String[] domains = this.domains;
+			int[] groups = this.groups;
+			
+			this.domains = new String[2 * domains.length];
+			this.groups = new int[2 * domains.length];
+			
+			for (int i = 0; i < domains.length; ++i)
+			{
+				if (domains[i] != null)
+				{
+					int slot = this.find(domains[i]);
+					
+					this.domains[slot] = domains[i];
+					this.groups[slot] = groups[i];
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,131 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the health of a relay host as exponentially weighted moving averages of its send latency and error rate,
+ * as well as a histogram of its send latency, and a count of its failures, for reporting.
+ * Updates are lock-free and allocation-free.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class HostHealth
+{
+	// Weight of the most recent sample
+	private static final double ALPHA = 0.2;
+	// Relative cost of errors compared to latency, i.e. a host failing every send scores as if 10 times slower
+	private static final double ERROR_PENALTY = 10;
+
+	private final String host;
+	private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+	private final AtomicLong errorRate = new AtomicLong(Double.doubleToLongBits(0));
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Constructs a new HostHealth.
+	 * @param host a relay host name
+	 */
+	HostHealth(String host)
+	{
+		this.host = host;
+	}
+
+	/**
+	 * @return the relay host name
+	 */
+	String getHost()
+	{
+		return this.host;
+	}
+
+	/**
+	 * Records a completed send.
+	 * @param nanos the duration of the send, in nanoseconds
+	 */
+	void recordSuccess(long nanos)
+	{
+		update(this.latency, nanos / 1000000d);
+		update(this.errorRate, 0);
+		this.histogram.record(nanos);
+	}
+
+	/**
+	 * Records a send that failed due to the connection or the host.
+	 */
+	void recordFailure()
+	{
+		update(this.errorRate, 1);
+		this.failures.increment();
+	}
+
+	/**
+	 * @return the metrics of this host
+	 */
+	HostMetrics getMetrics()
+	{
+		return new HostMetrics(this.host, this.histogram.summarize(), this.failures.sum(), this.getErrorRate());
+	}
+
+	/**
+	 * @return the moving average send latency, in milliseconds
+	 */
+	double getLatency()
+	{
+		return Double.longBitsToDouble(this.latency.get());
+	}
+
+	/**
+	 * @return the moving average error rate, between 0 and 1
+	 */
+	double getErrorRate()
+	{
+		return Double.longBitsToDouble(this.errorRate.get());
+	}
+
+	/**
+	 * Returns the cost of sending via this host, lower is better.
+	 * @return a non-negative score
+	 */
+	double getScore()
+	{
+		// Add 1 ms, so that error rates still count for hosts without latency samples
+		return (this.getLatency() + 1) * (1 + ERROR_PENALTY * this.getErrorRate());
+	}
+
+	private static void update(AtomicLong average, double sample)
+	{
+		while (true)
+		{
+			long bits = average.get();
+			double value = Double.longBitsToDouble(bits);
+
+			if (average.compareAndSet(bits, Double.doubleToLongBits(value + ALPHA * (sample - value))))
+			{
+				return;
+			}
+		}
+	}
+}
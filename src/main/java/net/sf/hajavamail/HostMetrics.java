@@ -0,0 +1,94 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Metrics of a single relay host.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class HostMetrics
+{
+	private final String host;
+	private final LatencySummary latency;
+	private final long failures;
+	private final double errorRate;
+
+	/**
+	 * Constructs a new HostMetrics.
+	 * @param host the relay host name
+	 * @param latency summary of the send latency of the host
+	 * @param failures the number of sends that failed due to the connection or the host
+	 * @param errorRate the moving average error rate of the host
+	 */
+	@ConstructorProperties({ "host", "latency", "failures", "errorRate" })
+	public HostMetrics(String host, LatencySummary latency, long failures, double errorRate)
+	{
+		this.host = host;
+		this.latency = latency;
+		this.failures = failures;
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @return the relay host name
+	 */
+	public String getHost()
+	{
+		return this.host;
+	}
+
+	/**
+	 * @return a summary of the send latency of the host
+	 */
+	public LatencySummary getLatency()
+	{
+		return this.latency;
+	}
+
+	/**
+	 * @return the number of sends that failed due to the connection or the host
+	 */
+	public long getFailures()
+	{
+		return this.failures;
+	}
+
+	/**
+	 * @return the moving average error rate, between 0 and 1
+	 */
+	public double getErrorRate()
+	{
+		return this.errorRate;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return this.host + "[" + this.latency + ", failures=" + this.failures + ", error rate=" + this.errorRate + "]";
+	}
+}
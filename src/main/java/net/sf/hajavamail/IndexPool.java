@@ -0,0 +1,268 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free pool of the indexes of idle pooled objects (e.g. senders or connectors).
+ * Idle indexes are kept in a bounded multi-producer/multi-consumer ring of primitive ints,
+ * while blocking is delegated to a semaphore whose permits track the number of indexes in the ring.
+ * Neither acquiring nor releasing an index takes a monitor - only threads waiting for the pool to fill up do.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class IndexPool
+{
+	private final int size;
+	private final int mask;
+	private final int[] slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final Semaphore permits = new Semaphore(0);
+	private volatile int waiters = 0;
+
+	/**
+	 * Constructs a new empty pool.
+	 * @param size the number of distinct indexes managed by this pool
+	 */
+	IndexPool(int size)
+	{
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+
+		this.size = size;
+		this.mask = capacity - 1;
+		this.slots = new int[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+
+		for (int i = 0; i < capacity; ++i)
+		{
+			this.sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Takes an idle index from this pool, blocking until one is available.
+	 * Like the monitor-based pool it replaces, interrupts do not abort the wait.
+	 * @return an idle index
+	 */
+	int acquire()
+	{
+		this.permits.acquireUninterruptibly();
+
+		return this.take();
+	}
+
+	/**
+	 * Takes an idle index from this pool, if one is immediately available.
+	 * @return an idle index, or -1 if the pool is empty
+	 */
+	int tryAcquire()
+	{
+		return this.permits.tryAcquire() ? this.take() : -1;
+	}
+
+	/**
+	 * Returns the specified index to this pool, waking up one blocked acquirer, if any.
+	 * @param index an index previously taken from this pool
+	 */
+	void release(int index)
+	{
+		this.offer(index);
+
+		this.permits.release();
+
+		if (this.waiters > 0)
+		{
+			synchronized (this)
+			{
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Removes all idle indexes from this pool.
+	 */
+	void clear()
+	{
+		while (this.tryAcquire() >= 0)
+		{
+			// Keep draining
+		}
+	}
+
+	/**
+	 * @return the number of idle indexes in this pool
+	 */
+	int available()
+	{
+		return this.permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of distinct indexes managed by this pool
+	 */
+	int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Blocks until this pool contains at least the specified number of idle indexes, without taking any of them.
+	 * Like {@link Object#wait(long)}, a timeout of 0 waits forever.
+	 * @param count the number of idle indexes to wait for
+	 * @param timeout the maximum number of milliseconds to wait, or 0 to wait forever
+	 * @param interruptible indicates whether an interrupt should abort the wait
+	 * @return true, if the pool contains the requested number of idle indexes, false if the timeout elapsed or the wait was interrupted
+	 */
+	boolean await(int count, long timeout, boolean interruptible)
+	{
+		if (this.available() >= count)
+		{
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (this)
+		{
+			this.waiters += 1;
+
+			try
+			{
+				while (this.available() < count)
+				{
+					long remaining = (timeout > 0) ? deadline - System.currentTimeMillis() : 0;
+
+					if ((timeout > 0) && (remaining <= 0))
+					{
+						return false;
+					}
+
+					try
+					{
+						this.wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						if (interruptible)
+						{
+							Thread.currentThread().interrupt();
+							return false;
+						}
+					}
+				}
+
+				return true;
+			}
+			finally
+			{
+				this.waiters -= 1;
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every index managed by this pool is idle.
+	 */
+	void drain()
+	{
+		this.await(this.size, 0, false);
+	}
+
+	private void offer(int index)
+	{
+		long position = this.tail.get();
+
+		while (true)
+		{
+			int slot = (int) (position & this.mask);
+			long difference = this.sequences.get(slot) - position;
+
+			if (difference == 0)
+			{
+				if (this.tail.compareAndSet(position, position + 1))
+				{
+					this.slots[slot] = index;
+					this.sequences.set(slot, position + 1);
+					return;
+				}
+
+				position = this.tail.get();
+			}
+			else if (difference < 0)
+			{
+				// A concurrent acquire claimed this slot but has not yet recycled it
+				Thread.onSpinWait();
+
+				position = this.tail.get();
+			}
+			else
+			{
+				position = this.tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Takes an index from the ring.  Callers must already hold a permit, which guarantees that an index is, or is about to be, published.
+	 */
+	private int take()
+	{
+		long position = this.head.get();
+
+		while (true)
+		{
+			int slot = (int) (position & this.mask);
+			long difference = this.sequences.get(slot) - (position + 1);
+
+			if (difference == 0)
+			{
+				if (this.head.compareAndSet(position, position + 1))
+				{
+					int index = this.slots[slot];
+
+					this.sequences.set(slot, position + this.mask + 1);
+
+					return index;
+				}
+
+				position = this.head.get();
+			}
+			else if (difference < 0)
+			{
+				// A concurrent release claimed this slot but has not yet published its index
+				Thread.onSpinWait();
+
+				position = this.head.get();
+			}
+			else
+			{
+				position = this.head.get();
+			}
+		}
+	}
+}
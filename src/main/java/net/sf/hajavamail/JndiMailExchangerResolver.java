@@ -0,0 +1,112 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Resolves mail exchangers via the JNDI DNS service provider of the JDK, using the DNS servers configured for the platform.
+ * Per RFC 5321, a domain without MX records is its own mail exchanger.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class JndiMailExchangerResolver implements MailExchangerResolver
+{
+	private static final String DNS_CONTEXT_FACTORY = "com.sun.jndi.dns.DnsContextFactory";
+	private static final String[] MX = new String[] { "MX" };
+
+	/**
+	 * @see net.sf.hajavamail.MailExchangerResolver#resolve(java.lang.String)
+	 */
+	@Override
+	public String[] resolve(String domain) throws MessagingException
+	{
+		Hashtable<String, String> environment = new Hashtable<>();
+
+		environment.put(Context.INITIAL_CONTEXT_FACTORY, DNS_CONTEXT_FACTORY);
+		environment.put(Context.PROVIDER_URL, "dns:");
+
+		try
+		{
+			DirContext context = new InitialDirContext(environment);
+
+			try
+			{
+				Attributes attributes = context.getAttributes(domain, MX);
+				Attribute attribute = attributes.get(MX[0]);
+
+				if ((attribute == null) || (attribute.size() == 0))
+				{
+					// Implicit MX
+					return new String[] { domain };
+				}
+
+				String[][] records = new String[attribute.size()][];
+				NamingEnumeration<?> values = attribute.getAll();
+
+				for (int i = 0; values.hasMore(); ++i)
+				{
+					// e.g. "10 mx.example.com."
+					records[i] = values.next().toString().trim().split("\\s+");
+				}
+
+				Arrays.sort(records, Comparator.comparingInt(record -> Integer.parseInt(record[0])));
+
+				String[] hosts = new String[records.length];
+
+				for (int i = 0; i < records.length; ++i)
+				{
+					String host = records[i][records[i].length - 1].toLowerCase(Locale.ROOT);
+
+					hosts[i] = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+				}
+
+				return hosts;
+			}
+			finally
+			{
+				context.close();
+			}
+		}
+		catch (NameNotFoundException e)
+		{
+			return new String[0];
+		}
+		catch (NamingException | RuntimeException e)
+		{
+			throw new MessagingException("Failed to resolve mail exchangers of " + domain, e);
+		}
+	}
+}
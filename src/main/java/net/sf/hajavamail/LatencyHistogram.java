@@ -0,0 +1,132 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, allocation-free histogram of durations, in the style of HdrHistogram.
+ * Buckets are log-linear: each power of 2 is split into 16 linear sub-buckets, which bounds the relative error of any recorded value to 1/16,
+ * while a fixed array of counters covers the entire range of non-negative longs.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	private static final double NANOS_PER_MILLI = 1000000d;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 * @param nanos a duration, in nanoseconds
+	 */
+	void record(long nanos)
+	{
+		long value = Math.max(nanos, 0);
+
+		this.counts.incrementAndGet(index(value));
+		this.total.add(value);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+
+	/**
+	 * Summarizes the durations recorded so far.  Concurrent recording may make the summary slightly inconsistent, but never invalid.
+	 * @return a summary of this histogram, in milliseconds
+	 */
+	LatencySummary summarize()
+	{
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+
+		for (int i = 0; i < BUCKETS; ++i)
+		{
+			counts[i] = this.counts.get(i);
+			count += counts[i];
+		}
+
+		double mean = (count > 0) ? this.total.sum() / (double) count / NANOS_PER_MILLI : 0;
+
+		long max = this.max.get();
+
+		return new LatencySummary(count, mean, percentile(counts, count, max, 0.5), percentile(counts, count, max, 0.9), percentile(counts, count, max, 0.99), percentile(counts, count, max, 0.999), max / NANOS_PER_MILLI);
+	}
+
+	static int index(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) value;
+		}
+
+		int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the highest value that maps to the specified bucket
+	 */
+	static long highestValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long lowest = ((long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift;
+
+		return lowest + (1L << shift) - 1;
+	}
+
+	private static double percentile(long[] counts, long count, long max, double quantile)
+	{
+		if (count == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; ++i)
+		{
+			seen += counts[i];
+
+			if (seen >= rank)
+			{
+				// The highest value of a bucket may exceed the highest recorded value
+				return Math.min(highestValue(i), max) / NANOS_PER_MILLI;
+			}
+		}
+
+		return max / NANOS_PER_MILLI;
+	}
+}
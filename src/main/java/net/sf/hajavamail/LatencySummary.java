@@ -0,0 +1,128 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a latency histogram, in milliseconds.
+ * Percentiles are accurate to within 1/16 of their value.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class LatencySummary
+{
+	private final long count;
+	private final double mean;
+	private final double median;
+	private final double percentile90;
+	private final double percentile99;
+	private final double percentile999;
+	private final double max;
+
+	/**
+	 * Constructs a new LatencySummary.
+	 * @param count the number of recorded samples
+	 * @param mean the mean latency
+	 * @param median the 50th percentile latency
+	 * @param percentile90 the 90th percentile latency
+	 * @param percentile99 the 99th percentile latency
+	 * @param percentile999 the 99.9th percentile latency
+	 * @param max the maximum latency
+	 */
+	@ConstructorProperties({ "count", "mean", "median", "percentile90", "percentile99", "percentile999", "max" })
+	public LatencySummary(long count, double mean, double median, double percentile90, double percentile99, double percentile999, double max)
+	{
+		this.count = count;
+		this.mean = mean;
+		this.median = median;
+		this.percentile90 = percentile90;
+		this.percentile99 = percentile99;
+		this.percentile999 = percentile999;
+		this.max = max;
+	}
+
+	/**
+	 * @return the number of recorded samples
+	 */
+	public long getCount()
+	{
+		return this.count;
+	}
+
+	/**
+	 * @return the mean latency, in milliseconds
+	 */
+	public double getMean()
+	{
+		return this.mean;
+	}
+
+	/**
+	 * @return the 50th percentile latency, in milliseconds
+	 */
+	public double getMedian()
+	{
+		return this.median;
+	}
+
+	/**
+	 * @return the 90th percentile latency, in milliseconds
+	 */
+	public double getPercentile90()
+	{
+		return this.percentile90;
+	}
+
+	/**
+	 * @return the 99th percentile latency, in milliseconds
+	 */
+	public double getPercentile99()
+	{
+		return this.percentile99;
+	}
+
+	/**
+	 * @return the 99.9th percentile latency, in milliseconds
+	 */
+	public double getPercentile999()
+	{
+		return this.percentile999;
+	}
+
+	/**
+	 * @return the maximum latency, in milliseconds
+	 */
+	public double getMax()
+	{
+		return this.max;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "count=" + this.count + ", mean=" + this.mean + " ms, p50=" + this.median + " ms, p90=" + this.percentile90 + " ms, p99=" + this.percentile99 + " ms, p99.9=" + this.percentile999 + " ms, max=" + this.max + " ms";
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Concurrent cache of the preferred mail exchanger of each domain, with separate time-to-live for resolved and unresolvable domains.
+ * Lookups never block: a missing or expired entry triggers a single asynchronous resolution, while the lookup returns the stale value, if any.
+ * The number of cached domains is bounded, expired entries being evicted first.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class MailExchangerCache
+{
+	private final MailExchangerResolver resolver;
+	private final Executor executor;
+	private final long ttl;
+	private final long negativeTtl;
+	private final int maxSize;
+	private final ConcurrentMap<String, Entry> entryMap = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Boolean> pendingMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructs a new MailExchangerCache.
+	 * @param resolver resolves the mail exchangers of a domain
+	 * @param executor runs resolutions
+	 * @param ttl the number of milliseconds to cache a resolved domain
+	 * @param negativeTtl the number of milliseconds to cache a domain that could not be resolved
+	 * @param maxSize the maximum number of cached domains
+	 */
+	MailExchangerCache(MailExchangerResolver resolver, Executor executor, long ttl, long negativeTtl, int maxSize)
+	{
+		this.resolver = resolver;
+		this.executor = executor;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the preferred mail exchanger of the specified domain, without blocking.
+	 * @param domain a lower case domain name
+	 * @return the host name of a mail exchanger, or null if the domain is not yet resolved, or could not be resolved
+	 */
+	String getMailExchanger(String domain)
+	{
+		Entry entry = this.entryMap.get(domain);
+
+		if ((entry == null) || (System.nanoTime() - entry.expiry >= 0))
+		{
+			this.refresh(domain);
+		}
+
+		return (entry != null) ? entry.host : null;
+	}
+
+	/**
+	 * @return the number of cached domains
+	 */
+	int size()
+	{
+		return this.entryMap.size();
+	}
+
+	private void refresh(String domain)
+	{
+		// Only one resolution per domain at a time
+		if (this.pendingMap.putIfAbsent(domain, Boolean.TRUE) == null)
+		{
+			try
+			{
+				this.executor.execute(() -> this.resolve(domain));
+			}
+			catch (RuntimeException e)
+			{
+				this.pendingMap.remove(domain);
+
+				TransportProxy.log.warn("Failed to schedule resolution of mail exchangers of " + domain, e);
+			}
+		}
+	}
+
+	private void resolve(String domain)
+	{
+		try
+		{
+			String host = null;
+
+			try
+			{
+				String[] hosts = this.resolver.resolve(domain);
+
+				if (hosts.length > 0)
+				{
+					host = hosts[0];
+				}
+			}
+			catch (Exception e)
+			{
+				TransportProxy.log.warn("Failed to resolve mail exchangers of " + domain, e);
+			}
+
+			long expiry = System.nanoTime() + 1000000L * ((host != null) ? this.ttl : this.negativeTtl);
+
+			this.entryMap.put(domain, new Entry(host, expiry));
+
+			if (this.entryMap.size() > this.maxSize)
+			{
+				this.evict();
+			}
+		}
+		finally
+		{
+			this.pendingMap.remove(domain);
+		}
+	}
+
+	private void evict()
+	{
+		long now = System.nanoTime();
+
+		this.entryMap.values().removeIf(entry -> now - entry.expiry >= 0);
+
+		Iterator<String> domains = this.entryMap.keySet().iterator();
+
+		while ((this.entryMap.size() > this.maxSize) && domains.hasNext())
+		{
+			domains.next();
+			domains.remove();
+		}
+	}
+
+	private static class Entry
+	{
+		final String host;
+		final long expiry;
+
+		Entry(String host, long expiry)
+		{
+			this.host = host;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Grouping sender strategy implementation that groups target addresses by the preferred mail exchanger of their domain,
+ * so that recipients of distinct domains hosted by the same provider share a single transaction.
+ * Mail exchangers are resolved in the background, via the resolver configured by the {@link #RESOLVER} session property, and cached.
+ * Until a domain is resolved, or if it cannot be resolved, its addresses are grouped by domain, like {@link net.sf.hajavamail.HostGroupingSenderStrategy}.
+ * Resolver threads are started on demand, and stopped when the transport proxy using this strategy is closed.
+ * 
+ * @author  mathieu
+ * @since   1.1
+ */
+public class MailExchangerGroupingSenderStrategy extends HostGroupingSenderStrategy implements AutoCloseable
+{
+	public static final String RESOLVER = "mail.transport.mx-resolver";
+	public static final String CACHE_TTL = "mail.transport.mx-cache-ttl";
+	public static final String CACHE_NEGATIVE_TTL = "mail.transport.mx-cache-negative-ttl";
+	public static final String CACHE_SIZE = "mail.transport.mx-cache-size";
+	
+	private static final String DEFAULT_RESOLVER = JndiMailExchangerResolver.class.getName();
+	private static final int DEFAULT_CACHE_TTL = 300;
+	private static final int DEFAULT_CACHE_NEGATIVE_TTL = 60;
+	private static final int DEFAULT_CACHE_SIZE = 10000;
+	private static final int RESOLVER_THREADS = 2;
+	
+	private final MailExchangerCache cache;
+	private ExecutorService executor;
+	
+	/**
+	 * Constructs a new strategy using the default resolver and cache settings.
+	 * @throws IllegalArgumentException if the resolver could not be created
+	 */
+	public MailExchangerGroupingSenderStrategy()
+	{
+		this(new Properties());
+	}
+	
+	/**
+	 * Constructs a new strategy configured via the specified session properties.
+	 * @param properties session properties
+	 * @throws IllegalArgumentException if the configured resolver could not be created
+	 */
+	public MailExchangerGroupingSenderStrategy(Properties properties)
+	{
+		this.cache = new MailExchangerCache(createResolver(properties.getProperty(RESOLVER, DEFAULT_RESOLVER)), this::resolve,
+			1000L * Integer.parseInt(properties.getProperty(CACHE_TTL, Integer.toString(DEFAULT_CACHE_TTL))),
+			1000L * Integer.parseInt(properties.getProperty(CACHE_NEGATIVE_TTL, Integer.toString(DEFAULT_CACHE_NEGATIVE_TTL))),
+			Integer.parseInt(properties.getProperty(CACHE_SIZE, Integer.toString(DEFAULT_CACHE_SIZE))));
+	}
+	
+	/**
+	 * Constructs a new strategy.
+	 * @param resolver resolves the mail exchangers of a domain
+	 * @param executor runs resolutions
+	 * @param ttl the number of milliseconds to cache a resolved domain
+	 * @param negativeTtl the number of milliseconds to cache a domain that could not be resolved
+	 * @param cacheSize the maximum number of cached domains
+	 */
+	MailExchangerGroupingSenderStrategy(MailExchangerResolver resolver, Executor executor, long ttl, long negativeTtl, int cacheSize)
+	{
+		this.cache = new MailExchangerCache(resolver, executor, ttl, negativeTtl, cacheSize);
+	}
+	
+	/**
+	 * @see net.sf.hajavamail.HostGroupingSenderStrategy#getGroupKey(java.lang.String)
+	 */
+	@Override
+	protected String getGroupKey(String domain)
+	{
+		// A domain that is its own mail exchanger correctly shares a group with other domains hosted by it
+		String host = !domain.isEmpty() ? this.cache.getMailExchanger(domain) : null;
+		
+		return (host != null) ? host : domain;
+	}
+	
+	/**
+	 * Stops the resolver threads of this strategy.  Subsequent resolutions start them anew.
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (this.executor != null)
+		{
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+	
+	private synchronized void resolve(Runnable resolution)
+	{
+		if (this.executor == null)
+		{
+			this.executor = ExecutionMode.POOLED.createExecutorService("hajavamail-mx", RESOLVER_THREADS);
+		}
+		
+		this.executor.execute(resolution);
+	}
+	
+	private static MailExchangerResolver createResolver(String className)
+	{
+		try
+		{
+			return Class.forName(className).asSubclass(MailExchangerResolver.class).getConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | ClassCastException e)
+		{
+			throw new IllegalArgumentException("Invalid mail exchanger resolver: " + className, e);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import javax.mail.MessagingException;
+
+/**
+ * Service provider interface for resolving the mail exchangers of a domain, used by {@link net.sf.hajavamail.MailExchangerGroupingSenderStrategy}.
+ * To configure a specific resolver use the {@link net.sf.hajavamail.MailExchangerGroupingSenderStrategy#RESOLVER} session property.
+ * Implementations must be thread-safe, and must declare a public no-argument constructor.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public interface MailExchangerResolver
+{
+	/**
+	 * Resolves the mail exchangers of the specified domain.
+	 * @param domain a lower case domain name
+	 * @return the lower case host names of the mail exchangers of the domain, most preferred first, or an empty array if the domain has none
+	 * @throws MessagingException if the lookup failed
+	 */
+	public String[] resolve(String domain) throws MessagingException;
+}
@@ -0,0 +1,424 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Merges the recipients of messages with identical content, submitted within a short window, into a single envelope.
+ * Messages are considered identical if their headers and body hash to the same digest,
+ * ignoring headers that are either not transmitted, or that are unique to each message instance (i.e. Message-ID and Date).
+ * Merged envelopes are sent using the first message of the batch.
+ * Messages are only hashed once the window closes, on a worker thread, so that submitting a message never serializes it on the calling thread.
+ * The same worker thread hands the merged envelopes to the dispatcher, which must therefore not block.
+ * If a renderer is supplied, messages are rendered before they are hashed, so that hashing reuses the rendered buffer rather than encoding the message a second time.
+ * To enable coalescing use the {@link net.sf.hajavamail.TransportProxy#COALESCE_WINDOW} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class MessageCoalescer
+{
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final String[] IGNORED_HEADERS = new String[] { "Bcc", "Content-Length", "Message-ID", "Date" };
+
+	/**
+	 * Callback used to send a merged envelope, without blocking.
+	 */
+	interface Dispatcher
+	{
+		CompletableFuture<DeliveryReport> dispatch(MimeMessage message, Address[] addresses, Consumer<Address[]> progress) throws MessagingException;
+	}
+
+	private final Queue<Entry> entryQueue = new ConcurrentLinkedQueue<>();
+	// Submissions not yet handed to the dispatcher, including those collected by a flush in progress
+	private final Set<Entry> pendingEntrySet = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Dispatcher dispatcher;
+	private final MessageRenderer renderer;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final long window;
+	private final int maxRecipients;
+
+	/**
+	 * Constructs a new MessageCoalescer.
+	 * @param dispatcher sends merged envelopes
+	 * @param renderer renders messages before they are hashed, or null, if messages are not rendered
+	 * @param executor hashes the messages of a window, and sends merged envelopes
+	 * @param scheduler schedules the flushing of windows
+	 * @param window the number of milliseconds to hold a window open for further messages
+	 * @param maxRecipients the maximum number of recipients of a merged envelope
+	 */
+	MessageCoalescer(Dispatcher dispatcher, MessageRenderer renderer, Executor executor, ScheduledExecutorService scheduler, long window, int maxRecipients)
+	{
+		this.dispatcher = dispatcher;
+		this.renderer = renderer;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.window = window;
+		this.maxRecipients = maxRecipients;
+	}
+
+	/**
+	 * Adds the specified message to the current window, opening a window if necessary.
+	 * Messages with as many recipients as a merged envelope may hold should be sent directly instead.
+	 * @param message a JavaMail message
+	 * @param addresses addresses to which to send this message
+	 * @param progress notified of the addresses no longer pending, before the others are retried, or null
+	 * @return a future delivery report, restricted to the specified addresses
+	 */
+	CompletableFuture<DeliveryReport> submit(MimeMessage message, Address[] addresses, Consumer<Address[]> progress)
+	{
+		Entry entry = new Entry(message, addresses, progress);
+
+		this.pendingEntrySet.add(entry);
+		this.entryQueue.add(entry);
+
+		// Enqueue before scheduling, so that a flush that already cleared the flag still collects this entry
+		if (this.flushScheduled.compareAndSet(false, true))
+		{
+			this.scheduler.schedule(this::flushLater, this.window, TimeUnit.MILLISECONDS);
+		}
+
+		return entry.future;
+	}
+
+	/**
+	 * Immediately hashes, and sends, all pending messages on the calling thread.
+	 */
+	void flush()
+	{
+		this.dispatch(this.collect());
+	}
+
+	/**
+	 * Sends all pending messages, then waits, until the specified deadline, for flushes in progress to hand off their merged envelopes.
+	 * @param deadline a deadline, per {@link System#nanoTime()}
+	 * @return true, if no message remains pending in this coalescer, false otherwise
+	 */
+	boolean drain(long deadline)
+	{
+		this.flush();
+
+		return TransportProxy.awaitEmpty(this.pendingEntrySet, deadline);
+	}
+
+	/**
+	 * Cancels the messages still pending in this coalescer, e.g. held by a flush that did not complete before the transport closed.
+	 * @return the cancelled messages
+	 */
+	List<UndeliveredMessage> cancel()
+	{
+		List<UndeliveredMessage> undeliveredList = new ArrayList<>();
+
+		for (Entry entry: this.pendingEntrySet)
+		{
+			if (entry.future.cancel(false))
+			{
+				undeliveredList.add(new UndeliveredMessage(entry.message, entry.addresses, false));
+			}
+		}
+
+		this.pendingEntrySet.clear();
+
+		return undeliveredList;
+	}
+
+	/**
+	 * Closes the current window: hashes its messages, and sends the merged envelopes, on the executor.
+	 */
+	private void flushLater()
+	{
+		this.flushScheduled.set(false);
+
+		try
+		{
+			this.executor.execute(this::flush);
+		}
+		catch (RejectedExecutionException e)
+		{
+			this.flush();
+		}
+	}
+
+	/**
+	 * Drains the pending messages, and groups those with identical content into batches of bounded size.
+	 */
+	private List<Batch> collect()
+	{
+		Map<Key, Batch> batchMap = new HashMap<>();
+		List<Batch> batchList = new ArrayList<>();
+		Entry entry = this.entryQueue.poll();
+
+		while (entry != null)
+		{
+			try
+			{
+				MimeMessage message = (this.renderer != null) ? this.renderer.render(entry.message) : entry.message;
+				Key key = new Key(digest(message));
+				Batch batch = batchMap.get(key);
+
+				if ((batch != null) && (batch.recipients + entry.addresses.length > this.maxRecipients))
+				{
+					batch = null;
+				}
+
+				if (batch == null)
+				{
+					batch = new Batch(message);
+
+					batchMap.put(key, batch);
+					batchList.add(batch);
+				}
+
+				batch.add(entry);
+			}
+			catch (MessagingException | RuntimeException e)
+			{
+				entry.future.completeExceptionally(e);
+
+				this.pendingEntrySet.remove(entry);
+			}
+
+			entry = this.entryQueue.poll();
+		}
+
+		return batchList;
+	}
+
+	private void dispatch(List<Batch> batchList)
+	{
+		for (Batch batch: batchList)
+		{
+			this.dispatch(batch);
+		}
+	}
+
+	private void dispatch(Batch batch)
+	{
+		// Submissions cancelled by close in the meantime are no longer sent
+		batch.entryList.removeIf(entry -> entry.future.isDone());
+
+		if (batch.entryList.isEmpty())
+		{
+			return;
+		}
+
+		List<Address> addressList = new ArrayList<>(batch.recipients);
+
+		for (Entry entry: batch.entryList)
+		{
+			addressList.addAll(Arrays.asList(entry.addresses));
+		}
+
+		Address[] addresses = addressList.toArray(new Address[addressList.size()]);
+
+		if (TransportProxy.log.isDebugEnabled())
+		{
+			TransportProxy.log.debug("Coalesced " + batch.entryList.size() + " messages into one envelope with " + addresses.length + " recipients");
+		}
+
+		try
+		{
+			this.dispatcher.dispatch(batch.message, addresses, done ->
+			{
+				for (Entry entry: batch.entryList)
+				{
+					if (entry.progress != null)
+					{
+						entry.progress.accept(entry.restrict(done));
+					}
+				}
+			}).whenComplete((report, e) ->
+			{
+				for (Entry entry: batch.entryList)
+				{
+					if (e != null)
+					{
+						entry.future.completeExceptionally(e);
+					}
+					else
+					{
+						entry.future.complete(entry.restrict(report));
+					}
+				}
+			});
+		}
+		catch (MessagingException | RuntimeException e)
+		{
+			for (Entry entry: batch.entryList)
+			{
+				entry.future.completeExceptionally(e);
+			}
+		}
+		finally
+		{
+			// Dispatched envelopes are tracked as pending deliveries by the transport from here on
+			this.pendingEntrySet.removeAll(batch.entryList);
+		}
+	}
+
+	private static byte[] digest(MimeMessage message) throws MessagingException
+	{
+		try
+		{
+			DigestOutputStream output = new DigestOutputStream(OutputStream.nullOutputStream(), MessageDigest.getInstance(DIGEST_ALGORITHM));
+
+			message.writeTo(output, IGNORED_HEADERS);
+
+			return output.getMessageDigest().digest();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to hash message content", e);
+		}
+	}
+
+	/**
+	 * Digest of message content, used as a batch key.
+	 */
+	private static class Key
+	{
+		private final byte[] digest;
+		private final int hashCode;
+
+		Key(byte[] digest)
+		{
+			this.digest = digest;
+			this.hashCode = Arrays.hashCode(digest);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object)
+		{
+			return (object instanceof Key) && Arrays.equals(this.digest, ((Key) object).digest);
+		}
+	}
+
+	/**
+	 * Messages with identical content awaiting dispatch.  Only mutated by the thread that collected it.
+	 */
+	private static class Batch
+	{
+		final MimeMessage message;
+		final List<Entry> entryList = new ArrayList<>();
+		int recipients = 0;
+
+		Batch(MimeMessage message)
+		{
+			this.message = message;
+		}
+
+		void add(Entry entry)
+		{
+			this.entryList.add(entry);
+			this.recipients += entry.addresses.length;
+		}
+	}
+
+	/**
+	 * A single coalesced message submission.
+	 */
+	private static class Entry
+	{
+		final MimeMessage message;
+		final Address[] addresses;
+		final Consumer<Address[]> progress;
+		final CompletableFuture<DeliveryReport> future = new CompletableFuture<>();
+		final long submitTime = System.currentTimeMillis();
+
+		Entry(MimeMessage message, Address[] addresses, Consumer<Address[]> progress)
+		{
+			this.message = message;
+			this.addresses = addresses;
+			this.progress = progress;
+		}
+
+		/**
+		 * Restricts the report of a merged envelope to the addresses of this submission.
+		 */
+		DeliveryReport restrict(DeliveryReport report)
+		{
+			Set<Address> addressSet = new HashSet<>(Arrays.asList(this.addresses));
+
+			return new DeliveryReport(report.getHost(), System.currentTimeMillis() - this.submitTime, retain(report.getValidSentAddresses(), addressSet), retain(report.getValidUnsentAddresses(), addressSet), retain(report.getInvalidAddresses(), addressSet), report.getAttempts());
+		}
+
+		/**
+		 * Restricts the specified addresses of a merged envelope to those of this submission.
+		 */
+		Address[] restrict(Address[] addresses)
+		{
+			return retain(addresses, new HashSet<>(Arrays.asList(this.addresses)));
+		}
+
+		private static Address[] retain(Address[] addresses, Set<Address> addressSet)
+		{
+			List<Address> addressList = new ArrayList<>(Math.min(addresses.length, addressSet.size()));
+
+			for (Address address: addresses)
+			{
+				if (addressSet.contains(address))
+				{
+					addressList.add(address);
+				}
+			}
+
+			return addressList.toArray(new Address[addressList.size()]);
+		}
+	}
+}
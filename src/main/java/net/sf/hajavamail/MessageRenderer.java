@@ -0,0 +1,297 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Renders a message to an immutable buffer exactly once, so that every address group and every retry streams the same encoded bytes,
+ * instead of having each underlying transport re-encode the message.
+ * Small messages are rendered to the heap, messages larger than the configured threshold are rendered to a memory-mapped temporary file.
+ * Temporary files are deleted once rendered, or, on platforms that do not permit deleting mapped files, once their mapping is released, or the renderer is closed.
+ * To enable rendering use the {@link net.sf.hajavamail.TransportProxy#RENDER_ONCE} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class MessageRenderer
+{
+	private final Session session;
+	private final int fileThreshold;
+	// Temporary files that could not be deleted while mapped
+	private final Set<Path> undeletedPathSet = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructs a new MessageRenderer.
+	 * @param session the session of rendered messages
+	 * @param fileThreshold the size, in bytes, above which messages are rendered to a memory-mapped file
+	 */
+	MessageRenderer(Session session, int fileThreshold)
+	{
+		this.session = session;
+		this.fileThreshold = fileThreshold;
+	}
+
+	/**
+	 * Renders the specified message, unless it was already rendered.
+	 * The returned message is a read-only copy whose content is backed by the rendered buffer.
+	 * @param message a JavaMail message
+	 * @return a rendered copy of the specified message
+	 * @throws MessagingException if the message could not be rendered
+	 */
+	MimeMessage render(MimeMessage message) throws MessagingException
+	{
+		if (message instanceof RenderedMessage)
+		{
+			return message;
+		}
+
+		if (!this.undeletedPathSet.isEmpty())
+		{
+			// Mappings of previous renderings may have been released since
+			this.undeletedPathSet.removeIf(MessageRenderer::delete);
+		}
+
+		try (RenderOutputStream output = new RenderOutputStream(this.fileThreshold, this.undeletedPathSet))
+		{
+			message.writeTo(output);
+
+			return new RenderedMessage(this.session, output.getInputStream());
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to render message", e);
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of released renderings.  Files still mapped by renderings in use are deleted when the JVM exits.
+	 */
+	void close()
+	{
+		for (Path path: this.undeletedPathSet)
+		{
+			if (!delete(path))
+			{
+				path.toFile().deleteOnExit();
+			}
+
+			this.undeletedPathSet.remove(path);
+		}
+	}
+
+	/**
+	 * Deletes the specified file, if it exists.
+	 * @return true, if the file no longer exists, false otherwise
+	 */
+	private static boolean delete(Path path)
+	{
+		try
+		{
+			Files.deleteIfExists(path);
+
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Defers rendering the specified message until it is first needed, e.g. by the first sender to send it, rather than the thread submitting it.
+	 * @param message a JavaMail message
+	 * @return a rendering of the specified message, shared by its address groups and retries
+	 */
+	Rendering defer(MimeMessage message)
+	{
+		return new Rendering(message);
+	}
+
+	/**
+	 * A message rendered on first use.
+	 */
+	class Rendering
+	{
+		private final MimeMessage message;
+		// Guarded by this rendering
+		private MimeMessage renderedMessage;
+
+		Rendering(MimeMessage message)
+		{
+			this.message = message;
+		}
+
+		/**
+		 * Renders the message, unless already rendered.  Concurrent callers wait for a single rendering.
+		 * @return the rendered message
+		 * @throws MessagingException if the message could not be rendered
+		 */
+		synchronized MimeMessage get() throws MessagingException
+		{
+			if (this.renderedMessage == null)
+			{
+				this.renderedMessage = MessageRenderer.this.render(this.message);
+			}
+
+			return this.renderedMessage;
+		}
+	}
+
+	/**
+	 * Message parsed from an immutable, pre-rendered buffer.
+	 */
+	static class RenderedMessage extends MimeMessage
+	{
+		/**
+		 * Constructs a new RenderedMessage.
+		 * @param session a JavaMail session
+		 * @param input a shared input stream over the rendered message
+		 * @throws MessagingException if the message could not be parsed
+		 */
+		RenderedMessage(Session session, InputStream input) throws MessagingException
+		{
+			super(session, input);
+		}
+	}
+
+	/**
+	 * Buffers output on the heap, spilling to a temporary file once the threshold is exceeded.
+	 */
+	private static class RenderOutputStream extends OutputStream
+	{
+		private final int threshold;
+		private final Set<Path> undeletedPathSet;
+		private byte[] buf;
+		private int count = 0;
+		private Path path;
+		private FileChannel channel;
+
+		RenderOutputStream(int threshold, Set<Path> undeletedPathSet)
+		{
+			this.threshold = threshold;
+			this.undeletedPathSet = undeletedPathSet;
+			this.buf = new byte[Math.min(threshold, 8192)];
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			if ((this.channel == null) && (this.count + length > this.threshold))
+			{
+				this.spill();
+			}
+
+			if (this.channel != null)
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+
+				while (buffer.hasRemaining())
+				{
+					this.channel.write(buffer);
+				}
+			}
+			else
+			{
+				if (this.count + length > this.buf.length)
+				{
+					this.buf = Arrays.copyOf(this.buf, Math.min(Math.max(this.buf.length * 2, this.count + length), this.threshold));
+				}
+
+				System.arraycopy(bytes, offset, this.buf, this.count, length);
+				this.count += length;
+			}
+		}
+
+		private void spill() throws IOException
+		{
+			this.path = Files.createTempFile("hajavamail", ".eml");
+			this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.channel.write(ByteBuffer.wrap(this.buf, 0, this.count));
+
+			// Release heap buffer
+			this.buf = new byte[0];
+			this.count = 0;
+		}
+
+		InputStream getInputStream() throws IOException
+		{
+			if (this.channel == null)
+			{
+				// Share, rather than copy, the heap buffer
+				return new SharedByteArrayInputStream(this.buf, 0, this.count);
+			}
+
+			// Mapping remains valid after the channel is closed
+			MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+			Path path = this.path;
+			Set<Path> undeletedPathSet = this.undeletedPathSet;
+
+			// Views of the mapping reference it, so it is only released once the rendered message is unreachable
+			TransportProxy.CLEANER.register(buffer, () ->
+			{
+				if (undeletedPathSet.remove(path) && !delete(path))
+				{
+					undeletedPathSet.add(path);
+				}
+			});
+
+			return new ByteBufferInputStream(buffer);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (this.channel != null)
+			{
+				this.channel.close();
+
+				// Some platforms do not permit deleting mapped files
+				if (!delete(this.path))
+				{
+					this.undeletedPathSet.add(this.path);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,669 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Durable, append-only journal of messages awaiting delivery, so that queued sends survive a restart.
+ * The journal consists of fixed-size, memory-mapped segment files.  Each record is laid out as:
+ * <pre>
+ * int    length of the remainder of the record (0 marks the end of a segment)
+ * byte   state (pending or delivered)
+ * int    checksum of the remainder of the record
+ * int    length of the envelope
+ * byte[] envelope, i.e. the recipient addresses, UTF-8 encoded
+ * byte[] the rendered message
+ * </pre>
+ * The length of a record is written when its space is reserved, so the chain of records can always be walked, and its checksum once it is complete.
+ * Recovery therefore skips torn records, e.g. those still being written by a crashed process, without losing the complete records that follow them.
+ * Records are flushed to disk in batches via {@link #sync()}, rather than on every append or delivery.
+ * Segments are deleted once they are full and all of their records were delivered.
+ * Once some recipients of an entry no longer need the message, e.g. before the others are retried, the entry is rewritten as a new record for the remaining recipients.
+ * A spool directory is locked for the lifetime of its spool, so that it cannot be shared by concurrent transports, nor processes.
+ * To enable spooling use the {@link net.sf.hajavamail.TransportProxy#SPOOL_DIRECTORY} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class MessageSpool
+{
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String LOCK_FILE = "spool.lock";
+	private static final byte PENDING = 0;
+	private static final byte DELIVERED = 1;
+	// length + state + checksum + envelope length
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 4 + 4;
+	private static final int CHECKSUM_OFFSET = 4 + 1;
+
+	private final Session session;
+	private final Path directory;
+	private final int segmentSize;
+	private final ConcurrentLinkedQueue<Segment> segmentQueue = new ConcurrentLinkedQueue<>();
+	private final List<Entry> recoveredList = new ArrayList<>();
+	private final FileChannel lockChannel;
+	// Guarded by this spool
+	private long nextSequence = 0;
+	private Segment activeSegment;
+	private boolean closed = false;
+
+	/**
+	 * Opens the spool in the specified directory, recovering any undelivered records of previous runs.
+	 * @param session the session of spooled messages
+	 * @param directory the spool directory, created if necessary
+	 * @param segmentSize the size, in bytes, of each segment file
+	 * @throws MessagingException if the spool could not be opened, or is in use
+	 */
+	MessageSpool(Session session, Path directory, int segmentSize) throws MessagingException
+	{
+		this.session = session;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		try
+		{
+			Files.createDirectories(directory);
+
+			this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to open spool directory " + directory, e);
+		}
+
+		try
+		{
+			if (lock(this.lockChannel) == null)
+			{
+				throw new MessagingException("Spool directory " + directory + " is in use by another transport");
+			}
+
+			this.recover();
+		}
+		catch (IOException e)
+		{
+			this.close();
+
+			throw new MessagingException("Failed to open spool directory " + directory, e);
+		}
+		catch (MessagingException e)
+		{
+			this.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Locks the specified channel, unless already locked, either by another process, or within this process.
+	 */
+	private static FileLock lock(FileChannel channel) throws IOException
+	{
+		try
+		{
+			return channel.tryLock();
+		}
+		catch (OverlappingFileLockException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the undelivered entries recovered when this spool was opened.
+	 * The caller is responsible for resending these entries, and marking them as delivered.
+	 * @return a list of spool entries
+	 */
+	List<Entry> getRecoveredEntries()
+	{
+		return this.recoveredList;
+	}
+
+	/**
+	 * Appends the specified message and recipients to the journal.
+	 * The message is serialized outside of the append lock, so concurrent producers only contend for the copy into the journal.
+	 * @param message a JavaMail message
+	 * @param addresses addresses to which to send this message
+	 * @return the journal entry, whose message is parsed from the journal
+	 * @throws MessagingException if the message could not be spooled
+	 */
+	Entry append(MimeMessage message, Address[] addresses) throws MessagingException
+	{
+		RecordOutputStream output = new RecordOutputStream(addresses);
+
+		try
+		{
+			message.writeTo(output);
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to serialize message", e);
+		}
+
+		return this.append(output);
+	}
+
+	private Entry append(RecordOutputStream output) throws MessagingException
+	{
+		Segment segment;
+		int offset;
+
+		try
+		{
+			synchronized (this)
+			{
+				if (this.closed)
+				{
+					throw new MessagingException("Spool " + this.directory + " is closed");
+				}
+
+				int size = output.size();
+
+				// Leave room for the end of segment marker
+				if ((this.activeSegment == null) || (this.activeSegment.position + size + 4 > this.activeSegment.buffer.capacity()))
+				{
+					this.roll(size + 4);
+				}
+
+				segment = this.activeSegment;
+				offset = segment.position;
+
+				// Write the length up front, so that recovery can skip over this record if it is never completed
+				segment.buffer.putInt(offset, size - 4);
+				segment.pending.incrementAndGet();
+				segment.position += size;
+				segment.dirty = true;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MessagingException("Failed to create spool segment", e);
+		}
+
+		output.writeTo(segment.buffer, offset);
+
+		return this.createEntry(segment, offset);
+	}
+
+	/**
+	 * Flushes all modified segments to disk.
+	 * A segment that fails to flush is logged, and retried by the next sync, so that periodic syncs never stop.
+	 */
+	void sync()
+	{
+		for (Segment segment: this.segmentQueue)
+		{
+			if (segment.dirty)
+			{
+				segment.dirty = false;
+
+				try
+				{
+					segment.buffer.force();
+				}
+				catch (UncheckedIOException e)
+				{
+					segment.dirty = true;
+
+					TransportProxy.log.error("Failed to sync spool segment " + segment.path, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flushes and closes this spool, and unlocks its directory.  Undelivered entries will be recovered when the spool is next opened.
+	 * Entries completing after the spool closed are left as they are, as the directory may already be in use by the next spool.
+	 */
+	void close()
+	{
+		synchronized (this)
+		{
+			this.closed = true;
+		}
+
+		this.sync();
+
+		for (Segment segment: this.segmentQueue)
+		{
+			segment.close();
+		}
+
+		this.segmentQueue.clear();
+
+		try
+		{
+			// Releases the lock
+			this.lockChannel.close();
+		}
+		catch (IOException e)
+		{
+			TransportProxy.log.warn("Failed to unlock spool directory " + this.directory, e);
+		}
+	}
+
+	private synchronized boolean isClosed()
+	{
+		return this.closed;
+	}
+
+	private void recover() throws IOException
+	{
+		Map<Long, Path> pathMap = new TreeMap<>();
+
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			for (Path path: paths)
+			{
+				String name = path.getFileName().toString();
+
+				pathMap.put(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+			}
+		}
+
+		for (Map.Entry<Long, Path> pathEntry: pathMap.entrySet())
+		{
+			this.nextSequence = pathEntry.getKey() + 1;
+
+			Segment segment = new Segment(pathEntry.getValue(), -1);
+			ByteBuffer buffer = segment.buffer;
+			int offset = 0;
+
+			while (offset + RECORD_HEADER_SIZE <= buffer.capacity())
+			{
+				int length = buffer.getInt(offset);
+
+				if ((length <= 0) || (offset + 4 + length > buffer.capacity()))
+				{
+					break;
+				}
+
+				if (!verify(buffer, offset, length))
+				{
+					TransportProxy.log.warn("Skipping incomplete spool record at offset " + offset + " of " + segment.path);
+				}
+				else if (buffer.get(offset + 4) == PENDING)
+				{
+					try
+					{
+						segment.pending.incrementAndGet();
+
+						this.recoveredList.add(this.createEntry(segment, offset));
+					}
+					catch (MessagingException e)
+					{
+						TransportProxy.log.error("Discarding unreadable spool record at offset " + offset + " of " + segment.path, e);
+
+						buffer.put(offset + 4, DELIVERED);
+						segment.pending.decrementAndGet();
+					}
+				}
+
+				offset += 4 + length;
+			}
+
+			segment.position = offset;
+			this.segmentQueue.add(segment);
+
+			// Never append to recovered segments
+			segment.seal(this.segmentQueue);
+		}
+
+		if (!this.recoveredList.isEmpty())
+		{
+			TransportProxy.log.info("Recovered " + this.recoveredList.size() + " undelivered messages from spool " + this.directory);
+		}
+	}
+
+	/**
+	 * Indicates whether the checksum of the specified record matches its content, i.e. whether the record was completely written.
+	 */
+	private static boolean verify(ByteBuffer segmentBuffer, int offset, int length)
+	{
+		ByteBuffer buffer = segmentBuffer.duplicate();
+
+		buffer.limit(offset + 4 + length);
+		buffer.position(offset + CHECKSUM_OFFSET + 4);
+
+		return buffer.getInt(offset + CHECKSUM_OFFSET) == checksum(buffer);
+	}
+
+	private static int checksum(ByteBuffer buffer)
+	{
+		CRC32 crc = new CRC32();
+
+		crc.update(buffer);
+
+		return (int) crc.getValue();
+	}
+
+	private Entry createEntry(Segment segment, int offset) throws MessagingException
+	{
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int length = buffer.getInt(offset);
+		int envelopeLength = buffer.getInt(offset + CHECKSUM_OFFSET + 4);
+		byte[] envelope = new byte[envelopeLength];
+
+		buffer.position(offset + RECORD_HEADER_SIZE);
+		buffer.get(envelope);
+
+		int messageOffset = offset + RECORD_HEADER_SIZE + envelopeLength;
+
+		buffer.limit(offset + 4 + length);
+		buffer.position(messageOffset);
+
+		Address[] addresses = InternetAddress.parse(new String(envelope, StandardCharsets.UTF_8), false);
+		MimeMessage message = new MessageRenderer.RenderedMessage(this.session, new ByteBufferInputStream(buffer.slice()));
+
+		return new Entry(segment, offset, message, addresses);
+	}
+
+	/**
+	 * Seals the active segment and creates a new one, large enough for a record of the specified size.
+	 */
+	private void roll(int size) throws IOException
+	{
+		if (this.activeSegment != null)
+		{
+			this.activeSegment.seal(this.segmentQueue);
+		}
+
+		Path path = this.directory.resolve(SEGMENT_PREFIX + this.nextSequence + SEGMENT_SUFFIX);
+
+		this.nextSequence += 1;
+		this.activeSegment = new Segment(path, Math.max(size, this.segmentSize));
+		this.segmentQueue.add(this.activeSegment);
+	}
+
+	/**
+	 * A spooled message awaiting delivery.
+	 */
+	class Entry
+	{
+		private final MimeMessage message;
+		private final Address[] addresses;
+		private final AtomicBoolean delivered = new AtomicBoolean(false);
+		// The current record of this entry, and its recipients, guarded by this entry
+		private Segment segment;
+		private int offset;
+		private List<Address> pendingList;
+
+		Entry(Segment segment, int offset, MimeMessage message, Address[] addresses)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.message = message;
+			this.addresses = addresses;
+			this.pendingList = Arrays.asList(addresses);
+		}
+
+		/**
+		 * @return the spooled message, backed by the journal
+		 */
+		MimeMessage getMessage()
+		{
+			return this.message;
+		}
+
+		/**
+		 * @return the spooled recipients
+		 */
+		Address[] getAddresses()
+		{
+			return this.addresses;
+		}
+
+		/**
+		 * Marks this entry as delivered, so that it is not resent after a restart.
+		 */
+		synchronized void delivered()
+		{
+			if (this.delivered.compareAndSet(false, true))
+			{
+				release(this.segment, this.offset);
+			}
+		}
+
+		/**
+		 * Removes the specified recipients from this entry, e.g. those already sent to by a delivery that retries the others,
+		 * so that only the remaining recipients are resent after a restart.
+		 * The remaining recipients are appended as a new record before the current record is marked as delivered, so that a crash in between never loses them.
+		 * @param addresses recipients that no longer need this message
+		 */
+		synchronized void remove(Address[] addresses)
+		{
+			if (this.delivered.get() || MessageSpool.this.isClosed())
+			{
+				return;
+			}
+
+			List<Address> pendingList = new ArrayList<>(this.pendingList);
+
+			if (!pendingList.removeAll(Arrays.asList(addresses)))
+			{
+				return;
+			}
+
+			if (pendingList.isEmpty())
+			{
+				this.delivered();
+				return;
+			}
+
+			RecordOutputStream output = new RecordOutputStream(pendingList.toArray(new Address[pendingList.size()]));
+			ByteBuffer buffer = this.segment.buffer.duplicate();
+			int envelopeLength = buffer.getInt(this.offset + CHECKSUM_OFFSET + 4);
+
+			// Copy the serialized message of the current record, rather than serialize it again
+			buffer.limit(this.offset + 4 + buffer.getInt(this.offset));
+			buffer.position(this.offset + RECORD_HEADER_SIZE + envelopeLength);
+			output.write(buffer);
+
+			try
+			{
+				Entry replacement = MessageSpool.this.append(output);
+
+				release(this.segment, this.offset);
+
+				this.segment = replacement.segment;
+				this.offset = replacement.offset;
+				this.pendingList = pendingList;
+			}
+			catch (MessagingException e)
+			{
+				// The current record remains, so the removed recipients may receive the message again after a restart
+				TransportProxy.log.warn("Failed to remove delivered recipients from spool record at offset " + this.offset + " of " + this.segment.path, e);
+			}
+		}
+
+		/**
+		 * Marks the specified record as delivered, deleting its segment if this was its last pending record, unless the spool is closed.
+		 */
+		private void release(Segment segment, int offset)
+		{
+			synchronized (MessageSpool.this)
+			{
+				if (MessageSpool.this.closed)
+				{
+					return;
+				}
+
+				segment.buffer.put(offset + 4, DELIVERED);
+				segment.dirty = true;
+
+				if (segment.pending.decrementAndGet() == 0)
+				{
+					segment.release(MessageSpool.this.segmentQueue);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A memory-mapped journal file.
+	 */
+	private static class Segment
+	{
+		final Path path;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicBoolean deleted = new AtomicBoolean(false);
+		volatile boolean sealed = false;
+		volatile boolean dirty = false;
+		// Guarded by the spool
+		int position = 0;
+
+		/**
+		 * Maps the specified segment file, or, if a size is specified, creates it with that size.
+		 */
+		Segment(Path path, int size) throws IOException
+		{
+			this.path = path;
+			// Never map a segment file that already exists as a new segment
+			this.channel = (size < 0) ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, (size < 0) ? this.channel.size() : size);
+		}
+
+		void seal(ConcurrentLinkedQueue<Segment> segmentQueue)
+		{
+			this.sealed = true;
+
+			this.release(segmentQueue);
+		}
+
+		/**
+		 * Deletes this segment once it is sealed and has no pending records.
+		 */
+		void release(ConcurrentLinkedQueue<Segment> segmentQueue)
+		{
+			if (this.sealed && (this.pending.get() == 0) && this.deleted.compareAndSet(false, true))
+			{
+				segmentQueue.remove(this);
+
+				this.close();
+
+				try
+				{
+					Files.deleteIfExists(this.path);
+				}
+				catch (IOException e)
+				{
+					TransportProxy.log.warn("Failed to delete spool segment " + this.path, e);
+				}
+			}
+		}
+
+		void close()
+		{
+			try
+			{
+				this.channel.close();
+			}
+			catch (IOException e)
+			{
+				TransportProxy.log.warn("Failed to close spool segment " + this.path, e);
+			}
+		}
+	}
+
+	/**
+	 * Serializes a record, reserving space for its header.
+	 */
+	private static class RecordOutputStream extends ByteArrayOutputStream
+	{
+		private final int envelopeLength;
+
+		RecordOutputStream(Address[] addresses)
+		{
+			super(8192);
+
+			byte[] envelope = InternetAddress.toString(addresses).getBytes(StandardCharsets.UTF_8);
+
+			this.envelopeLength = envelope.length;
+			this.count = RECORD_HEADER_SIZE;
+			this.write(envelope, 0, envelope.length);
+		}
+
+		/**
+		 * Appends the remaining content of the specified buffer.
+		 */
+		void write(ByteBuffer buffer)
+		{
+			int length = buffer.remaining();
+
+			if (this.count + length > this.buf.length)
+			{
+				this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.count + length));
+			}
+
+			buffer.get(this.buf, this.count, length);
+			this.count += length;
+		}
+
+		/**
+		 * Copies this record into the specified segment buffer, whose length was already written.
+		 * The checksum is written last, so that a partially written record is never recovered.
+		 */
+		void writeTo(ByteBuffer segmentBuffer, int offset)
+		{
+			ByteBuffer buffer = segmentBuffer.duplicate();
+
+			buffer.position(offset + 4);
+			buffer.put(PENDING);
+			buffer.position(offset + CHECKSUM_OFFSET + 4);
+			buffer.putInt(this.envelopeLength);
+			buffer.put(this.buf, RECORD_HEADER_SIZE, this.count - RECORD_HEADER_SIZE);
+
+			buffer.limit(offset + this.count);
+			buffer.position(offset + CHECKSUM_OFFSET + 4);
+			buffer.putInt(offset + CHECKSUM_OFFSET, checksum(buffer));
+		}
+	}
+}
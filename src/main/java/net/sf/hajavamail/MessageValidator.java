@@ -0,0 +1,47 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Validates, and possibly repairs, messages before they are sent.
+ * Validators configured via the {@link net.sf.hajavamail.TransportProxy#VALIDATORS} session property run on the calling thread, before the message is accepted,
+ * and should therefore only inspect headers and structure, so that their cost does not grow with the size of the message.
+ * Validators configured via the {@link net.sf.hajavamail.TransportProxy#DEFERRED_VALIDATORS} session property run on a sender thread, before the first send attempt,
+ * and may inspect content; their failures complete the future of the send exceptionally.
+ * Implementations must declare a public constructor accepting the session {@link java.util.Properties}, or a public no-argument constructor.
+ * 
+ * @author  mathieu
+ * @since   1.1
+ */
+public interface MessageValidator
+{
+	/**
+	 * Validates the specified message prior to sending it to the specified addresses.
+	 * @param message JavaMail message to send
+	 * @param addresses an array of Addresses to which to send the message
+	 * @throws MessagingException if message is invalid
+	 */
+	public void validate(Message message, Address[] addresses) throws MessagingException;
+}
@@ -0,0 +1,155 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable point-in-time copy of the metrics of a {@link net.sf.hajavamail.TransportProxy}.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class MetricsSnapshot implements TransportMetricsMXBean
+{
+	private final int idleSenders;
+	private final int busySenders;
+	private final int idleConnectors;
+	private final int busyConnectors;
+	private final int queueDepth;
+	private final LatencySummary senderWait;
+	private final LatencySummary connectorWait;
+	private final long reconnects;
+	private final long deadConnections;
+	private final long sendFailures;
+	private final long throttledSends;
+	private final long retries;
+	private final List<HostMetrics> hosts;
+
+	/**
+	 * Constructs a new snapshot of the specified metrics.
+	 * @param metrics live metrics
+	 */
+	MetricsSnapshot(TransportMetricsMXBean metrics)
+	{
+		this.idleSenders = metrics.getIdleSenders();
+		this.busySenders = metrics.getBusySenders();
+		this.idleConnectors = metrics.getIdleConnectors();
+		this.busyConnectors = metrics.getBusyConnectors();
+		this.queueDepth = metrics.getQueueDepth();
+		this.senderWait = metrics.getSenderWait();
+		this.connectorWait = metrics.getConnectorWait();
+		this.reconnects = metrics.getReconnects();
+		this.deadConnections = metrics.getDeadConnections();
+		this.sendFailures = metrics.getSendFailures();
+		this.throttledSends = metrics.getThrottledSends();
+		this.retries = metrics.getRetries();
+		this.hosts = Collections.unmodifiableList(metrics.getHosts());
+	}
+
+	@Override
+	public int getIdleSenders()
+	{
+		return this.idleSenders;
+	}
+
+	@Override
+	public int getBusySenders()
+	{
+		return this.busySenders;
+	}
+
+	@Override
+	public int getIdleConnectors()
+	{
+		return this.idleConnectors;
+	}
+
+	@Override
+	public int getBusyConnectors()
+	{
+		return this.busyConnectors;
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		return this.queueDepth;
+	}
+
+	@Override
+	public LatencySummary getSenderWait()
+	{
+		return this.senderWait;
+	}
+
+	@Override
+	public LatencySummary getConnectorWait()
+	{
+		return this.connectorWait;
+	}
+
+	@Override
+	public long getReconnects()
+	{
+		return this.reconnects;
+	}
+
+	@Override
+	public long getDeadConnections()
+	{
+		return this.deadConnections;
+	}
+
+	@Override
+	public long getSendFailures()
+	{
+		return this.sendFailures;
+	}
+
+	@Override
+	public long getThrottledSends()
+	{
+		return this.throttledSends;
+	}
+
+	@Override
+	public long getRetries()
+	{
+		return this.retries;
+	}
+
+	@Override
+	public List<HostMetrics> getHosts()
+	{
+		return this.hosts;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "MetricsSnapshot[senders=" + this.idleSenders + " idle/" + this.busySenders + " busy, connectors=" + this.idleConnectors + " idle/" + this.busyConnectors + " busy, queue=" + this.queueDepth + ", sender wait=(" + this.senderWait + "), connector wait=(" + this.connectorWait + "), reconnects=" + this.reconnects + ", dead connections=" + this.deadConnections + ", send failures=" + this.sendFailures + ", throttled sends=" + this.throttledSends + ", retries=" + this.retries + ", hosts=" + this.hosts + "]";
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.MessagingException;
+
+/**
+ * JVM-wide registry of connector pools, shared by the transport proxies that connect to the same relays, with the same credentials.
+ * Each pool is an unshared {@link net.sf.hajavamail.TransportProxy}, which sharing proxies lease instead of connecting connectors of their own,
+ * so that the number of connections to a set of relays stays bounded, regardless of the number of proxies.
+ * Pools are reference counted, and closed once no proxy has leased them for an idle timeout.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class PoolRegistry
+{
+	// Guards the map, and the reference counts of its pools
+	private static final Map<Key, Pool> poolMap = new HashMap<>();
+
+	private PoolRegistry()
+	{
+		// Static registry
+	}
+
+	/**
+	 * Leases the pool of the specified key, creating and connecting it first, if necessary.
+	 * @param key identifies the relays, and credentials, of the pool
+	 * @param factory creates a connected pool
+	 * @param idleTimeout the number of milliseconds a new pool is kept open, once it is no longer leased
+	 * @return a lease, to be released once the pool is no longer needed
+	 * @throws MessagingException if the pool could not be connected
+	 */
+	static Lease lease(Key key, Factory factory, long idleTimeout) throws MessagingException
+	{
+		Pool pool;
+
+		synchronized (poolMap)
+		{
+			pool = poolMap.get(key);
+
+			if (pool == null)
+			{
+				pool = new Pool(key, idleTimeout);
+
+				poolMap.put(key, pool);
+			}
+
+			pool.references += 1;
+
+			if (pool.evictionFuture != null)
+			{
+				pool.evictionFuture.cancel(false);
+				pool.evictionFuture = null;
+			}
+		}
+
+		try
+		{
+			return new Lease(pool, pool.connect(factory));
+		}
+		catch (MessagingException | RuntimeException e)
+		{
+			release(pool);
+
+			throw e;
+		}
+	}
+
+	private static void release(Pool pool)
+	{
+		synchronized (poolMap)
+		{
+			pool.references -= 1;
+
+			if (pool.references > 0)
+			{
+				return;
+			}
+
+			TransportProxy proxy = pool.proxy;
+
+			if (proxy == null)
+			{
+				// Never connected
+				poolMap.remove(pool.key, pool);
+				return;
+			}
+
+			// Close on the executor of the pool, as closing waits for its scheduler, e.g. for deferred deliveries
+			pool.evictionFuture = proxy.scheduler.schedule(() -> proxy.executor.execute(() -> evict(pool)), pool.idleTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void evict(Pool pool)
+	{
+		synchronized (poolMap)
+		{
+			// Leased again in the meantime
+			if ((pool.references > 0) || (pool.evictionFuture == null))
+			{
+				return;
+			}
+
+			poolMap.remove(pool.key, pool);
+		}
+
+		TransportProxy.log.info("Closing idle shared pool " + pool.key);
+
+		try
+		{
+			pool.proxy.close();
+		}
+		catch (MessagingException e)
+		{
+			TransportProxy.log.warn("Failed to close shared pool " + pool.key, e);
+		}
+	}
+
+	/**
+	 * Creates a connected pool.
+	 */
+	interface Factory
+	{
+		TransportProxy create() throws MessagingException;
+	}
+
+	/**
+	 * Identifies a pool by the protocol, relay hosts, port and credentials of its connections.
+	 * Credentials are part of the key, so that proxies never send via connections authenticated for another user.
+	 */
+	static class Key
+	{
+		private final String protocol;
+		private final String host;
+		private final int port;
+		private final String user;
+		private final String password;
+
+		Key(String protocol, String host, int port, String user, String password)
+		{
+			this.protocol = protocol;
+			this.host = host;
+			this.port = port;
+			this.user = user;
+			this.password = password;
+		}
+
+		@Override
+		public boolean equals(Object object)
+		{
+			if (!(object instanceof Key))
+			{
+				return false;
+			}
+
+			Key key = (Key) object;
+
+			return Objects.equals(this.protocol, key.protocol) && Objects.equals(this.host, key.host) && (this.port == key.port) && Objects.equals(this.user, key.user) && Objects.equals(this.password, key.password);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(this.protocol, this.host, this.port, this.user);
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			// Never expose the password
+			return this.protocol + "://" + ((this.user != null) ? this.user + "@" : "") + this.host + ((this.port >= 0) ? ":" + this.port : "");
+		}
+	}
+
+	/**
+	 * A shared pool, along with its reference count.
+	 */
+	private static class Pool
+	{
+		final Key key;
+		final long idleTimeout;
+		volatile TransportProxy proxy;
+		// Guarded by the pool map
+		int references = 0;
+		ScheduledFuture<?> evictionFuture;
+
+		Pool(Key key, long idleTimeout)
+		{
+			this.key = key;
+			this.idleTimeout = idleTimeout;
+		}
+
+		/**
+		 * Connects this pool, unless already connected.  Concurrent leases of a new pool wait for the first to connect it.
+		 */
+		synchronized TransportProxy connect(Factory factory) throws MessagingException
+		{
+			if (this.proxy == null)
+			{
+				this.proxy = factory.create();
+			}
+
+			return this.proxy;
+		}
+	}
+
+	/**
+	 * A lease of a shared pool.  Running a lease releases it, at most once, so that it can double as the cleanup action of the leasing proxy.
+	 * Must not reference the leasing proxy.
+	 */
+	static class Lease implements Runnable
+	{
+		private final Pool pool;
+		private final TransportProxy proxy;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		Lease(Pool pool, TransportProxy proxy)
+		{
+			this.pool = pool;
+			this.proxy = proxy;
+		}
+
+		/**
+		 * @return the leased pool
+		 */
+		TransportProxy getProxy()
+		{
+			return this.proxy;
+		}
+
+		@Override
+		public void run()
+		{
+			if (this.released.compareAndSet(false, true))
+			{
+				release(this.pool);
+			}
+		}
+	}
+}
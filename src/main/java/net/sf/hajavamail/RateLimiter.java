@@ -0,0 +1,223 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keyed token buckets, used to throttle sends per destination domain or per relay host.
+ * Each bucket refills at a configurable rate, in sends per second, up to a burst capacity.
+ * Buckets are implemented as a generic cell rate algorithm, i.e. as the theoretical arrival time of the next send,
+ * so that refilling a bucket needs no timer, and a bucket is a single long.
+ * Buckets are partitioned into lock stripes by key, so that sends to different keys rarely contend.
+ * Buckets that have refilled completely are indistinguishable from new buckets, and are evicted once a stripe grows beyond its bound.
+ * If no bucket of a full stripe has refilled, its least recently used bucket is evicted instead, so that a stripe never exceeds its bound.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class RateLimiter
+{
+	private static final int STRIPES = 16;
+	private static final int MAX_STRIPE_SIZE = 1024;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final long defaultInterval;
+	private final Map<String, Long> intervalMap;
+	private final int burst;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/**
+	 * Constructs a new RateLimiter.
+	 * @param defaultRate the rate, in sends per second, of keys without a specific rate, or 0 if such keys are not throttled
+	 * @param rateMap the specific rates, in sends per second, of individual keys
+	 * @param burst the number of sends a full bucket admits without delay
+	 */
+	RateLimiter(double defaultRate, Map<String, Double> rateMap, int burst)
+	{
+		this.defaultInterval = interval(defaultRate);
+		this.intervalMap = new HashMap<>();
+		this.burst = Math.max(burst, 1);
+
+		for (Map.Entry<String, Double> entry: rateMap.entrySet())
+		{
+			this.intervalMap.put(entry.getKey(), interval(entry.getValue()));
+		}
+
+		for (int i = 0; i < STRIPES; ++i)
+		{
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Creates a rate limiter from the specified session properties, if any rate is configured.
+	 * The default rate is configured via the specified rate property, and the rate of an individual key via the rate property suffixed by "." and the key.
+	 * @param properties session properties
+	 * @param rateProperty the name of the rate property
+	 * @param burstProperty the name of the burst property
+	 * @return a rate limiter, or null if no rate is configured
+	 */
+	static RateLimiter create(Properties properties, String rateProperty, String burstProperty)
+	{
+		double defaultRate = Double.parseDouble(properties.getProperty(rateProperty, "0"));
+		String prefix = rateProperty + ".";
+		Map<String, Double> rateMap = new HashMap<>();
+
+		for (String name: properties.stringPropertyNames())
+		{
+			if (name.startsWith(prefix))
+			{
+				// Keys are canonical, i.e. lower case, domain and host names
+				rateMap.put(name.substring(prefix.length()).toLowerCase(Locale.ROOT), Double.valueOf(properties.getProperty(name)));
+			}
+		}
+
+		if ((defaultRate <= 0) && rateMap.isEmpty())
+		{
+			return null;
+		}
+
+		return new RateLimiter(defaultRate, rateMap, Integer.parseInt(properties.getProperty(burstProperty, "1")));
+	}
+
+	/**
+	 * Takes a token from the bucket of the specified key, reserving one for a future send if the bucket is empty.
+	 * A send that reserved a token may proceed after the returned delay, without taking another.
+	 * @param key a domain or host name
+	 * @return the number of nanoseconds to wait before sending, or 0 if the send may proceed immediately
+	 */
+	long reserve(String key)
+	{
+		return this.acquire(key, true);
+	}
+
+	/**
+	 * Takes a token from the bucket of the specified key, if one is available.
+	 * @param key a domain or host name
+	 * @return 0 if a token was taken, otherwise the number of nanoseconds until a token becomes available
+	 */
+	long tryAcquire(String key)
+	{
+		return this.acquire(key, false);
+	}
+
+	private long acquire(String key, boolean reserve)
+	{
+		Long specificInterval = this.intervalMap.get(key);
+		long interval = (specificInterval != null) ? specificInterval.longValue() : this.defaultInterval;
+
+		if (interval == 0)
+		{
+			return 0;
+		}
+
+		// Sends within this tolerance of the theoretical arrival time correspond to tokens left in the bucket
+		long tolerance = (this.burst - 1) * interval;
+		Stripe stripe = this.stripes[HashRing.hash(key) & (STRIPES - 1)];
+
+		synchronized (stripe)
+		{
+			long now = System.nanoTime();
+			long[] arrival = stripe.bucketMap.get(key);
+
+			if (arrival == null)
+			{
+				if (stripe.bucketMap.size() >= MAX_STRIPE_SIZE)
+				{
+					stripe.evict(now);
+				}
+
+				arrival = new long[] { now };
+				stripe.bucketMap.put(key, arrival);
+			}
+
+			long next = Math.max(arrival[0] - now, 0);
+			long delay = Math.max(next - tolerance, 0);
+
+			if ((delay == 0) || reserve)
+			{
+				arrival[0] = now + next + interval;
+			}
+
+			return delay;
+		}
+	}
+
+	/**
+	 * @return the number of buckets currently tracked
+	 */
+	int size()
+	{
+		int size = 0;
+
+		for (Stripe stripe: this.stripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.bucketMap.size();
+			}
+		}
+
+		return size;
+	}
+
+	private static long interval(double rate)
+	{
+		return (rate > 0) ? Math.max((long) (NANOS_PER_SECOND / rate), 1) : 0;
+	}
+
+	/**
+	 * Buckets guarded by a common lock.
+	 */
+	private static class Stripe
+	{
+		// Theoretical arrival time of the next send, relative to System.nanoTime(), in access order
+		final Map<String, long[]> bucketMap = new LinkedHashMap<>(16, 0.75f, true);
+
+		void evict(long now)
+		{
+			int size = this.bucketMap.size();
+			Iterator<long[]> arrivals = this.bucketMap.values().iterator();
+
+			while (arrivals.hasNext())
+			{
+				if (arrivals.next()[0] - now <= 0)
+				{
+					arrivals.remove();
+				}
+			}
+
+			if (this.bucketMap.size() == size)
+			{
+				// Iteration order is least recently used first
+				arrivals = this.bucketMap.values().iterator();
+				arrivals.next();
+				arrivals.remove();
+			}
+		}
+	}
+}
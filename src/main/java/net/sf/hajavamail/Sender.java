@@ -35,6 +35,7 @@ public interface Sender
 {
 	/**
 	 * Sends the specified message to the specified addresses.
+	 * Sender strategies may invoke this method several times for a single message, e.g. once per address group.
 	 * @param message a JavaMail message
 	 * @param addresses addresses to which to send this message
 	 * @throws MessagingException if message cannot be sent.
@@ -26,6 +26,8 @@ import javax.mail.MessagingException;
 
 /**
  * To configure a specific sender strategy use the {@link net.sf.hajavamail.TransportProxy#SENDER_STRATEGY} session property.
+ * Implementations must declare a public constructor accepting the session {@link java.util.Properties}, or a public no-argument constructor.
+ * Implementations that are {@link java.lang.AutoCloseable} are closed along with the transport proxy.
  * 
  * @author  Paul Ferraro
  * @version $Revision: 1.3 $
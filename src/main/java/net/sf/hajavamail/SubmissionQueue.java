@@ -0,0 +1,307 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.mail.MessagingException;
+
+/**
+ * Bounded queue of sends waiting for an idle sender, which applies a {@link net.sf.hajavamail.BackpressurePolicy} when full.
+ * The queue is only consulted while all senders are busy, so it stays off the send path of an unsaturated transport.
+ *
+ * @author  mathieu
+ * @since   1.1
+ * @param <T> the queued task type
+ */
+class SubmissionQueue<T>
+{
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = this.lock.newCondition();
+	// Guarded by the lock.  Under the DROP_OLDEST_BULK policy, bulk tasks are queued separately, so that the oldest is found without a scan
+	private final Deque<Queued<T>> deque = new ArrayDeque<>();
+	private final Deque<Queued<T>> bulkDeque = new ArrayDeque<>();
+	private long nextSequence = 0;
+	// Written under the lock, so that isEmpty() and size() need not acquire it
+	private volatile int count = 0;
+	private final int capacity;
+	private final BackpressurePolicy policy;
+	private final long timeout;
+	private final Predicate<T> bulkPredicate;
+	private final Consumer<T> dropHandler;
+
+	/**
+	 * Constructs a new SubmissionQueue.
+	 * @param capacity the maximum number of queued tasks
+	 * @param policy the policy applied when the queue is full
+	 * @param timeout the maximum number of milliseconds to block for room in the queue, or 0 to wait forever
+	 * @param bulkPredicate identifies bulk tasks, which may be dropped
+	 * @param dropHandler notified of tasks dropped from the queue
+	 */
+	SubmissionQueue(int capacity, BackpressurePolicy policy, long timeout, Predicate<T> bulkPredicate, Consumer<T> dropHandler)
+	{
+		this.capacity = capacity;
+		this.policy = policy;
+		this.timeout = timeout;
+		this.bulkPredicate = bulkPredicate;
+		this.dropHandler = dropHandler;
+	}
+
+	/**
+	 * Queues the specified task, applying the backpressure policy if the queue is full.
+	 * @param task a task
+	 * @return true, if the task was queued, false if the caller should run the task itself
+	 * @throws MessagingException if the task was rejected
+	 */
+	boolean offer(T task) throws MessagingException
+	{
+		// Classify outside of the lock, as the predicate may inspect the task
+		boolean bulk = (this.policy == BackpressurePolicy.DROP_OLDEST_BULK) && this.bulkPredicate.test(task);
+
+		if (this.tryOffer(task, bulk))
+		{
+			return true;
+		}
+
+		switch (this.policy)
+		{
+			case FAIL:
+			{
+				throw new MessagingException("Submission queue is full (" + this.capacity + " sends)");
+			}
+			case CALLER_RUNS:
+			{
+				return false;
+			}
+			case DROP_OLDEST_BULK:
+			{
+				T droppedTask = null;
+				boolean queued = false;
+
+				this.lock.lock();
+
+				try
+				{
+					if (this.count == this.capacity)
+					{
+						Queued<T> dropped = this.bulkDeque.pollFirst();
+
+						if (dropped != null)
+						{
+							droppedTask = dropped.task;
+							this.count -= 1;
+						}
+					}
+
+					// Another thread may have dequeued a task in the meantime
+					if (this.count < this.capacity)
+					{
+						this.enqueue(task, bulk);
+						queued = true;
+					}
+					else if (bulk)
+					{
+						throw new MessagingException("Submission queue is full (" + this.capacity + " sends), rejecting bulk message");
+					}
+				}
+				finally
+				{
+					this.lock.unlock();
+				}
+
+				if (droppedTask != null)
+				{
+					// Notify outside of the lock, as the handler completes the dropped task
+					this.dropHandler.accept(droppedTask);
+				}
+
+				return queued || this.block(task, bulk);
+			}
+			default:
+			{
+				return this.block(task, false);
+			}
+		}
+	}
+
+	/**
+	 * Queues the specified task if there is room, without applying the backpressure policy.
+	 * @param task a task
+	 * @return true, if the task was queued, false if the queue is full
+	 */
+	boolean tryOffer(T task)
+	{
+		return this.tryOffer(task, (this.policy == BackpressurePolicy.DROP_OLDEST_BULK) && this.bulkPredicate.test(task));
+	}
+
+	private boolean tryOffer(T task, boolean bulk)
+	{
+		this.lock.lock();
+
+		try
+		{
+			if (this.count == this.capacity)
+			{
+				return false;
+			}
+
+			this.enqueue(task, bulk);
+
+			return true;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next queued task, or null if the queue is empty
+	 */
+	T poll()
+	{
+		if (this.count == 0)
+		{
+			return null;
+		}
+
+		this.lock.lock();
+
+		try
+		{
+			Queued<T> first = this.deque.peekFirst();
+			Queued<T> bulkFirst = this.bulkDeque.peekFirst();
+
+			if ((first == null) && (bulkFirst == null))
+			{
+				return null;
+			}
+
+			// Tasks leave in the order they were queued, regardless of which deque holds them
+			Queued<T> next = ((bulkFirst == null) || ((first != null) && (first.sequence < bulkFirst.sequence))) ? this.deque.pollFirst() : this.bulkDeque.pollFirst();
+
+			this.count -= 1;
+			this.notFull.signal();
+
+			return next.task;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true, if no tasks are queued, false otherwise
+	 */
+	boolean isEmpty()
+	{
+		return this.count == 0;
+	}
+
+	/**
+	 * @return the number of queued tasks
+	 */
+	int size()
+	{
+		return this.count;
+	}
+
+	private void enqueue(T task, boolean bulk)
+	{
+		Queued<T> queued = new Queued<>(task, this.nextSequence++);
+
+		if (bulk)
+		{
+			this.bulkDeque.addLast(queued);
+		}
+		else
+		{
+			this.deque.addLast(queued);
+		}
+
+		this.count += 1;
+	}
+
+	private boolean block(T task, boolean bulk) throws MessagingException
+	{
+		try
+		{
+			this.lock.lockInterruptibly();
+
+			try
+			{
+				long nanos = TimeUnit.MILLISECONDS.toNanos(this.timeout);
+
+				while (this.count == this.capacity)
+				{
+					if (this.timeout <= 0)
+					{
+						this.notFull.await();
+					}
+					else if (nanos <= 0)
+					{
+						throw new MessagingException("Timed out after " + this.timeout + " ms waiting for room in submission queue");
+					}
+					else
+					{
+						nanos = this.notFull.awaitNanos(nanos);
+					}
+				}
+
+				this.enqueue(task, bulk);
+
+				return true;
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+
+			throw new MessagingException("Interrupted while waiting for room in submission queue", e);
+		}
+	}
+
+	/**
+	 * A queued task, along with its position in the queue.
+	 */
+	private static class Queued<T>
+	{
+		final T task;
+		final long sequence;
+
+		Queued(T task, long sequence)
+		{
+			this.task = task;
+			this.sequence = sequence;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel, used to hold deferred deliveries (i.e. throttled sends and retries) until they are due.
+ * Scheduling a task costs constant time, regardless of the number of pending tasks, and takes no lock:
+ * new tasks are handed to the wheel via a lock-free queue, and only the tick thread touches the buckets of the wheel.
+ * Each bucket holds the tasks due in a given tick, modulo the size of the wheel, along with the number of revolutions remaining until each task is due.
+ * Tasks are therefore expired at tick granularity, never early.
+ * The wheel only ticks while it holds tasks, so that an idle transport does not wake up its scheduler.
+ * Stopping the wheel returns the tasks that were not yet due, so that their owner can complete them.
+ *
+ * @author  mathieu
+ * @since   1.1
+ * @param <T> the task type
+ */
+class TimingWheel<T>
+{
+	private final long tick;
+	private final int mask;
+	private final Queue<Timeout<T>>[] buckets;
+	private final Queue<Timeout<T>> newTimeoutQueue = new ConcurrentLinkedQueue<>();
+	private final Consumer<T> expiry;
+	private final long start = System.nanoTime();
+	private final ScheduledExecutorService scheduler;
+	// Number of tasks scheduled, but not yet expired
+	private final AtomicInteger pending = new AtomicInteger();
+	// Only the thread that sets this flag may start ticking
+	private final AtomicBoolean ticking = new AtomicBoolean();
+	private volatile ScheduledFuture<?> future;
+	private volatile boolean stopped = false;
+	// Number of ticks processed so far, only accessed by the tick thread
+	private long ticks = 0;
+	// Indicates whether ticks were skipped while the wheel was empty, only accessed by the tick thread
+	private boolean idle = false;
+
+	/**
+	 * Constructs a new TimingWheel, which starts ticking once a task is scheduled.
+	 * @param scheduler the scheduler that drives the ticks of this wheel
+	 * @param tick the duration of a tick
+	 * @param unit the unit of the tick duration
+	 * @param size the number of buckets, rounded up to a power of 2
+	 * @param expiry invoked, on the tick thread, with each task that is due
+	 */
+	TimingWheel(ScheduledExecutorService scheduler, long tick, TimeUnit unit, int size, Consumer<T> expiry)
+	{
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1);
+		@SuppressWarnings("unchecked")
+		Queue<Timeout<T>>[] buckets = (Queue<Timeout<T>>[]) new Queue<?>[capacity];
+
+		this.scheduler = scheduler;
+		this.tick = unit.toNanos(tick);
+		this.mask = capacity - 1;
+		this.buckets = buckets;
+		this.expiry = expiry;
+
+		for (int i = 0; i < capacity; ++i)
+		{
+			this.buckets[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Schedules the specified task to expire after the specified delay.
+	 * @param task a task
+	 * @param delay a delay
+	 * @param unit the unit of the delay
+	 * @return true, if the task was scheduled, or false if this wheel was stopped
+	 */
+	boolean schedule(T task, long delay, TimeUnit unit)
+	{
+		if (this.stopped)
+		{
+			return false;
+		}
+
+		Timeout<T> timeout = new Timeout<>(task, System.nanoTime() - this.start + unit.toNanos(delay));
+
+		this.pending.incrementAndGet();
+		this.newTimeoutQueue.add(timeout);
+
+		if (this.ticking.compareAndSet(false, true))
+		{
+			this.startTicking(this.tick);
+		}
+
+		// If the wheel was stopped concurrently, either this, or stop(), takes the task back
+		return !this.stopped || !this.newTimeoutQueue.remove(timeout);
+	}
+
+	/**
+	 * Stops this wheel.  Pending tasks will not expire.
+	 * @return the tasks that were scheduled, but not yet due
+	 */
+	synchronized List<T> stop()
+	{
+		this.stopped = true;
+
+		ScheduledFuture<?> future = this.future;
+
+		if (future != null)
+		{
+			future.cancel(false);
+		}
+
+		List<T> taskList = new ArrayList<>();
+
+		for (Queue<Timeout<T>> bucket: this.buckets)
+		{
+			for (Timeout<T> timeout: bucket)
+			{
+				taskList.add(timeout.task);
+			}
+
+			bucket.clear();
+		}
+
+		Timeout<T> timeout = this.newTimeoutQueue.poll();
+
+		while (timeout != null)
+		{
+			taskList.add(timeout.task);
+
+			timeout = this.newTimeoutQueue.poll();
+		}
+
+		return taskList;
+	}
+
+	/**
+	 * Processes every tick that has elapsed since the last invocation.
+	 */
+	synchronized void advance()
+	{
+		long now = System.nanoTime() - this.start;
+
+		// Buckets were empty while the wheel stood still, so skip the ticks it missed
+		if (this.idle)
+		{
+			this.ticks = Math.max(this.ticks, now / this.tick);
+			this.idle = false;
+		}
+
+		// The scheduler may run late, so catch up on missed ticks
+		while (!this.stopped && (this.ticks * this.tick <= now))
+		{
+			this.transfer();
+
+			Queue<Timeout<T>> bucket = this.buckets[(int) (this.ticks & this.mask)];
+
+			for (int i = bucket.size(); i > 0; --i)
+			{
+				Timeout<T> timeout = bucket.poll();
+
+				if (timeout.rounds > 0)
+				{
+					timeout.rounds -= 1;
+					bucket.add(timeout);
+				}
+				else
+				{
+					this.pending.decrementAndGet();
+
+					try
+					{
+						this.expiry.accept(timeout.task);
+					}
+					catch (RuntimeException e)
+					{
+						TransportProxy.log.error("Failed to run deferred task", e);
+					}
+				}
+			}
+
+			this.ticks += 1;
+		}
+
+		if (this.pending.get() == 0)
+		{
+			this.stopTicking();
+		}
+		else
+		{
+			// Schedule the next tick on its boundary, so that processing time does not accumulate as drift
+			this.startTicking(this.ticks * this.tick - now);
+		}
+	}
+
+	/**
+	 * Schedules the next tick.
+	 * Each tick schedules the next one, rather than ticking at a fixed rate,
+	 * so that a tick never depends on the future of a ticking started concurrently, which may not be assigned yet.
+	 * @param delay the delay of the next tick, in nanoseconds
+	 */
+	private void startTicking(long delay)
+	{
+		if (this.stopped)
+		{
+			return;
+		}
+
+		try
+		{
+			this.future = this.scheduler.schedule(this::advance, delay, TimeUnit.NANOSECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// The scheduler was shut down, along with the owner of this wheel, which takes back pending tasks via stop()
+			this.ticking.set(false);
+		}
+	}
+
+	/**
+	 * Stops ticking while this wheel is empty.  Invoked on the tick thread.
+	 */
+	private void stopTicking()
+	{
+		// Not scheduling the next tick suffices, since ticks do not repeat
+		this.idle = true;
+		this.ticking.set(false);
+
+		// A task may have been scheduled after the wheel was found empty, but before the flag was cleared
+		if ((this.pending.get() > 0) && this.ticking.compareAndSet(false, true))
+		{
+			this.startTicking(this.tick);
+		}
+	}
+
+	/**
+	 * Moves newly scheduled tasks into the bucket of the tick in which they are due.
+	 */
+	private void transfer()
+	{
+		Timeout<T> timeout = this.newTimeoutQueue.poll();
+
+		while (timeout != null)
+		{
+			// Round up, so that tasks never expire early, but not into the past
+			long due = Math.max((timeout.deadline + this.tick - 1) / this.tick, this.ticks);
+
+			timeout.rounds = (due - this.ticks) / this.buckets.length;
+
+			this.buckets[(int) (due & this.mask)].add(timeout);
+
+			timeout = this.newTimeoutQueue.poll();
+		}
+	}
+
+	/**
+	 * A scheduled task and its deadline.
+	 */
+	private static class Timeout<T>
+	{
+		final T task;
+		// Relative to the start of the wheel
+		final long deadline;
+		// Remaining revolutions of the wheel, only accessed by the tick thread
+		long rounds;
+
+		Timeout(T task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a {@link net.sf.hajavamail.TransportProxy}.
+ * Gauges are read from the pools on demand, while events are recorded into lock-free histograms and counters,
+ * which do not allocate on the send path, so that metrics can remain enabled in production.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+class TransportMetrics implements TransportMetricsMXBean
+{
+	private final int size;
+	private final IndexPool senderPool;
+	private final ConnectorPool connectorPool;
+	private final SubmissionQueue<?> submissionQueue;
+	private final LatencyHistogram senderWait = new LatencyHistogram();
+	private final LatencyHistogram connectorWait = new LatencyHistogram();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder deadConnections = new LongAdder();
+	private final LongAdder sendFailures = new LongAdder();
+	private final LongAdder throttledSends = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+
+	/**
+	 * Constructs a new TransportMetrics.
+	 * @param size the number of senders, and of connector slots
+	 * @param senderPool the pool of idle senders
+	 * @param connectorPool the pool of idle connectors
+	 * @param submissionQueue the queue of sends waiting for a sender
+	 */
+	TransportMetrics(int size, IndexPool senderPool, ConnectorPool connectorPool, SubmissionQueue<?> submissionQueue)
+	{
+		this.size = size;
+		this.senderPool = senderPool;
+		this.connectorPool = connectorPool;
+		this.submissionQueue = submissionQueue;
+	}
+
+	/**
+	 * Records the time a send waited for a sender.
+	 * @param nanos a duration, in nanoseconds
+	 */
+	void recordSenderWait(long nanos)
+	{
+		this.senderWait.record(nanos);
+	}
+
+	/**
+	 * Records the time a sender waited for a connector.
+	 * @param nanos a duration, in nanoseconds
+	 */
+	void recordConnectorWait(long nanos)
+	{
+		this.connectorWait.record(nanos);
+	}
+
+	void recordReconnect()
+	{
+		this.reconnects.increment();
+	}
+
+	void recordDeadConnection()
+	{
+		this.deadConnections.increment();
+	}
+
+	void recordSendFailure()
+	{
+		this.sendFailures.increment();
+	}
+
+	void recordThrottledSend()
+	{
+		this.throttledSends.increment();
+	}
+
+	void recordRetry()
+	{
+		this.retries.increment();
+	}
+
+	@Override
+	public int getIdleSenders()
+	{
+		return this.senderPool.available();
+	}
+
+	@Override
+	public int getBusySenders()
+	{
+		return this.size - this.senderPool.available();
+	}
+
+	@Override
+	public int getIdleConnectors()
+	{
+		return this.connectorPool.available();
+	}
+
+	@Override
+	public int getBusyConnectors()
+	{
+		return this.connectorPool.getActive() - this.connectorPool.available();
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		return this.submissionQueue.size();
+	}
+
+	@Override
+	public LatencySummary getSenderWait()
+	{
+		return this.senderWait.summarize();
+	}
+
+	@Override
+	public LatencySummary getConnectorWait()
+	{
+		return this.connectorWait.summarize();
+	}
+
+	@Override
+	public long getReconnects()
+	{
+		return this.reconnects.sum();
+	}
+
+	@Override
+	public long getDeadConnections()
+	{
+		return this.deadConnections.sum();
+	}
+
+	@Override
+	public long getSendFailures()
+	{
+		return this.sendFailures.sum();
+	}
+
+	@Override
+	public long getThrottledSends()
+	{
+		return this.throttledSends.sum();
+	}
+
+	@Override
+	public long getRetries()
+	{
+		return this.retries.sum();
+	}
+
+	@Override
+	public List<HostMetrics> getHosts()
+	{
+		int count = this.connectorPool.getHostCount();
+		List<HostMetrics> hostList = new ArrayList<>(count);
+
+		for (int i = 0; i < count; ++i)
+		{
+			hostList.add(this.connectorPool.getHostHealth(i).getMetrics());
+		}
+
+		return hostList;
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.List;
+
+/**
+ * Management interface of the metrics of a {@link net.sf.hajavamail.TransportProxy}.
+ * Registered with the platform MBean server if enabled via the {@link net.sf.hajavamail.TransportProxy#JMX_ENABLED} session property,
+ * and implemented by the snapshots returned by {@link net.sf.hajavamail.TransportProxy#getMetrics()}.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public interface TransportMetricsMXBean
+{
+	/**
+	 * @return the number of senders waiting for work
+	 */
+	int getIdleSenders();
+
+	/**
+	 * @return the number of senders delivering messages
+	 */
+	int getBusySenders();
+
+	/**
+	 * @return the number of connected connectors available for sending
+	 */
+	int getIdleConnectors();
+
+	/**
+	 * @return the number of connectors that are sending, or (re)connecting
+	 */
+	int getBusyConnectors();
+
+	/**
+	 * @return the number of sends waiting for an idle sender
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return a summary of the time sends spent waiting for a sender
+	 */
+	LatencySummary getSenderWait();
+
+	/**
+	 * @return a summary of the time senders spent waiting for a connector
+	 */
+	LatencySummary getConnectorWait();
+
+	/**
+	 * @return the number of connections reestablished after the first
+	 */
+	long getReconnects();
+
+	/**
+	 * @return the number of connections found dead, either by a send or by a keepalive probe
+	 */
+	long getDeadConnections();
+
+	/**
+	 * @return the number of sends that failed with a {@link javax.mail.SendFailedException}
+	 */
+	long getSendFailures();
+
+	/**
+	 * @return the number of sends deferred by a domain or relay rate limit
+	 */
+	long getThrottledSends();
+
+	/**
+	 * @return the number of sends retried for the addresses left unsent by a transient failure
+	 */
+	long getRetries();
+
+	/**
+	 * @return the metrics of each relay host
+	 */
+	List<HostMetrics> getHosts();
+}
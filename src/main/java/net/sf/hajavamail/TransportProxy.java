@@ -20,11 +20,38 @@
  */
 package net.sf.hajavamail;
 
-import java.io.IOException;
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -35,6 +62,12 @@ import javax.mail.Transport;
 import javax.mail.URLName;
 import javax.mail.event.TransportListener;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.smtp.SMTPTransport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -47,41 +80,225 @@ import org.apache.commons.logging.LogFactory;
 public class TransportProxy extends Transport
 {
 	public static final String POOL_SIZE = "mail.transport.pool-size";
+	public static final String POOL_MIN_SIZE = "mail.transport.pool-min-size";
+	public static final String POOL_MAX_SIZE = "mail.transport.pool-max-size";
+	public static final String POOL_IDLE_TIMEOUT = "mail.transport.pool-idle-timeout";
+	public static final String POOL_GROW_THRESHOLD = "mail.transport.pool-grow-threshold";
 	public static final String SENDER_STRATEGY = "mail.transport.sender-strategy";
+	public static final String VALIDATORS = "mail.transport.validators";
+	public static final String DEFERRED_VALIDATORS = "mail.transport.deferred-validators";
 	public static final String CONNECT_RETRY_PERIOD = "mail.transport.connect-retry-period";
 	public static final String CONNECT_TIMEOUT = "mail.transport.connect-timeout";
+	public static final String CONNECT_MODE = "mail.transport.connect-mode";
+	public static final String WARMUP = "mail.transport.warmup";
+	public static final String WARMUP_INTERVAL = "mail.transport.warmup-interval";
+	public static final String CLOSE_TIMEOUT = "mail.transport.close-timeout";
+	public static final String SHARED_POOL = "mail.transport.shared-pool";
+	public static final String SHARED_POOL_IDLE_TIMEOUT = "mail.transport.shared-pool-idle-timeout";
+	public static final String CONNECT_RETRY_INITIAL_PERIOD = "mail.transport.connect-retry-initial-period";
+	public static final String BREAKER_FAILURE_THRESHOLD = "mail.transport.breaker-failure-threshold";
+	public static final String KEEPALIVE_INTERVAL = "mail.transport.keepalive-interval";
+	public static final String JMX_ENABLED = "mail.transport.jmx-enabled";
+	public static final String EXECUTION_MODE = "mail.transport.execution-mode";
+	public static final String EXECUTOR_SIZE = "mail.transport.executor-size";
+	public static final String COALESCE_WINDOW = "mail.transport.coalesce-window";
+	public static final String COALESCE_MAX_RECIPIENTS = "mail.transport.coalesce-max-recipients";
+	public static final String MAX_MESSAGES_PER_CONNECTION = "mail.transport.max-messages-per-connection";
+	public static final String MAX_CONNECTION_AGE = "mail.transport.max-connection-age";
+	public static final String RENDER_ONCE = "mail.transport.render-once";
+	public static final String RENDER_FILE_THRESHOLD = "mail.transport.render-file-threshold";
+	public static final String SPOOL_DIRECTORY = "mail.transport.spool-directory";
+	public static final String SPOOL_SEGMENT_SIZE = "mail.transport.spool-segment-size";
+	public static final String SPOOL_SYNC_INTERVAL = "mail.transport.spool-sync-interval";
+	public static final String QUEUE_CAPACITY = "mail.transport.queue-capacity";
+	public static final String QUEUE_TIMEOUT = "mail.transport.queue-timeout";
+	public static final String BACKPRESSURE_POLICY = "mail.transport.backpressure-policy";
+	public static final String HOST_AFFINITY = "mail.transport.host-affinity";
+	public static final String AFFINITY_LOAD_FACTOR = "mail.transport.affinity-load-factor";
+	public static final String DOMAIN_RATE = "mail.transport.domain-rate";
+	public static final String DOMAIN_BURST = "mail.transport.domain-burst";
+	public static final String RELAY_RATE = "mail.transport.relay-rate";
+	public static final String RELAY_BURST = "mail.transport.relay-burst";
+	public static final String RETRY_INITIAL_DELAY = "mail.transport.retry-initial-delay";
+	public static final String RETRY_MAX_DELAY = "mail.transport.retry-max-delay";
+	public static final String RETRY_MAX_AGE = "mail.transport.retry-max-age";
 	
 	private static final String DEFAULT_SENDER_STRATEGY = SimpleSenderStrategy.class.getName();
+	private static final String DEFAULT_VALIDATORS = HeaderMessageValidator.class.getName();
 	private static final String DEFAULT_TRANSPORT_PROTOCOL = "smtp";
 	private static final int DEFAULT_CONNECT_RETRY_PERIOD = 60;
 	private static final int DEFAULT_POOL_SIZE = 1;
-	private static final int DEFAULT_CONNECT_TIMEOUT = 0;
+	private static final int DEFAULT_POOL_IDLE_TIMEOUT = 60;
+	private static final int DEFAULT_POOL_GROW_THRESHOLD = 10;
+	private static final int POOL_RESIZE_INTERVAL = 1000;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 30;
+	private static final String DEFAULT_CONNECT_MODE = ConnectMode.ONE.name();
+	private static final String DEFAULT_WARMUP = Warmup.EAGER.name();
+	private static final int DEFAULT_WARMUP_INTERVAL = 100;
+	private static final int DEFAULT_CONNECT_RETRY_INITIAL_PERIOD = 1000;
+	private static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 3;
+	private static final int DEFAULT_KEEPALIVE_INTERVAL = 0;
+	private static final long MIN_RECYCLE_INTERVAL = 100;
+	private static final String JMX_DOMAIN = "net.sf.hajavamail";
+	private static final String DEFAULT_EXECUTION_MODE = ExecutionMode.POOLED.name();
+	private static final int DEFAULT_COALESCE_WINDOW = 0;
+	private static final int DEFAULT_COALESCE_MAX_RECIPIENTS = 100;
+	private static final int DEFAULT_MAX_MESSAGES_PER_CONNECTION = 0;
+	private static final int DEFAULT_MAX_CONNECTION_AGE = 0;
+	private static final int DEFAULT_RENDER_FILE_THRESHOLD = 1024 * 1024;
+	private static final int DEFAULT_SPOOL_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int DEFAULT_SPOOL_SYNC_INTERVAL = 100;
+	private static final int DEFAULT_CLOSE_TIMEOUT = 30;
+	private static final int DEFAULT_SHARED_POOL_IDLE_TIMEOUT = 60;
+	private static final long DRAIN_POLL_INTERVAL = 10;
+	private static final String DEFAULT_BACKPRESSURE_POLICY = BackpressurePolicy.BLOCK.name();
+	private static final String DEFAULT_AFFINITY_LOAD_FACTOR = "1.25";
+	private static final int DOMAIN_CACHE_SIZE = 1024;
+	private static final int DEFAULT_RETRY_INITIAL_DELAY = 30000;
+	private static final int DEFAULT_RETRY_MAX_DELAY = 600000;
+	private static final int DEFAULT_RETRY_MAX_AGE = 3600;
+	private static final int DEFERRAL_TICK = 10;
+	private static final int DEFERRAL_WHEEL_SIZE = 512;
 	
 	static Log log = LogFactory.getLog(TransportProxy.class);
+	// Shared by all proxies, so that cleanup costs a single thread, and a single phantom reference per connect
+	static final Cleaner CLEANER = Cleaner.create();
 
 	long connectRetryPeriod;
+	private long connectRetryInitialPeriod;
+	private int breakerFailureThreshold;
 	private TransportConnector[] connectors;
 	private MessageSender[] senders;
-	private final List idleSenderList = new LinkedList();
-	private final List idleConnectorList = new LinkedList();
+	private IndexPool idleSenderPool;
+	private ConnectorPool idleConnectorPool;
 	private long connectTimeout;
+	private ConnectMode connectMode;
+	private Warmup warmup;
+	private long warmupInterval;
+	private IndexPool warmupPool;
+	private ScheduledFuture<?> warmupFuture;
 	private SenderStrategy senderStrategy = new SimpleSenderStrategy();
+	private MessageValidator[] validators = new MessageValidator[] { new HeaderMessageValidator() };
+	private MessageValidator[] deferredValidators = new MessageValidator[0];
+	private ExecutionMode executionMode;
+	private int executorSize;
+	ExecutorService executor;
+	ScheduledExecutorService scheduler;
+	private long coalesceWindow;
+	private int coalesceMaxRecipients;
+	private MessageCoalescer coalescer;
+	private int maxMessagesPerConnection;
+	private long maxConnectionAge;
+	private MessageRenderer renderer;
+	private String spoolDirectory;
+	private int spoolSegmentSize;
+	private long spoolSyncInterval;
+	private MessageSpool spool;
+	private SubmissionQueue<Delivery> submissionQueue;
+	private long keepAliveInterval;
+	private ScheduledFuture<?> keepAliveFuture;
+	private ScheduledFuture<?> recycleFuture;
+	private TransportMetrics metrics;
+	private boolean jmxEnabled;
+	private Duration closeTimeout;
+	private volatile boolean closing = false;
+	// Deliveries whose future is not yet complete
+	private final Set<Delivery> pendingDeliveries = ConcurrentHashMap.newKeySet();
+	private Resources resources;
+	private Cleaner.Cleanable cleanable;
+	private boolean shared;
+	private long sharedPoolIdleTimeout;
+	// The leased pool, to which a sharing proxy delegates its sends
+	private TransportProxy sharedProxy;
+	// Sends of a sharing proxy, whose futures are not yet complete
+	private final Map<CompletableFuture<DeliveryReport>, UndeliveredMessage> sharedSendMap = new ConcurrentHashMap<>();
+	private boolean hostAffinity;
+	private DomainCache domainCache;
+	private RateLimiter domainRateLimiter;
+	private RateLimiter relayRateLimiter;
+	private long retryInitialDelay;
+	private long retryMaxDelay;
+	private long retryMaxAge;
+	private TimingWheel<Delivery> deferralWheel;
+	private int[] hostIndexes;
+	private int[] hostOffsets;
+	private int[] hostMinSizes;
+	private long poolIdleTimeout;
+	private long poolGrowThreshold;
+	private final Object resizeLock = new Object();
+	private ScheduledFuture<?> resizeFuture;
+	private final LongAdder connectorWaitNanos = new LongAdder();
+	private final LongAdder connectorAcquisitions = new LongAdder();
 	
 	/**
 	 * Constructs a new TransportProxy.
+	 * If enabled via the {@link net.sf.hajavamail.TransportProxy#SHARED_POOL} session property, this proxy leases its connectors from a JVM-wide pool on connect,
+	 * shared with every other proxy connecting to the same relays with the same credentials, rather than owning connectors of its own.
 	 * @param session
 	 * @param url
 	 * @throws javax.mail.MessagingException
 	 */
 	public TransportProxy(Session session, URLName url) throws MessagingException
+	{
+		this(session, url, Boolean.parseBoolean(session.getProperty(SHARED_POOL)));
+	}
+	
+	/**
+	 * Constructs a new TransportProxy.
+	 * @param session
+	 * @param url
+	 * @param shared indicates whether this proxy leases a shared pool, or owns its connectors
+	 * @throws javax.mail.MessagingException
+	 */
+	TransportProxy(Session session, URLName url, boolean shared) throws MessagingException
 	{
 		super(session, url);
 
 		Properties properties = session.getProperties();
 		
+		this.closeTimeout = Duration.ofSeconds(Integer.parseInt(properties.getProperty(CLOSE_TIMEOUT, Integer.toString(DEFAULT_CLOSE_TIMEOUT))));
+		
+		if (shared)
+		{
+			this.shared = true;
+			this.sharedPoolIdleTimeout = 1000L * Integer.parseInt(properties.getProperty(SHARED_POOL_IDLE_TIMEOUT, Integer.toString(DEFAULT_SHARED_POOL_IDLE_TIMEOUT)));
+			
+			// The leased pool is configured by the session of the proxy that creates it
+			return;
+		}
+		
 		int poolSize = Integer.parseInt(properties.getProperty(POOL_SIZE, Integer.toString(DEFAULT_POOL_SIZE)));
+		int poolMinSize = Integer.parseInt(properties.getProperty(POOL_MIN_SIZE, Integer.toString(poolSize)));
+		int poolMaxSize = Integer.parseInt(properties.getProperty(POOL_MAX_SIZE, Integer.toString(Math.max(poolSize, poolMinSize))));
+		this.poolIdleTimeout = 1000L * Integer.parseInt(properties.getProperty(POOL_IDLE_TIMEOUT, Integer.toString(DEFAULT_POOL_IDLE_TIMEOUT)));
+		this.poolGrowThreshold = TimeUnit.MILLISECONDS.toNanos(Integer.parseInt(properties.getProperty(POOL_GROW_THRESHOLD, Integer.toString(DEFAULT_POOL_GROW_THRESHOLD))));
 		this.connectRetryPeriod = 1000 * Integer.parseInt(properties.getProperty(CONNECT_RETRY_PERIOD, Integer.toString(DEFAULT_CONNECT_RETRY_PERIOD)));
+		this.connectRetryInitialPeriod = Integer.parseInt(properties.getProperty(CONNECT_RETRY_INITIAL_PERIOD, Integer.toString(DEFAULT_CONNECT_RETRY_INITIAL_PERIOD)));
+		this.breakerFailureThreshold = Integer.parseInt(properties.getProperty(BREAKER_FAILURE_THRESHOLD, Integer.toString(DEFAULT_BREAKER_FAILURE_THRESHOLD)));
+		this.jmxEnabled = Boolean.valueOf(properties.getProperty(JMX_ENABLED)).booleanValue();
+		this.keepAliveInterval = 1000L * Integer.parseInt(properties.getProperty(KEEPALIVE_INTERVAL, Integer.toString(DEFAULT_KEEPALIVE_INTERVAL)));
 		this.connectTimeout = 1000 * Integer.parseInt(properties.getProperty(CONNECT_TIMEOUT, Integer.toString(DEFAULT_CONNECT_TIMEOUT)));
+		this.warmupInterval = Integer.parseInt(properties.getProperty(WARMUP_INTERVAL, Integer.toString(DEFAULT_WARMUP_INTERVAL)));
+		this.coalesceWindow = Integer.parseInt(properties.getProperty(COALESCE_WINDOW, Integer.toString(DEFAULT_COALESCE_WINDOW)));
+		this.coalesceMaxRecipients = Integer.parseInt(properties.getProperty(COALESCE_MAX_RECIPIENTS, Integer.toString(DEFAULT_COALESCE_MAX_RECIPIENTS)));
+		this.maxMessagesPerConnection = Integer.parseInt(properties.getProperty(MAX_MESSAGES_PER_CONNECTION, Integer.toString(DEFAULT_MAX_MESSAGES_PER_CONNECTION)));
+		this.maxConnectionAge = 1000L * Integer.parseInt(properties.getProperty(MAX_CONNECTION_AGE, Integer.toString(DEFAULT_MAX_CONNECTION_AGE)));
+		this.spoolDirectory = properties.getProperty(SPOOL_DIRECTORY);
+		this.spoolSegmentSize = Integer.parseInt(properties.getProperty(SPOOL_SEGMENT_SIZE, Integer.toString(DEFAULT_SPOOL_SEGMENT_SIZE)));
+		this.spoolSyncInterval = Integer.parseInt(properties.getProperty(SPOOL_SYNC_INTERVAL, Integer.toString(DEFAULT_SPOOL_SYNC_INTERVAL)));
+		double affinityLoadFactor = Double.parseDouble(properties.getProperty(AFFINITY_LOAD_FACTOR, DEFAULT_AFFINITY_LOAD_FACTOR));
+		
+		this.retryInitialDelay = Integer.parseInt(properties.getProperty(RETRY_INITIAL_DELAY, Integer.toString(DEFAULT_RETRY_INITIAL_DELAY)));
+		this.retryMaxDelay = Integer.parseInt(properties.getProperty(RETRY_MAX_DELAY, Integer.toString(DEFAULT_RETRY_MAX_DELAY)));
+		this.retryMaxAge = 1000L * Integer.parseInt(properties.getProperty(RETRY_MAX_AGE, Integer.toString(DEFAULT_RETRY_MAX_AGE)));
+		this.hostAffinity = Boolean.parseBoolean(properties.getProperty(HOST_AFFINITY));
+		this.domainRateLimiter = RateLimiter.create(properties, DOMAIN_RATE, DOMAIN_BURST);
+		this.relayRateLimiter = RateLimiter.create(properties, RELAY_RATE, RELAY_BURST);
+		
+		if (this.hostAffinity || (this.domainRateLimiter != null))
+		{
+			this.domainCache = new DomainCache(DOMAIN_CACHE_SIZE);
+		}
 		
 		String protocol = properties.getProperty("mail.transport.protocol", DEFAULT_TRANSPORT_PROTOCOL);
 		String hostProperty = "mail." + protocol + ".host";
@@ -98,29 +315,61 @@ public class TransportProxy extends Transport
 			throw new MessagingException("No transport host specified.");
 		}
 		
-		String senderStrategyClassName = properties.getProperty(SENDER_STRATEGY, DEFAULT_SENDER_STRATEGY);
-		
 		try
 		{
-			Class senderStrategyClass = Class.forName(senderStrategyClassName);
-			Object lSenderStrategy = senderStrategyClass.newInstance();
-			
-			if (!SenderStrategy.class.isInstance(lSenderStrategy))
+			this.executionMode = ExecutionMode.forName(properties.getProperty(EXECUTION_MODE, DEFAULT_EXECUTION_MODE));
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new MessagingException("Invalid execution mode: " + properties.getProperty(EXECUTION_MODE), e);
+		}
+		
+		if (Boolean.parseBoolean(properties.getProperty(RENDER_ONCE)))
+		{
+			// The underlying transport may rewrite the content transfer encoding of messages it sends, so they cannot be shared
+			if (Boolean.parseBoolean(properties.getProperty("mail." + protocol + ".allow8bitmime")))
 			{
-				throw new MessagingException("Sender strategry " + senderStrategyClassName + " does not implement " + SenderStrategy.class.getName());
+				log.warn(RENDER_ONCE + " is not supported in conjunction with mail." + protocol + ".allow8bitmime, and will be ignored.");
 			}
-			
-			this.senderStrategy = (SenderStrategy) lSenderStrategy;
+			else
+			{
+				this.renderer = new MessageRenderer(session, Integer.parseInt(properties.getProperty(RENDER_FILE_THRESHOLD, Integer.toString(DEFAULT_RENDER_FILE_THRESHOLD))));
+			}
+		}
+		
+		try
+		{
+			this.connectMode = ConnectMode.forName(properties.getProperty(CONNECT_MODE, DEFAULT_CONNECT_MODE));
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new MessagingException("Invalid connect mode: " + properties.getProperty(CONNECT_MODE), e);
+		}
+		
+		try
+		{
+			this.warmup = Warmup.forName(properties.getProperty(WARMUP, DEFAULT_WARMUP));
 		}
-		catch (ClassNotFoundException | IllegalAccessException e)
+		catch (IllegalArgumentException e)
 		{
-			throw new MessagingException("Invalid sender strategy: " + senderStrategyClassName, e);
+			throw new MessagingException("Invalid warmup: " + properties.getProperty(WARMUP), e);
 		}
-		catch (InstantiationException e)
+		
+		BackpressurePolicy backpressurePolicy;
+		
+		try
+		{
+			backpressurePolicy = BackpressurePolicy.forName(properties.getProperty(BACKPRESSURE_POLICY, DEFAULT_BACKPRESSURE_POLICY));
+		}
+		catch (IllegalArgumentException e)
 		{
-			throw new MessagingException("Failed to create sender strategy: " + senderStrategyClassName, e);
+			throw new MessagingException("Invalid backpressure policy: " + properties.getProperty(BACKPRESSURE_POLICY), e);
 		}
 		
+		this.senderStrategy = create(properties.getProperty(SENDER_STRATEGY, DEFAULT_SENDER_STRATEGY), SenderStrategy.class, properties, "sender strategy");
+		this.validators = createValidators(properties.getProperty(VALIDATORS, DEFAULT_VALIDATORS), properties);
+		this.deferredValidators = createValidators(properties.getProperty(DEFERRED_VALIDATORS, ""), properties);
+		
 		Provider provider = null;
 		Provider[] providers = session.getProviders();
 		
@@ -146,365 +395,1890 @@ public class TransportProxy extends Transport
 		
 		String[] hosts = host.split(",");
 		
-		int size = poolSize * hosts.length;
+		// Each host gets a contiguous range of connector slots, as many as its maximum pool size, which may be capped per relay
+		this.hostOffsets = new int[hosts.length + 1];
+		this.hostMinSizes = new int[hosts.length];
+		
+		for (int i = 0; i < hosts.length; ++i)
+		{
+			int hostMaxSize = Math.max(Integer.parseInt(properties.getProperty(POOL_MAX_SIZE + "." + hosts[i], Integer.toString(poolMaxSize))), 1);
+			
+			this.hostMinSizes[i] = Math.max(Math.min(poolMinSize, hostMaxSize), 1);
+			this.hostOffsets[i + 1] = this.hostOffsets[i] + hostMaxSize;
+		}
+		
+		int size = this.hostOffsets[hosts.length];
+		
+		this.hostIndexes = new int[size];
+		
+		for (int i = 0; i < hosts.length; ++i)
+		{
+			Arrays.fill(this.hostIndexes, this.hostOffsets[i], this.hostOffsets[i + 1], i);
+		}
+		
+		// Each sender and each connector runs at most one task at a time, so fewer threads than this could starve reconnects
+		this.executorSize = Math.max(Integer.parseInt(properties.getProperty(EXECUTOR_SIZE, Integer.toString(2 * size))), 2 * size);
 		this.connectors = new TransportConnector[size];
 		this.senders = new MessageSender[size];
+		this.idleConnectorPool = new ConnectorPool(size, this.breakerFailureThreshold, this.connectRetryInitialPeriod, this.connectRetryPeriod, affinityLoadFactor);
+		this.idleSenderPool = new IndexPool(size);
+		
+		// By default, queue at most one send per sender
+		int queueCapacity = Integer.parseInt(properties.getProperty(QUEUE_CAPACITY, Integer.toString(size)));
+		// By default, wait for room in the queue as long as for a connection, so that sends never block indefinitely unless configured to
+		long queueTimeout = Long.parseLong(properties.getProperty(QUEUE_TIMEOUT, Long.toString(this.connectTimeout)));
+		
+		this.submissionQueue = new SubmissionQueue<>(queueCapacity, backpressurePolicy, queueTimeout, Delivery::isBulk, Delivery::drop);
+		this.metrics = new TransportMetrics(size, this.idleSenderPool, this.idleConnectorPool, this.submissionQueue);
 		
 		for (int i = 0; i < size; ++i)
 		{
 			Transport transport = this.session.getTransport(provider);
-			Integer index = i;
 			
-			this.connectors[i] = new TransportConnector(transport, index);
-			this.senders[i] = new MessageSender(index);
+			this.connectors[i] = new TransportConnector(transport, i);
+			this.senders[i] = new MessageSender(i);
 			this.releaseSender(this.senders[i]);
 		}
 	}
 	
 	/**
-	 * Creates and starts a new connector thread for each underlying transport.
-	 * This method returns after the first successful transport connection is made.
+	 * Creates and starts a new connector task for each underlying transport, using the execution mode configured via the {@link net.sf.hajavamail.TransportProxy#EXECUTION_MODE} session property.
+	 * This method returns once the number of transport connections required by the mode configured via the {@link net.sf.hajavamail.TransportProxy#CONNECT_MODE} session property are made.
+	 * Depending on the warmup configured via the {@link net.sf.hajavamail.TransportProxy#WARMUP} session property, the remaining connections are made up front, on demand, or gradually.
+	 * If spooling is enabled via the {@link net.sf.hajavamail.TransportProxy#SPOOL_DIRECTORY} session property, any messages left undelivered by a previous run are resent.
 	 * @param hostList
 	 * @param port
 	 * @param user
 	 * @param password
 	 * @return 
 	 * @see javax.mail.Service#protocolConnect(java.lang.String, int, java.lang.String, java.lang.String)
-	 * @throws MessagingException if no transports were connected within the timeout configured via the {@link net.sf.hajavamail.TransportProxy#CONNECT_TIMEOUT} session property.
+	 * @throws MessagingException if the required transports were not connected within the timeout configured via the {@link net.sf.hajavamail.TransportProxy#CONNECT_TIMEOUT} session property.
 	 */
 	@Override
 	protected boolean protocolConnect(String hostList, int port, String user, String password) throws MessagingException
 	{
-		String[] hosts = hostList.split(",");
-		
-		for (int i = 0; i < this.connectors.length; ++i)
+		if (this.shared)
 		{
-			String host = hosts[i % hosts.length];
+			PoolRegistry.Key key = new PoolRegistry.Key(this.url.getProtocol(), hostList, port, user, password);
+			PoolRegistry.Lease lease = PoolRegistry.lease(key, () ->
+			{
+				TransportProxy proxy = new TransportProxy(this.session, this.url, false);
+				
+				proxy.connect(hostList, port, user, password);
+				
+				return proxy;
+			}, this.sharedPoolIdleTimeout);
 			
-			URLName lurl = new URLName(this.connectors[i].getTransport().getURLName().getProtocol(), host, port, this.connectors[i].getTransport().getURLName().getFile(), user, password);
+			this.sharedProxy = lease.getProxy();
+			// Releases the lease, should this proxy never be closed
+			this.cleanable = CLEANER.register(this, lease);
+			this.closing = false;
 			
-			this.connectors[i].connect(lurl);
+			return true;
 		}
-
-		boolean connectFailed = false;
 		
-		synchronized (this.idleConnectorList)
+		String[] hosts = hostList.split(",");
+		
+		this.executor = this.executionMode.createExecutorService("hajavamail", this.executorSize);
+		this.scheduler = ExecutionMode.createScheduledExecutorService("hajavamail-scheduler");
+		this.resources = new Resources(this.executor, this.scheduler, this.senderStrategy, this.renderer);
+		this.cleanable = CLEANER.register(this, this.resources);
+		this.closing = false;
+		// Deferred deliveries reference this proxy themselves, so the wheel need not
+		this.deferralWheel = new TimingWheel<>(this.scheduler, DEFERRAL_TICK, TimeUnit.MILLISECONDS, DEFERRAL_WHEEL_SIZE, Delivery::expire);
+		
+		if (this.coalesceWindow > 0)
+		{
+			this.coalescer = new MessageCoalescer(this::dispatchCoalesced, this.renderer, this.executor, this.scheduler, this.coalesceWindow, this.coalesceMaxRecipients);
+		}
+		
+		this.idleConnectorPool.configure(hosts, this.hostIndexes);
+		
+		int total = 0;
+		
+		for (int hostMinSize: this.hostMinSizes)
+		{
+			total += hostMinSize;
+		}
+		
+		int required = this.connectMode.getRequired(total);
+		// Unless warming up eagerly, only establish the required connections up front, but at least one per host, so that a single dead relay cannot stall connecting
+		int initial = (this.warmup == Warmup.EAGER) ? total : Math.min(Math.max(required, hosts.length), total);
+		boolean[] initialSlots = new boolean[this.connectors.length];
+		
+		// Spread initial connections across hosts, round robin
+		for (int rank = 0, count = 0; count < initial; ++rank)
 		{
-			if (this.idleConnectorList.isEmpty())
+			for (int host = 0; (host < hosts.length) && (count < initial); ++host)
 			{
-				try
+				if (rank < this.hostMinSizes[host])
 				{
-					// Wait until the first transport is available, or until connect timeout
-					this.idleConnectorList.wait(this.connectTimeout);
+					initialSlots[this.hostOffsets[host] + rank] = true;
+					count += 1;
 				}
-				catch (InterruptedException e)
+			}
+		}
+		
+		this.warmupPool = (initial < total) ? new IndexPool(total - initial) : null;
+		
+		boolean adaptive = false;
+		
+		for (int i = 0; i < this.connectors.length; ++i)
+		{
+			int hostIndex = this.hostIndexes[i];
+			
+			URLName lurl = new URLName(this.connectors[i].getTransport().getURLName().getProtocol(), hosts[hostIndex], port, this.connectors[i].getTransport().getURLName().getFile(), user, password);
+			
+			this.connectors[i].setURLName(lurl);
+			
+			if (initialSlots[i])
+			{
+				this.connectors[i].start();
+			}
+			else
+			{
+				this.connectors[i].park();
+				
+				if (i - this.hostOffsets[hostIndex] < this.hostMinSizes[hostIndex])
 				{
-					// Do nothing
+					// Slots within the minimum pool size are warmed up later
+					this.warmupPool.release(i);
 				}
-				
-				// If there are no active transports, then timeout was exceeded.
-				if (this.idleConnectorList.isEmpty())
+				else
 				{
-					connectFailed = true;
+					// Slots beyond the minimum pool size start out parked
+					adaptive = true;
 				}
 			}
 		}
 
-		if (connectFailed)
+		// Wait until the required transports are available, or until connect timeout
+		if (!this.idleConnectorPool.await(required, this.connectTimeout, true))
 		{
+			int available = this.idleConnectorPool.available();
+			
 			this.close();
 			
-			throw new MessagingException("Connect timeout (" + this.connectTimeout + " ms) exceeded.");
+			throw new MessagingException("Connect timeout (" + this.connectTimeout + " ms) exceeded, with " + available + " of " + required + " required connections ready.");
 		}
 		
-		return true;
-	}
-	
-	/**
-	 * Performs simple message validation before sending using the sender strategy configured via the {@link net.sf.hajavamail.TransportProxy#SENDER_STRATEGY} session property.
-	 * @param message
-	 * @param addresses
-	 * @throws javax.mail.MessagingException
-	 * @see javax.mail.Transport#sendMessage(javax.mail.Message, javax.mail.Address[])
-	 */
-	@Override
-	public void sendMessage(Message message, Address[] addresses) throws MessagingException
-	{
-		if (!this.isConnected())
+		if ((this.warmup == Warmup.GRADUAL) && (this.warmupPool != null))
 		{
-			throw new MessagingException("Transport not connected");
+			this.warmupFuture = this.scheduler.scheduleWithFixedDelay(this.weakly(TransportProxy::warmUp), this.warmupInterval, this.warmupInterval, TimeUnit.MILLISECONDS);
 		}
 		
-		if ((addresses == null) || (addresses.length == 0))
+		if ((this.spoolDirectory != null) && (this.spoolDirectory.length() > 0))
 		{
-			// Nobody will recieve this message
-			return;
+			try
+			{
+				this.spool = new MessageSpool(this.session, Paths.get(this.spoolDirectory), this.spoolSegmentSize);
+			}
+			catch (MessagingException e)
+			{
+				this.close();
+				
+				throw e;
+			}
+			
+			this.resources.spool = this.spool;
+			
+			// Forcing segments to disk blocks on the device, so must not delay the short-lived tasks of the shared scheduler
+			ScheduledExecutorService spoolScheduler = ExecutionMode.createScheduledExecutorService("hajavamail-spool");
+			
+			this.resources.spoolScheduler = spoolScheduler;
+			spoolScheduler.scheduleWithFixedDelay(this.spool::sync, this.spoolSyncInterval, this.spoolSyncInterval, TimeUnit.MILLISECONDS);
+			
+			for (MessageSpool.Entry entry: this.spool.getRecoveredEntries())
+			{
+				try
+				{
+					this.submit(entry.getMessage(), entry.getAddresses(), entry::remove).whenComplete((report, e) -> settle(entry, e));
+				}
+				catch (MessagingException e)
+				{
+					log.error("Failed to resend spooled message to " + InternetAddress.toString(entry.getAddresses()), e);
+				}
+			}
 		}
 		
-		if (message.getSubject() == null)
+		if (this.jmxEnabled)
 		{
-			message.setSubject("");
+			this.registerMBean(hostList);
 		}
-
-		Address[] recipients = message.getAllRecipients();
 		
-		if ((recipients == null) || (recipients.length == 0))
+		if (adaptive)
 		{
-			throw new MessagingException("Message contains no recipients.");
+			this.resizeFuture = this.scheduler.scheduleWithFixedDelay(this.weakly(proxy -> proxy.executor.execute(proxy::resize)), POOL_RESIZE_INTERVAL, POOL_RESIZE_INTERVAL, TimeUnit.MILLISECONDS);
 		}
 		
-		try
+		if (this.keepAliveInterval > 0)
 		{
-			if (message.getContent() == null)
-			{
-				message.setText("");
-			}
+			// Probes block on the network, so run them on the executor, rather than on the scheduler thread
+			this.keepAliveFuture = this.scheduler.scheduleWithFixedDelay(this.weakly(proxy -> proxy.executor.execute(proxy::keepAlive)), this.keepAliveInterval, this.keepAliveInterval, TimeUnit.MILLISECONDS);
 		}
-		catch (IOException e)
+		
+		if (this.maxConnectionAge > 0)
 		{
-			throw new MessagingException("Failed to get message content", e);
+			// Idle connections age out between sends, so sweep for them, rather than recycle them on the send path
+			long recycleInterval = Math.max(this.maxConnectionAge / 10, MIN_RECYCLE_INTERVAL);
+			
+			this.recycleFuture = this.scheduler.scheduleWithFixedDelay(this.weakly(TransportProxy::recycleExpired), recycleInterval, recycleInterval, TimeUnit.MILLISECONDS);
 		}
 		
-		this.senderStrategy.send(this.acquireSender(), message, addresses);
+		return true;
 	}
 	
-	MessageSender acquireSender()
+	/**
+	 * Wraps the specified periodic task, so that the scheduler does not keep this proxy reachable, and thereby prevent its cleanup, should it never be closed.
+	 * @param task a task that does not itself capture this proxy
+	 */
+	private Runnable weakly(Consumer<TransportProxy> task)
 	{
-		Integer index = null;
+		WeakReference<TransportProxy> reference = new WeakReference<>(this);
 		
-		synchronized (this.idleSenderList)
+		return () ->
 		{
-			while (this.idleSenderList.isEmpty())
+			TransportProxy proxy = reference.get();
+			
+			if (proxy != null)
 			{
-				try
-				{
-					this.idleSenderList.wait();
-				}
-				catch (InterruptedException e)
-				{
-					// Do nothing
-				}
+				task.accept(proxy);
 			}
-			
-			index = (Integer) this.idleSenderList.remove(0);
-		}
-		
-		return this.senders[index];
+		};
 	}
 	
-	void releaseSender(MessageSender sender)
+	private void registerMBean(String hostList)
 	{
-		synchronized (this.idleSenderList)
+		try
 		{
-			this.idleSenderList.add(sender.getIndex());
+			ObjectName objectName = ObjectName.getInstance(JMX_DOMAIN + ":type=" + TransportProxy.class.getSimpleName() + ",name=" + ObjectName.quote(hostList + "@" + Integer.toHexString(System.identityHashCode(this))));
 			
-			this.idleSenderList.notify();
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this.metrics, TransportMetricsMXBean.class, true), objectName);
+			
+			this.resources.objectName = objectName;
+		}
+		catch (JMException e)
+		{
+			log.warn("Failed to register metrics MBean", e);
 		}
 	}
 	
-	TransportConnector acquireConnector()
+	/**
+	 * Returns a snapshot of the metrics of this transport, which are also exposed via JMX if enabled by the {@link net.sf.hajavamail.TransportProxy#JMX_ENABLED} session property.
+	 * Proxies sharing a pool report the metrics of the shared pool.
+	 * @return a point-in-time copy of the pool occupancy, wait times, per-host latencies, and failure counts of this transport
+	 */
+	public MetricsSnapshot getMetrics()
 	{
-		Integer index = null;
-		
-		synchronized (this.idleConnectorList)
+		if (this.shared)
 		{
-			while (this.idleConnectorList.isEmpty())
-			{
-				try
-				{
-					this.idleConnectorList.wait();
-				}
-				catch (InterruptedException e)
-				{
-					// Do nothing
-				}
-			}
-			
-			index = (Integer) this.idleConnectorList.remove(0);
+			return this.getSharedProxy().getMetrics();
 		}
 		
-		return this.connectors[index];
+		return new MetricsSnapshot(this.metrics);
 	}
 	
-	void releaseConnector(TransportConnector connector)
+	private TransportProxy getSharedProxy()
 	{
-		synchronized (this.idleConnectorList)
+		TransportProxy proxy = this.sharedProxy;
+		
+		if (proxy == null)
 		{
-			this.idleConnectorList.add(connector.getIndex());
-			
-			this.idleConnectorList.notify();
+			throw new IllegalStateException("Transport not connected");
 		}
+		
+		return proxy;
 	}
-
+	
 	/**
-	 * @param listener
-	 * @see javax.mail.Transport#addTransportListener(javax.mail.event.TransportListener)
+	 * Establishes one of the connections left to warm up, in the background, as per the warmup configured via the {@link net.sf.hajavamail.TransportProxy#WARMUP} session property.
+	 * @return true, if a connection was left to warm up, false otherwise
 	 */
-	@Override
-	public void addTransportListener(TransportListener listener)
+	private boolean warm()
 	{
-		for (int i = 0; i < this.connectors.length; ++i)
+		int index = this.warmupPool.tryAcquire();
+		
+		if (index < 0)
 		{
-			this.connectors[i].getTransport().addTransportListener(listener);
+			return false;
 		}
+		
+		// Slot may have been started by a concurrent resize already
+		this.connectors[index].wake();
+		
+		return true;
 	}
-
+	
 	/**
-	 * @param listener
-	 * @see javax.mail.Transport#removeTransportListener(javax.mail.event.TransportListener)
+	 * Gradually warms up the remaining connections, one per interval, then stops.
 	 */
-	@Override
-	public void removeTransportListener(TransportListener listener)
+	void warmUp()
 	{
-		for (int i = 0; i < this.connectors.length; ++i)
+		if (!this.warm())
 		{
-			this.connectors[i].getTransport().removeTransportListener(listener);
+			this.warmupFuture.cancel(false);
 		}
 	}
 	
 	/**
-	 * Closes the Transport proxy.  Implementation is as follows:
-	 * <ol>
-	 *  <li>Waits until until all sender threads have completed.</li>
-	 * 	<li>Interrupts the execution of any active connector threads</li>
-	 * 	<li>Closes the underlying transports</li>
-	 *  <li>Calls <code>javax.mail.Service.close()</code></li>
-	 * </ol>
-	 * @throws javax.mail.MessagingException
-	 * @see javax.mail.Service#close()
+	 * Resizes the connector pool of each relay host, within the bounds configured via the {@link net.sf.hajavamail.TransportProxy#POOL_MIN_SIZE} and
+	 * {@link net.sf.hajavamail.TransportProxy#POOL_MAX_SIZE} session properties.
+	 * The pool grows while senders wait for connectors, either right now, or on average, since the last resize, for longer than the threshold
+	 * configured via the {@link net.sf.hajavamail.TransportProxy#POOL_GROW_THRESHOLD} session property.
+	 * Growth goes to the hosts with the lowest in-flight latency and error rates first, and at most doubles the pool of a host at a time.
+	 * Otherwise, the pool shrinks by one connector per host at a time, once a connector has been idle for longer than the timeout configured via
+	 * the {@link net.sf.hajavamail.TransportProxy#POOL_IDLE_TIMEOUT} session property.
 	 */
-	@Override
-	public void close() throws MessagingException
+	void resize()
 	{
-		synchronized (this.idleSenderList)
+		synchronized (this.resizeLock)
 		{
-			log.info("Waiting for active senders to complete...");
-			while (this.idleSenderList.size() != this.senders.length)
+			// Transport is closing
+			if (this.resizeFuture == null)
 			{
-				try
-				{
-					this.idleSenderList.wait();
-				}
-				catch (InterruptedException e)
-				{
-					// Ignore
-				}
+				return;
+			}
+			
+			long waitNanos = this.connectorWaitNanos.sumThenReset();
+			long acquisitions = this.connectorAcquisitions.sumThenReset();
+			int waiters = this.idleConnectorPool.getWaiters();
+			
+			if ((waiters > 0) || ((acquisitions > 0) && (waitNanos / acquisitions > this.poolGrowThreshold)))
+			{
+				this.grow(Math.max(waiters, 1));
+			}
+			else
+			{
+				this.shrink();
 			}
 		}
-
-		for (int i = 0; i < this.connectors.length; ++i)
+	}
+	
+	private void grow(int demand)
+	{
+		int hostCount = this.idleConnectorPool.getHostCount();
+		Integer[] hosts = new Integer[hostCount];
+		
+		for (int i = 0; i < hostCount; ++i)
 		{
-			TransportConnector connector = this.connectors[i];
-
-			connector.interrupt();
+			hosts[i] = i;
 		}
 		
-		synchronized (this.idleConnectorList)
+		Arrays.sort(hosts, Comparator.comparingDouble(host -> this.idleConnectorPool.getHostHealth(host).getScore()));
+		
+		for (int host: hosts)
 		{
-			log.info("Waiting for active connectors to stop...");
-			while (this.idleConnectorList.size() != this.connectors.length)
+			if (demand == 0)
 			{
-				try
-				{
-					this.idleConnectorList.wait();
-				}
-				catch (InterruptedException e)
+				return;
+			}
+			
+			int active = this.idleConnectorPool.getActive(host);
+			
+			// Hosts with idle connectors have spare capacity, while hosts whose circuit breaker is open would not be used
+			if ((this.idleConnectorPool.available(host) > 0) || !this.idleConnectorPool.getBreaker(this.hostOffsets[host]).allowsTraffic())
+			{
+				continue;
+			}
+			
+			int count = Math.min(Math.min(demand, Math.max(active, 1)), this.hostOffsets[host + 1] - this.hostOffsets[host] - active);
+			
+			for (int i = this.hostOffsets[host]; (i < this.hostOffsets[host + 1]) && (count > 0); ++i)
+			{
+				TransportConnector connector = this.connectors[i];
+				
+				if (connector.wake())
 				{
-					// Ignore
+					count -= 1;
+					demand -= 1;
 				}
 			}
-
-			for (int i = 0; i < this.connectors.length; ++i)
+		}
+	}
+	
+	private void shrink()
+	{
+		long idleSince = System.currentTimeMillis() - this.poolIdleTimeout;
+		
+		for (int host = 0; host < this.idleConnectorPool.getHostCount(); ++host)
+		{
+			if (this.idleConnectorPool.getActive(host) > this.hostMinSizes[host])
 			{
-				TransportConnector connector = this.connectors[i];
-				Transport transport = connector.getTransport();
+				// Idle connectors of a host are pooled in FIFO order, so this is the connector idle the longest
+				int index = this.idleConnectorPool.tryAcquire(host);
 				
-				if (transport.isConnected())
+				if (index >= 0)
 				{
-					URLName turl = transport.getURLName();
+					TransportConnector connector = this.connectors[index];
 					
-					try
+					if (connector.getLastSent() < idleSince)
 					{
-						transport.close();
+						log.info("Shrinking " + connector.getTransport().getURLName().getHost() + " pool to " + (this.idleConnectorPool.getActive(host) - 1) + " connectors");
 						
-						log.info("Successfully closed " + turl.getProtocol() + " connection to " + turl.getHost());
+						connector.park();
 					}
-					catch (MessagingException e)
+					else
 					{
-						log.warn("Failed to close " + turl.getProtocol() + " connection to " + turl.getHost());
+						this.idleConnectorPool.release(index);
 					}
 				}
 			}
-			
-			this.idleConnectorList.clear();
 		}
-		
-		super.close();
 	}
 	
 	/**
-	 * Closes the transpory proxy, if not closed already.
-	 * @throws java.lang.Throwable
-	 * @see java.lang.Object#finalize()
+	 * Probes connectors that have been idle for at least the interval configured via the {@link net.sf.hajavamail.TransportProxy#KEEPALIVE_INTERVAL} session property.
+	 * Live connections are kept open by the probe, dead connections are evicted and reconnected in the background,
+	 * so that connectors handed out to senders are almost always live.
 	 */
-	@Override
-	protected void finalize() throws Throwable
+	void keepAlive()
 	{
-		if (this.isConnected())
-		{
-			this.close();
-		}
+		long idleSince = System.currentTimeMillis() - this.keepAliveInterval;
 		
-		super.finalize();
-	}
-	
-	/**
-	 * Asynchronously (re)connect a transport and make it available.
-	 */
-	private class TransportConnector implements Runnable
-	{
+		for (int host = 0; host < this.idleConnectorPool.getHostCount(); ++host)
+		{
+			// Idle connectors of a host are pooled in FIFO order, so this visits each of them once
+			int count = this.idleConnectorPool.available(host);
+			
+			for (int i = 0; i < count; ++i)
+			{
+				int index = this.idleConnectorPool.tryAcquire(host);
+				
+				if (index < 0)
+				{
+					break;
+				}
+				
+				TransportConnector connector = this.connectors[index];
+				
+				if (connector.getLastUsed() > idleSince)
+				{
+					this.idleConnectorPool.release(index);
+				}
+				else if (connector.probe())
+				{
+					this.releaseConnector(connector);
+				}
+				else
+				{
+					URLName url = connector.getTransport().getURLName();
+					
+					log.info("Evicting stale " + url.getProtocol() + " connection to " + url.getHost());
+					
+					this.metrics.recordDeadConnection();
+					
+					connector.reconnect();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Recycles idle connectors whose connections exceeded the age configured via the {@link net.sf.hajavamail.TransportProxy#MAX_CONNECTION_AGE} session property.
+	 * Recycled connectors reconnect in the background, so this never blocks on the network.
+	 */
+	void recycleExpired()
+	{
+		for (int host = 0; host < this.idleConnectorPool.getHostCount(); ++host)
+		{
+			// Idle connectors of a host are pooled in FIFO order, so this visits each of them once
+			int count = this.idleConnectorPool.available(host);
+			
+			for (int i = 0; i < count; ++i)
+			{
+				int index = this.idleConnectorPool.tryAcquire(host);
+				
+				if (index < 0)
+				{
+					break;
+				}
+				
+				TransportConnector connector = this.connectors[index];
+				
+				if (connector.isExpired())
+				{
+					connector.recycle();
+				}
+				else
+				{
+					this.idleConnectorPool.release(index);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Validates the message via the validators configured via the {@link net.sf.hajavamail.TransportProxy#VALIDATORS} session property, then sends it using the sender strategy configured via the {@link net.sf.hajavamail.TransportProxy#SENDER_STRATEGY} session property.
+	 * This method returns as soon as the message is handed off to a sender; failures are only logged.
+	 * @param message
+	 * @param addresses
+	 * @throws javax.mail.MessagingException
+	 * @see javax.mail.Transport#sendMessage(javax.mail.Message, javax.mail.Address[])
+	 */
+	@Override
+	public void sendMessage(Message message, Address[] addresses) throws MessagingException
+	{
+		this.sendMessageAsync(message, addresses);
+	}
+	
+	/**
+	 * Validates the message via the validators configured via the {@link net.sf.hajavamail.TransportProxy#VALIDATORS} session property, then sends it using the sender strategy configured via the {@link net.sf.hajavamail.TransportProxy#SENDER_STRATEGY} session property.
+	 * Like {@link #sendMessage(Message, Address[])}, this method returns as soon as the message is handed off to a sender.
+	 * If enabled via the {@link net.sf.hajavamail.TransportProxy#SPOOL_DIRECTORY} session property, MIME messages are first appended to a durable spool,
+	 * from which they are removed once the future completes.
+	 * If enabled via the {@link net.sf.hajavamail.TransportProxy#COALESCE_WINDOW} session property, MIME messages are then held briefly
+	 * so that the recipients of identical messages can be merged into a single envelope.
+	 * The returned future completes once the message was sent, or the send failed, to all addresses.
+	 * A {@link javax.mail.SendFailedException} thrown by the underlying transport completes the future normally, with a report listing the unsent and invalid addresses.
+	 * Any other failure, including the rejection of the message by a validator configured via the {@link net.sf.hajavamail.TransportProxy#DEFERRED_VALIDATORS} session property, completes the future exceptionally.
+	 * If the message is still pending when the transport closes, the future is cancelled, and, if spooled, the message is resent by the next run, to the recipients it was not yet sent to.
+	 * @param message a JavaMail message
+	 * @param addresses addresses to which to send this message
+	 * @return a future delivery report
+	 * @throws javax.mail.MessagingException if the transport is not connected, or closing, or the message is invalid
+	 */
+	public CompletableFuture<DeliveryReport> sendMessageAsync(Message message, Address[] addresses) throws MessagingException
+	{
+		if (!this.isConnected())
+		{
+			throw new MessagingException("Transport not connected");
+		}
+		
+		if (this.closing)
+		{
+			throw new MessagingException("Transport is closing");
+		}
+		
+		if (this.shared)
+		{
+			return this.sendShared(message, addresses);
+		}
+		
+		if ((addresses == null) || (addresses.length == 0))
+		{
+			// Nobody will recieve this message
+			return CompletableFuture.completedFuture(new DeliveryReport(null, 0, null, null, null));
+		}
+		
+		validate(this.validators, message, addresses);
+		
+		if ((this.spool != null) && (message instanceof MimeMessage))
+		{
+			MessageSpool.Entry entry = this.spool.append((MimeMessage) message, addresses);
+			CompletableFuture<DeliveryReport> future;
+			
+			try
+			{
+				// Recipients no longer pending are removed from the spool, so that a retry cancelled by close only resends to the others
+				future = this.submit(entry.getMessage(), entry.getAddresses(), entry::remove);
+			}
+			catch (MessagingException e)
+			{
+				// The caller is responsible for rejected messages
+				entry.delivered();
+				
+				throw e;
+			}
+			
+			future.whenComplete((report, e) -> settle(entry, e));
+			
+			return future;
+		}
+		
+		return this.submit(message, addresses, null);
+	}
+	
+	/**
+	 * Sends the specified message via the leased pool, tracking its future until complete, so that closing this proxy can cancel it.
+	 */
+	private CompletableFuture<DeliveryReport> sendShared(Message message, Address[] addresses) throws MessagingException
+	{
+		CompletableFuture<DeliveryReport> future = this.getSharedProxy().sendMessageAsync(message, addresses);
+		
+		// Whether a send of the shared pool is in flight is unknown here, so assume the worst
+		this.sharedSendMap.put(future, new UndeliveredMessage(message, addresses, true));
+		
+		future.whenComplete((report, e) -> this.sharedSendMap.remove(future));
+		
+		return future;
+	}
+	
+	/**
+	 * Runs the specified validators, in order, against the specified message.
+	 */
+	private static void validate(MessageValidator[] validators, Message message, Address[] addresses) throws MessagingException
+	{
+		for (MessageValidator validator: validators)
+		{
+			validator.validate(message, addresses);
+		}
+	}
+	
+	/**
+	 * Creates the validators named by the specified comma-separated list of class names.
+	 */
+	private static MessageValidator[] createValidators(String classNames, Properties properties) throws MessagingException
+	{
+		List<MessageValidator> validatorList = new ArrayList<>();
+		
+		for (String className: classNames.split(","))
+		{
+			if (className.trim().length() > 0)
+			{
+				validatorList.add(create(className.trim(), MessageValidator.class, properties, "message validator"));
+			}
+		}
+		
+		return validatorList.toArray(new MessageValidator[validatorList.size()]);
+	}
+	
+	/**
+	 * Creates an instance of the specified pluggable class, via its constructor accepting the session properties, if declared, or its no-argument constructor.
+	 */
+	private static <T> T create(String className, Class<T> type, Properties properties, String description) throws MessagingException
+	{
+		try
+		{
+			Class<?> targetClass = Class.forName(className);
+			Object target;
+			
+			try
+			{
+				// Plugins may opt into configuration via session properties
+				target = targetClass.getConstructor(Properties.class).newInstance(properties);
+			}
+			catch (NoSuchMethodException e)
+			{
+				target = targetClass.getConstructor().newInstance();
+			}
+			
+			if (!type.isInstance(target))
+			{
+				throw new MessagingException("Class " + className + " does not implement " + type.getName());
+			}
+			
+			return type.cast(target);
+		}
+		catch (ClassNotFoundException | IllegalAccessException | NoSuchMethodException e)
+		{
+			throw new MessagingException("Invalid " + description + ": " + className, e);
+		}
+		catch (InstantiationException | InvocationTargetException e)
+		{
+			throw new MessagingException("Failed to create " + description + ": " + className, e);
+		}
+	}
+	
+	/**
+	 * Removes the specified entry from the spool once its message completed, unless it was cancelled by close, so that the next run resends it.
+	 */
+	private static void settle(MessageSpool.Entry entry, Throwable exception)
+	{
+		Throwable cause = exception;
+		
+		// Futures derived from the cancelled future, e.g. of coalesced or grouped sends, wrap the cancellation
+		while (cause != null)
+		{
+			if (cause instanceof CancellationException)
+			{
+				return;
+			}
+			
+			cause = cause.getCause();
+		}
+		
+		entry.delivered();
+	}
+	
+	/**
+	 * Sends the specified message, via the coalescer if enabled.
+	 * Messages with too many recipients to merge are sent directly, so that they remain subject to the backpressure policy.
+	 * @param progress notified of the addresses no longer pending, i.e. sent, or rejected, before the others are retried, or null
+	 */
+	private CompletableFuture<DeliveryReport> submit(Message message, Address[] addresses, Consumer<Address[]> progress) throws MessagingException
+	{
+		if ((this.coalescer != null) && (message instanceof MimeMessage) && (addresses.length < this.coalesceMaxRecipients))
+		{
+			return this.coalescer.submit((MimeMessage) message, addresses, progress);
+		}
+		
+		return this.dispatch(message, addresses, progress);
+	}
+	
+	/**
+	 * Sends the specified message using the configured sender strategy.
+	 * If enabled via the {@link net.sf.hajavamail.TransportProxy#RENDER_ONCE} session property, MIME messages are rendered once,
+	 * by the first sender to send them, rather than by the calling thread, so that address groups and retries do not encode the message again.
+	 */
+	private CompletableFuture<DeliveryReport> dispatch(Message message, Address[] addresses, Consumer<Address[]> progress) throws MessagingException
+	{
+		MessageRenderer.Rendering rendering = ((this.renderer != null) && (message instanceof MimeMessage)) ? this.renderer.defer((MimeMessage) message) : null;
+		List<CompletableFuture<DeliveryReport>> futureList = new ArrayList<>(1);
+		
+		// Each send issued by the strategy gets its own sender, so that address groups never share sender state
+		this.senderStrategy.send((groupMessage, groupAddresses) -> futureList.add(this.schedule(new Delivery(groupMessage, groupAddresses, (groupMessage == message) ? rendering : null, progress))), message, addresses);
+		
+		return join(futureList);
+	}
+	
+	/**
+	 * Sends the specified merged envelope using the configured sender strategy.
+	 * Runs on a worker thread of the coalescer, so must never block: the backpressure policy only applies to the submission of the original messages,
+	 * while an envelope that finds the submission queue full waits a tick in the deferral wheel.
+	 * The coalescer already rendered the message, if rendering is enabled.
+	 */
+	private CompletableFuture<DeliveryReport> dispatchCoalesced(Message message, Address[] addresses, Consumer<Address[]> progress) throws MessagingException
+	{
+		List<CompletableFuture<DeliveryReport>> futureList = new ArrayList<>(1);
+		
+		this.senderStrategy.send((groupMessage, groupAddresses) ->
+		{
+			Delivery delivery = new Delivery(groupMessage, groupAddresses, null, progress);
+			
+			this.enqueue(delivery);
+			
+			futureList.add(delivery.future);
+		}, message, addresses);
+		
+		return join(futureList);
+	}
+	
+	/**
+	 * Indicates whether the unsent addresses of the specified failure may be sent to later.
+	 * Recipients are classified individually, by the reply to their own RCPT command (see {@link #getRecipientReplies(SendFailedException)}),
+	 * so the reply code of the failure itself, which is that of the last command issued, only classifies failures of the message as a whole,
+	 * i.e. of its MAIL FROM or DATA commands, which report all of its recipients as valid but unsent.
+	 */
+	static boolean isTransient(SendFailedException exception)
+	{
+		if (exception instanceof SMTPSendFailedException)
+		{
+			SMTPSendFailedException failure = (SMTPSendFailedException) exception;
+			String command = failure.getCommand();
+			
+			if ((command != null) && (command.regionMatches(true, 0, "MAIL FROM", 0, 9) || command.equalsIgnoreCase("DATA") || command.equals(".")))
+			{
+				return failure.getReturnCode() < 500;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Indicates whether the specified failure of a send, whose connection survived it, would recur on any connector, i.e. whether the server replied 5xx.
+	 * Failures without a reply, e.g. a read timeout the server recovered from, and 4xx replies are transient.
+	 */
+	static boolean isPermanent(MessagingException exception)
+	{
+		Exception next = exception;
+		
+		while (next instanceof MessagingException)
+		{
+			int reply = getReturnCode((MessagingException) next);
+			
+			if (reply > 0)
+			{
+				return reply >= 500;
+			}
+			
+			next = ((MessagingException) next).getNextException();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the SMTP reply code of the specified failure, either that of an SMTP exception, or that leading the message of a failure reported by the server as is.
+	 * @return a reply code, or -1 if the failure carries no reply
+	 */
+	private static int getReturnCode(MessagingException exception)
+	{
+		if (exception instanceof SMTPSendFailedException)
+		{
+			return ((SMTPSendFailedException) exception).getReturnCode();
+		}
+		
+		if (exception instanceof SMTPSenderFailedException)
+		{
+			return ((SMTPSenderFailedException) exception).getReturnCode();
+		}
+		
+		if (exception instanceof SMTPAddressFailedException)
+		{
+			return ((SMTPAddressFailedException) exception).getReturnCode();
+		}
+		
+		String message = exception.getMessage();
+		
+		if ((message != null) && (message.length() >= 3) && (message.charAt(0) >= '2') && (message.charAt(0) <= '5') && Character.isDigit(message.charAt(1)) && Character.isDigit(message.charAt(2)) && ((message.length() == 3) || !Character.isLetterOrDigit(message.charAt(3))))
+		{
+			return Integer.parseInt(message.substring(0, 3));
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns the replies to the RCPT commands of the specified failure, chained to it by JavaMail as {@link SMTPAddressFailedException}s.
+	 * @return a map of reply code per recipient, empty if the failure did not involve RCPT commands
+	 */
+	static Map<Address, Integer> getRecipientReplies(SendFailedException exception)
+	{
+		Map<Address, Integer> replyMap = new HashMap<>();
+		Exception next = exception.getNextException();
+		
+		while (next instanceof MessagingException)
+		{
+			if (next instanceof SMTPAddressFailedException)
+			{
+				SMTPAddressFailedException failure = (SMTPAddressFailedException) next;
+				
+				replyMap.put(failure.getAddress(), failure.getReturnCode());
+			}
+			
+			next = ((MessagingException) next).getNextException();
+		}
+		
+		return replyMap;
+	}
+	
+	static List<Address> append(List<Address> list, Address[] addresses)
+	{
+		if ((addresses == null) || (addresses.length == 0))
+		{
+			return list;
+		}
+		
+		List<Address> result = (list != null) ? list : new ArrayList<>(addresses.length);
+		
+		for (Address address: addresses)
+		{
+			result.add(address);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Joins the future reports of the individual sends issued by the sender strategy for a single message.
+	 * The combined future completes once every address group has completed.
+	 */
+	private static CompletableFuture<DeliveryReport> join(List<CompletableFuture<DeliveryReport>> futureList)
+	{
+		if (futureList.size() == 1)
+		{
+			return futureList.get(0);
+		}
+		
+		return CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[futureList.size()])).thenApply(result ->
+		{
+			List<DeliveryReport> reportList = new ArrayList<>(futureList.size());
+			
+			for (CompletableFuture<DeliveryReport> future: futureList)
+			{
+				reportList.add(future.join());
+			}
+			
+			return DeliveryReport.merge(reportList);
+		});
+	}
+	
+	/**
+	 * Returns the distinct domains of the specified recipients, for the purpose of relay affinity and rate limits.
+	 * Sender strategies that group by host send to a single domain at a time, but other strategies may mix domains within a send.
+	 */
+	private Collection<String> getDomains(Address[] addresses)
+	{
+		String domain = this.domainCache.getDomain(addresses[0]);
+		Set<String> domains = null;
+		
+		for (int i = 1; i < addresses.length; ++i)
+		{
+			String addressDomain = this.domainCache.getDomain(addresses[i]);
+			
+			if (!addressDomain.equals(domain))
+			{
+				if (domains == null)
+				{
+					domains = new HashSet<>();
+					domains.add(domain);
+				}
+				
+				domains.add(addressDomain);
+			}
+		}
+		
+		return (domains != null) ? domains : Collections.singleton(domain);
+	}
+	
+	/**
+	 * Hands the specified delivery to an idle sender, or queues it if all senders are busy,
+	 * applying the policy configured via the {@link net.sf.hajavamail.TransportProxy#BACKPRESSURE_POLICY} session property if the queue is full.
+	 * If a rate is configured via the {@link net.sf.hajavamail.TransportProxy#DOMAIN_RATE} session property, and the destination domain has exceeded it,
+	 * the delivery is instead deferred until its domain admits it, so that throttled domains hold neither a sender nor a queue slot.
+	 * A delivery to several domains is charged to each of them, and deferred until all of them admit it.
+	 * @throws MessagingException if the delivery was rejected by the backpressure policy
+	 */
+	private CompletableFuture<DeliveryReport> schedule(Delivery delivery) throws MessagingException
+	{
+		if (this.throttle(delivery) || this.handOff(delivery))
+		{
+			return delivery.future;
+		}
+		
+		boolean queued;
+		
+		try
+		{
+			queued = this.submissionQueue.offer(delivery);
+		}
+		catch (MessagingException e)
+		{
+			// The caller is responsible for rejected deliveries
+			delivery.fail(e);
+			
+			throw e;
+		}
+		
+		if (queued)
+		{
+			// All senders may have become idle while queueing
+			this.pump();
+		}
+		else
+		{
+			delivery.deliver();
+		}
+		
+		return delivery.future;
+	}
+	
+	/**
+	 * Defers the specified delivery if the rate limit of one of its domains is exceeded.
+	 * @return true, if the delivery was deferred, false if it may be sent now
+	 */
+	private boolean throttle(Delivery delivery)
+	{
+		if ((this.domainRateLimiter == null) || delivery.admitted)
+		{
+			return false;
+		}
+		
+		long delay = 0;
+		
+		// Reserve a token, so that the delivery need not compete for one again once it is due
+		for (String domain: this.getDomains(delivery.addresses))
+		{
+			delay = Math.max(delay, this.domainRateLimiter.reserve(domain));
+		}
+		
+		delivery.admitted = true;
+		
+		if (delay <= 0)
+		{
+			return false;
+		}
+		
+		this.defer(delivery, delay);
+		
+		return true;
+	}
+	
+	/**
+	 * Hands the specified delivery to an idle sender, unless other deliveries are queued ahead of it.
+	 * @return true, if the delivery was handed to a sender, false if it must be queued
+	 */
+	private boolean handOff(Delivery delivery)
+	{
+		if (!this.submissionQueue.isEmpty())
+		{
+			return false;
+		}
+		
+		int index = this.idleSenderPool.tryAcquire();
+		
+		if (index < 0)
+		{
+			return false;
+		}
+		
+		this.senders[index].submit(delivery);
+		
+		return true;
+	}
+	
+	/**
+	 * Schedules the specified throttled delivery again after the specified delay.
+	 * @param delivery a throttled delivery
+	 * @param delay a delay in nanoseconds
+	 */
+	void defer(Delivery delivery, long delay)
+	{
+		this.metrics.recordThrottledSend();
+		
+		this.hold(delivery, delay);
+	}
+	
+	/**
+	 * Returns the delay before the next attempt of the specified delivery, using the backoff configured via the
+	 * {@link net.sf.hajavamail.TransportProxy#RETRY_INITIAL_DELAY} and {@link net.sf.hajavamail.TransportProxy#RETRY_MAX_DELAY} session properties.
+	 * @param delivery a delivery that failed for some of its addresses
+	 * @return a delay in milliseconds, or -1 if the next attempt would exceed the age configured via the {@link net.sf.hajavamail.TransportProxy#RETRY_MAX_AGE} session property
+	 */
+	long getRetryDelay(Delivery delivery)
+	{
+		long delay = CircuitBreaker.backoff(this.retryInitialDelay, this.retryMaxDelay, delivery.attempts - 1);
+		
+		return (System.currentTimeMillis() + delay - delivery.submitTime <= this.retryMaxAge) ? delay : -1;
+	}
+	
+	/**
+	 * Schedules the specified delivery again after the specified delay, for the addresses left unsent by a transient failure.
+	 * @param delivery a delivery that failed for some of its addresses
+	 * @param delay a delay in milliseconds
+	 */
+	void retry(Delivery delivery, long delay)
+	{
+		this.metrics.recordRetry();
+		
+		// Retries are subject to rate limits, like any other send
+		delivery.admitted = false;
+		
+		this.hold(delivery, TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+	
+	/**
+	 * Holds the specified delivery in the deferral wheel, without holding a sender or a connector in the meantime.
+	 */
+	private void hold(Delivery delivery, long delay)
+	{
+		if (!this.deferralWheel.schedule(delivery, delay, TimeUnit.NANOSECONDS))
+		{
+			delivery.cancel();
+		}
+	}
+	
+	/**
+	 * Schedules the specified delivery again, once it is due, i.e. once the rate limit that throttled it admits it, or once its retry delay elapsed.
+	 * Runs on the tick thread of the deferral wheel, so must never block: the backpressure policy only applies to new sends,
+	 * while a resumed delivery that finds the submission queue full waits another tick in the wheel.
+	 */
+	private void resume(Delivery delivery)
+	{
+		// Time spent throttled does not count as waiting for a sender
+		delivery.submitNanos = System.nanoTime();
+		
+		this.enqueue(delivery);
+	}
+	
+	/**
+	 * Hands the specified delivery to an idle sender, or queues it, without ever blocking, regardless of the backpressure policy:
+	 * if the submission queue is full, the delivery waits a tick in the deferral wheel instead.
+	 */
+	private void enqueue(Delivery delivery)
+	{
+		try
+		{
+			if (this.throttle(delivery) || this.handOff(delivery))
+			{
+				return;
+			}
+			
+			if (this.submissionQueue.tryOffer(delivery))
+			{
+				// All senders may have become idle while queueing
+				this.pump();
+			}
+			else
+			{
+				this.hold(delivery, TimeUnit.MILLISECONDS.toNanos(DEFERRAL_TICK));
+			}
+		}
+		catch (RejectedExecutionException e)
+		{
+			delivery.cancel();
+		}
+	}
+	
+	/**
+	 * Hands queued deliveries to idle senders, if any.
+	 */
+	void pump()
+	{
+		while (!this.submissionQueue.isEmpty())
+		{
+			int index = this.idleSenderPool.tryAcquire();
+			
+			if (index < 0)
+			{
+				return;
+			}
+			
+			Delivery delivery = this.submissionQueue.poll();
+			
+			if (delivery != null)
+			{
+				this.senders[index].submit(delivery);
+			}
+			else
+			{
+				this.idleSenderPool.release(index);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of sends waiting for an idle sender.
+	 * @return the depth of the submission queue
+	 */
+	public int getQueueDepth()
+	{
+		if (this.shared)
+		{
+			return this.getSharedProxy().getQueueDepth();
+		}
+		
+		return this.submissionQueue.size();
+	}
+	
+	void releaseSender(MessageSender sender)
+	{
+		this.idleSenderPool.release(sender.getIndex());
+	}
+	
+	/**
+	 * Takes an idle connector, favoring hosts with lower latency and error rates.
+	 * If enabled via the {@link net.sf.hajavamail.TransportProxy#HOST_AFFINITY} session property, favors instead the host to which the recipient domain hashes,
+	 * so that each relay sees a stable subset of destination domains, and can reuse its outbound connections to them.
+	 * Recipients of several domains have no such host, so they are sent via the healthiest host instead.
+	 * @param addresses the recipients of the message to be sent
+	 */
+	TransportConnector acquireConnector(Address[] addresses)
+	{
+		// Rather than wait for a busy connection, warm up a lazy one
+		if ((this.warmupPool != null) && (this.idleConnectorPool.available() == 0))
+		{
+			this.warm();
+		}
+		
+		Collection<String> domains = this.hostAffinity ? this.getDomains(addresses) : null;
+		
+		while (true)
+		{
+			long start = System.nanoTime();
+			int index = ((domains != null) && (domains.size() == 1)) ? this.idleConnectorPool.acquire(HashRing.hash(domains.iterator().next())) : this.idleConnectorPool.acquire();
+			TransportConnector connector = this.connectors[index];
+			
+			long wait = System.nanoTime() - start;
+			
+			this.metrics.recordConnectorWait(wait);
+			this.connectorWaitNanos.add(wait);
+			this.connectorAcquisitions.increment();
+			
+			// The breaker of its host may have opened after the connector became idle, but before it was evicted
+			if (!this.idleConnectorPool.getBreaker(index).allowsTraffic())
+			{
+				connector.reconnect();
+				continue;
+			}
+			
+			// Connections may have aged out while idle
+			if (!connector.isExpired())
+			{
+				return connector;
+			}
+			
+			connector.recycle();
+		}
+	}
+	
+	void releaseConnector(TransportConnector connector)
+	{
+		connector.touch();
+		
+		if (connector.isExpired())
+		{
+			// Recycle in the background, rather than on the send path of the next message
+			connector.recycle();
+		}
+		else if (!connector.isInterrupted() && !this.idleConnectorPool.getBreaker(connector.getIndex()).allowsTraffic())
+		{
+			// Hold the connector out of the pool until a trial connect closes the breaker of its host
+			connector.reconnect();
+		}
+		else
+		{
+			this.idleConnectorPool.release(connector.getIndex());
+		}
+	}
+	
+	/**
+	 * Evicts the idle connectors of the specified host, whose circuit breaker just opened, so that sends no longer find them.
+	 * Evicted connectors reconnect through the breaker, which admits a single trial connect once its open period elapsed.
+	 * @param host the index of a relay host
+	 */
+	void evict(int host)
+	{
+		for (int index = this.idleConnectorPool.tryAcquire(host); index >= 0; index = this.idleConnectorPool.tryAcquire(host))
+		{
+			this.connectors[index].reconnect();
+		}
+	}
+
+	/**
+	 * Not supported by proxies sharing a pool, whose transports carry the messages of every sharing proxy.
+	 * Such proxies should use the delivery reports of {@link #sendMessageAsync(Message, Address[])} instead.
+	 * @param listener
+	 * @see javax.mail.Transport#addTransportListener(javax.mail.event.TransportListener)
+	 */
+	@Override
+	public void addTransportListener(TransportListener listener)
+	{
+		if (this.shared)
+		{
+			log.warn("Transport listeners are not supported by proxies sharing a pool, and will be ignored.");
+			return;
+		}
+		
+		for (int i = 0; i < this.connectors.length; ++i)
+		{
+			this.connectors[i].getTransport().addTransportListener(listener);
+		}
+	}
+
+	/**
+	 * @param listener
+	 * @see javax.mail.Transport#removeTransportListener(javax.mail.event.TransportListener)
+	 */
+	@Override
+	public void removeTransportListener(TransportListener listener)
+	{
+		if (this.shared)
+		{
+			return;
+		}
+		
+		for (int i = 0; i < this.connectors.length; ++i)
+		{
+			this.connectors[i].getTransport().removeTransportListener(listener);
+		}
+	}
+	
+	/**
+	 * Closes the Transport proxy, waiting for pending messages to be sent for at most the timeout configured via the {@link net.sf.hajavamail.TransportProxy#CLOSE_TIMEOUT} session property.
+	 * Messages still pending at the deadline are cancelled, and logged.
+	 * @throws javax.mail.MessagingException
+	 * @see #close(Duration)
+	 * @see javax.mail.Service#close()
+	 */
+	@Override
+	public void close() throws MessagingException
+	{
+		List<UndeliveredMessage> undeliveredList = this.close(this.closeTimeout);
+		
+		for (UndeliveredMessage undelivered: undeliveredList)
+		{
+			log.warn("Message to " + InternetAddress.toString(undelivered.getAddresses()) + " was not delivered before close");
+		}
+	}
+	
+	/**
+	 * Closes the Transport proxy, in two phases: drain, until the specified deadline, then cancel.  Implementation is as follows:
+	 * <ol>
+	 *  <li>Rejects further sends, and sends any messages held for coalescing.</li>
+	 *  <li>Waits until every pending message, including throttled and retrying messages, was sent, and all sender threads have completed.</li>
+	 *  <li>At the deadline, or if the calling thread is interrupted, cancels the futures of messages still pending, and reports them as undelivered.</li>
+	 * 	<li>Interrupts the execution of any active connector tasks, and waits for them to stop, until the deadline</li>
+	 * 	<li>Closes the underlying transports of idle connectors.  Transports still in use, e.g. by a send hung on an unresponsive relay, are abandoned to their threads, which are interrupted.</li>
+	 * 	<li>Shuts down the sender and connector executor</li>
+	 *  <li>Flushes and closes the spool, if enabled, which retains cancelled messages for the next run.</li>
+	 *  <li>Calls <code>javax.mail.Service.close()</code></li>
+	 * </ol>
+	 * @param timeout the maximum time to wait for pending messages to be sent, and for connectors to stop
+	 * @return the messages that were cancelled, which is empty if every pending message was sent
+	 * @throws javax.mail.MessagingException
+	 */
+	public List<UndeliveredMessage> close(Duration timeout) throws MessagingException
+	{
+		long deadline = System.nanoTime() + timeout.toNanos();
+		
+		this.closing = true;
+		
+		if (this.shared)
+		{
+			return this.closeShared(deadline);
+		}
+		
+		if (this.keepAliveFuture != null)
+		{
+			this.keepAliveFuture.cancel(false);
+		}
+		
+		if (this.recycleFuture != null)
+		{
+			this.recycleFuture.cancel(false);
+		}
+		
+		if (this.warmupFuture != null)
+		{
+			this.warmupFuture.cancel(false);
+		}
+		
+		synchronized (this.resizeLock)
+		{
+			if (this.resizeFuture != null)
+			{
+				this.resizeFuture.cancel(false);
+				this.resizeFuture = null;
+			}
+		}
+		
+		log.info("Waiting for pending messages to be sent...");
+		
+		// Coalesced messages only become pending deliveries once their envelope is dispatched
+		boolean drained = ((this.coalescer == null) || this.coalescer.drain(deadline)) && awaitEmpty(this.pendingDeliveries, deadline);
+		
+		// Senders complete the futures of their deliveries before becoming idle
+		drained = drained && this.idleSenderPool.await(this.senders.length, remaining(deadline), true);
+		
+		// Once drained, nothing is left to defer, otherwise nothing deferred will be sent
+		this.deferralWheel.stop();
+		
+		while (this.submissionQueue.poll() != null)
+		{
+			// Queued deliveries are pending, so are cancelled below
+		}
+		
+		List<UndeliveredMessage> undeliveredList = (this.coalescer != null) ? this.coalescer.cancel() : new ArrayList<>();
+		
+		for (Delivery delivery: this.pendingDeliveries)
+		{
+			delivery.cancel();
+			
+			// A delivery may also have been cancelled concurrently, e.g. by a retry that found the wheel stopped
+			if (delivery.future.isCancelled())
+			{
+				undeliveredList.add(new UndeliveredMessage(delivery.message, delivery.addresses, delivery.sending));
+			}
+		}
+		
+		this.pendingDeliveries.clear();
+		
+		if (!undeliveredList.isEmpty())
+		{
+			log.warn("Cancelled " + undeliveredList.size() + " messages still pending after " + timeout.toMillis() + " ms");
+		}
+		
+		for (int i = 0; i < this.connectors.length; ++i)
+		{
+			TransportConnector connector = this.connectors[i];
+
+			connector.interrupt();
+		}
+		
+		log.info("Waiting for active connectors to stop...");
+		boolean stopped = this.idleConnectorPool.drain(remaining(deadline));
+		
+		// Only close idle transports, as JavaMail transports lock out close for the duration of a send
+		for (int host = 0; host < this.idleConnectorPool.getHostCount(); ++host)
+		{
+			for (int index = this.idleConnectorPool.tryAcquire(host); index >= 0; index = this.idleConnectorPool.tryAcquire(host))
+			{
+				Transport transport = this.connectors[index].getTransport();
+				
+				if (transport.isConnected())
+				{
+					URLName turl = transport.getURLName();
+					
+					try
+					{
+						transport.close();
+						
+						log.info("Successfully closed " + turl.getProtocol() + " connection to " + turl.getHost());
+					}
+					catch (MessagingException e)
+					{
+						log.warn("Failed to close " + turl.getProtocol() + " connection to " + turl.getHost());
+					}
+				}
+			}
+		}
+		
+		if (!drained || !stopped)
+		{
+			log.warn("Abandoning " + (this.idleConnectorPool.getActive() - this.idleConnectorPool.available()) + " connections still in use");
+			
+			// Interrupt hung sends and connects
+			this.executor.shutdownNow();
+		}
+		
+		// Shuts down the executors, closes the sender strategy, the spool, and the renderer
+		this.cleanable.clean();
+		this.spool = null;
+		
+		super.close();
+		
+		return undeliveredList;
+	}
+	
+	/**
+	 * Closes this proxy sharing a pool: waits, until the deadline, for the sends of this proxy, cancels those still pending, and releases the pool.
+	 * The pool itself is closed once it was not leased for the timeout configured via the {@link net.sf.hajavamail.TransportProxy#SHARED_POOL_IDLE_TIMEOUT} session property.
+	 */
+	private List<UndeliveredMessage> closeShared(long deadline) throws MessagingException
+	{
+		List<UndeliveredMessage> undeliveredList = new ArrayList<>();
+		
+		if (this.sharedProxy != null)
+		{
+			awaitEmpty(this.sharedSendMap.keySet(), deadline);
+			
+			for (Map.Entry<CompletableFuture<DeliveryReport>, UndeliveredMessage> entry: this.sharedSendMap.entrySet())
+			{
+				if (entry.getKey().cancel(false))
+				{
+					undeliveredList.add(entry.getValue());
+				}
+			}
+			
+			this.sharedSendMap.clear();
+			
+			// Releases the lease
+			this.cleanable.clean();
+			this.sharedProxy = null;
+		}
+		
+		super.close();
+		
+		return undeliveredList;
+	}
+	
+	/**
+	 * Waits until the specified collection is empty, or until the specified deadline, or until the calling thread is interrupted.
+	 * @param collection a concurrent collection, e.g. of pending deliveries
+	 * @param deadline a deadline, relative to {@link System#nanoTime()}
+	 * @return true, if the collection is empty, false otherwise
+	 */
+	static boolean awaitEmpty(Collection<?> collection, long deadline)
+	{
+		while (!collection.isEmpty())
+		{
+			if (System.nanoTime() - deadline >= 0)
+			{
+				return false;
+			}
+			
+			try
+			{
+				Thread.sleep(DRAIN_POLL_INTERVAL);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the number of milliseconds until the specified deadline, but at least 1, as a timeout of 0 waits forever
+	 */
+	private static long remaining(long deadline)
+	{
+		return Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1);
+	}
+	
+	/**
+	 * Resources released when the transport proxy is closed, or, should it never be closed, once it becomes unreachable.
+	 * Replaces finalization, which delays the collection of every proxy, closed or not, by at least one garbage collection cycle.
+	 * Must not reference the proxy, lest it never become unreachable.
+	 */
+	private static class Resources implements Runnable
+	{
+		private final ExecutorService executor;
+		private final ScheduledExecutorService scheduler;
+		private final AutoCloseable senderStrategy;
+		private final MessageRenderer renderer;
+		volatile MessageSpool spool;
+		volatile ScheduledExecutorService spoolScheduler;
+		volatile ObjectName objectName;
+		
+		Resources(ExecutorService executor, ScheduledExecutorService scheduler, SenderStrategy senderStrategy, MessageRenderer renderer)
+		{
+			this.executor = executor;
+			this.scheduler = scheduler;
+			this.senderStrategy = (senderStrategy instanceof AutoCloseable) ? (AutoCloseable) senderStrategy : null;
+			this.renderer = renderer;
+		}
+		
+		@Override
+		public void run()
+		{
+			this.scheduler.shutdownNow();
+			this.executor.shutdown();
+			
+			if (this.senderStrategy != null)
+			{
+				try
+				{
+					this.senderStrategy.close();
+				}
+				catch (Exception e)
+				{
+					log.warn("Failed to close sender strategy", e);
+				}
+			}
+			
+			ScheduledExecutorService spoolScheduler = this.spoolScheduler;
+			
+			if (spoolScheduler != null)
+			{
+				spoolScheduler.shutdownNow();
+			}
+			
+			MessageSpool spool = this.spool;
+			
+			if (spool != null)
+			{
+				spool.close();
+			}
+			
+			if (this.renderer != null)
+			{
+				this.renderer.close();
+			}
+			
+			ObjectName objectName = this.objectName;
+			
+			if (objectName != null)
+			{
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				}
+				catch (JMException e)
+				{
+					log.warn("Failed to unregister metrics MBean", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Asynchronously (re)connect a transport and make it available.
+	 * Failed connects are retried via the shared scheduler, rather than by a sleeping thread, after an exponential backoff with jitter,
+	 * ranging from the {@link net.sf.hajavamail.TransportProxy#CONNECT_RETRY_INITIAL_PERIOD} to the {@link net.sf.hajavamail.TransportProxy#CONNECT_RETRY_PERIOD} session properties.
+	 * While the circuit breaker of its host is open, a connector defers its connects until the breaker permits a trial.
+	 * Connections are recycled once they exceed the limits configured via the {@link net.sf.hajavamail.TransportProxy#MAX_MESSAGES_PER_CONNECTION}
+	 * and {@link net.sf.hajavamail.TransportProxy#MAX_CONNECTION_AGE} session properties.
+	 */
+	private class TransportConnector implements Runnable
+	{
 		private Transport transport;
 		private URLName url;
-		private Integer index;
-		private Thread thread;
+		private int index;
+		private volatile Thread thread;
+		private volatile boolean interrupted;
+		private volatile ScheduledFuture<?> retryFuture;
+		// Only accessed by the current holder of this connector
+		private int attempts;
+		private long connectTime;
+		private long lastUsed;
+		private long lastSent;
+		private boolean established;
+		private int messageCount;
+		// Guarded by this connector
+		private boolean parked;
+		
+		public TransportConnector(Transport transport, int index)
+		{
+			this.transport = transport;
+			this.index = index;
+		}
+		
+		public Transport getTransport()
+		{
+			return this.transport;
+		}
+		
+		public int getIndex()
+		{
+			return this.index;
+		}
+		
+		public void setURLName(URLName url)
+		{
+			this.url = url;
+		}
+		
+		/**
+		 * Connects this connector in the background.
+		 */
+		public void start()
+		{
+			this.interrupted = false;
+			
+			this.reconnect();
+		}
+		
+		/**
+		 * Activates this connector and connects it in the background, if it is parked.
+		 * @return true, if this connector was parked, false if it was already active
+		 */
+		public synchronized boolean wake()
+		{
+			if (!this.parked)
+			{
+				return false;
+			}
+			
+			this.parked = false;
+			
+			TransportProxy.this.idleConnectorPool.activate(this.index);
+			
+			this.start();
+			
+			return true;
+		}
+		
+		/**
+		 * Closes the connection of this connector, which must not be idle, and deactivates it, so that its slot can be reused later.
+		 */
+		public synchronized void park()
+		{
+			if (this.transport.isConnected())
+			{
+				try
+				{
+					this.transport.close();
+				}
+				catch (MessagingException e)
+				{
+					log.info("Failed to close " + this.url.getProtocol() + " connection to " + this.url.getHost(), e);
+				}
+			}
+			
+			this.parked = true;
+			
+			TransportProxy.this.idleConnectorPool.deactivate(this.index);
+		}
+		
+		public void reconnect()
+		{
+			TransportProxy.this.executor.execute(this);
+		}
+
+		/**
+		 * Reconnects this connector, in the background, because it exceeded its connection limits.
+		 */
+		public void recycle()
+		{
+			// Either limit may have triggered the recycle, e.g. the sweep of idle connections only recycles by age
+			String limit = this.isExhausted() ? (this.messageCount + " messages") : ((System.currentTimeMillis() - this.connectTime) + " ms");
+			
+			log.info("Recycling " + this.url.getProtocol() + " connection to " + this.url.getHost() + " after " + limit);
+			
+			this.reconnect();
+		}
+		
+		/**
+		 * @return the time, in milliseconds, at which this connector was last released, or probed
+		 */
+		public long getLastUsed()
+		{
+			return this.lastUsed;
+		}
+		
+		/**
+		 * Records that this connector was just used.
+		 */
+		public void touch()
+		{
+			this.lastUsed = System.currentTimeMillis();
+		}
+		
+		/**
+		 * Checks whether the connection of this idle connector is still alive.
+		 * For SMTP, {@link javax.mail.Transport#isConnected()} issues a NOOP, which also resets the server's idle timer.
+		 * @return true, if the connection is alive, false if it should be evicted
+		 */
+		public boolean probe()
+		{
+			try
+			{
+				return this.transport.isConnected();
+			}
+			catch (RuntimeException e)
+			{
+				return false;
+			}
+		}
+		
+		/**
+		 * Records that a message transaction was completed using this connector.
+		 */
+		public void messageSent()
+		{
+			this.messageCount += 1;
+			this.lastSent = System.currentTimeMillis();
+		}
 		
-		public TransportConnector(Transport transport, Integer index)
+		/**
+		 * @return the time, in milliseconds, at which this connector last completed a message transaction, or was connected, if more recent
+		 */
+		public long getLastSent()
 		{
-			this.transport = transport;
-			this.index = index;
+			return this.lastSent;
 		}
 		
-		public Transport getTransport()
+		/**
+		 * @return true, if this connector's connection exceeded the configured maximum message count, false otherwise
+		 */
+		private boolean isExhausted()
 		{
-			return this.transport;
+			return (TransportProxy.this.maxMessagesPerConnection > 0) && (this.messageCount >= TransportProxy.this.maxMessagesPerConnection);
 		}
 		
-		public Integer getIndex()
+		/**
+		 * @return true, if this connector's connection exceeded the configured maximum message count or age, false otherwise
+		 */
+		public boolean isExpired()
 		{
-			return this.index;
+			if (this.isExhausted())
+			{
+				return true;
+			}
+			
+			return (TransportProxy.this.maxConnectionAge > 0) && (this.connectTime > 0) && (System.currentTimeMillis() - this.connectTime >= TransportProxy.this.maxConnectionAge);
 		}
 		
-		public void connect(URLName url)
+		/**
+		 * Attempts to reset the current mail transaction, e.g. after a failed send, so that the connection can be reused instead of reconnected.
+		 * @return true, if the connection was successfully reset, false if it should be considered dead
+		 */
+		public boolean reset()
 		{
-			this.url = url;
+			if (!(this.transport instanceof SMTPTransport) || !this.transport.isConnected())
+			{
+				return false;
+			}
 			
-			this.reconnect();
+			try
+			{
+				((SMTPTransport) this.transport).issueCommand("RSET", 250);
+				
+				return true;
+			}
+			catch (MessagingException | RuntimeException e)
+			{
+				return false;
+			}
 		}
 		
-		public void reconnect()
+		/**
+		 * @return true, if this connector was interrupted by close, and must be released as is
+		 */
+		public boolean isInterrupted()
 		{
-			this.thread = new Thread(this);
-			this.thread.start();
+			return this.interrupted;
 		}
-
+		
 		public void interrupt()
 		{
-			this.thread.interrupt();
+			this.interrupted = true;
+			
+			Thread thread = this.thread;
+			
+			if (thread != null)
+			{
+				thread.interrupt();
+			}
+			
+			this.cancelRetry();
+		}
+		
+		/**
+		 * Runs a pending retry immediately, so that an interrupted connector is released without waiting out its backoff.
+		 */
+		private void cancelRetry()
+		{
+			ScheduledFuture<?> future = this.retryFuture;
+			
+			// Only the thread that cancels the retry may run it
+			if ((future != null) && future.cancel(false))
+			{
+				this.reconnect();
+			}
+		}
+		
+		private void scheduleRetry()
+		{
+			long delay = TransportProxy.this.idleConnectorPool.getBreaker(this.index).getRetryDelay(this.attempts);
+			
+			this.attempts += 1;
+			
+			if (log.isDebugEnabled())
+			{
+				log.debug("Retrying " + this.url.getProtocol() + " connection to " + this.url.getHost() + " in " + delay + " ms");
+			}
+			
+			this.retryFuture = TransportProxy.this.scheduler.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+			
+			// Interrupt may have missed the retry
+			if (this.interrupted)
+			{
+				this.cancelRetry();
+			}
 		}
 		
 		@Override
 		public void run()
 		{
+			this.retryFuture = null;
+			this.thread = Thread.currentThread();
+			
+			boolean connected = false;
+			
+			try
+			{
+				if (!this.interrupted)
+				{
+					connected = this.connect();
+				}
+			}
+			finally
+			{
+				this.thread = null;
+				
+				// Do not leak a pending interrupt into the next task run by this pooled thread
+				Thread.interrupted();
+			}
+			
+			if (!connected && !this.interrupted)
+			{
+				this.scheduleRetry();
+				return;
+			}
+			
+			this.attempts = 0;
+
+			// Release connector back to the pool
+			TransportProxy.this.releaseConnector(this);
+		}
+		
+		/**
+		 * Makes a single connect attempt, if permitted by the circuit breaker of this connector's host.
+		 * @return true, if the transport was connected, false otherwise
+		 */
+		private boolean connect()
+		{
+			this.connectTime = 0;
+			this.messageCount = 0;
+			
 			if (this.transport.isConnected())
 			{
 				try
@@ -517,102 +2291,501 @@ public class TransportProxy extends Transport
 				}
 			}
 			
-			while (!this.transport.isConnected() && !Thread.interrupted())
+			CircuitBreaker breaker = TransportProxy.this.idleConnectorPool.getBreaker(this.index);
+			
+			if (!breaker.allowConnect())
 			{
-				try
+				return false;
+			}
+			
+			boolean connected = false;
+			
+			try
+			{
+				this.transport.connect(this.url.getHost(), this.url.getPort(), this.url.getUsername(), this.url.getPassword());
+				
+				this.connectTime = System.currentTimeMillis();
+				this.lastSent = this.connectTime;
+				connected = true;
+				
+				breaker.recordSuccess();
+				
+				log.info("Successfully opened " + this.url.getProtocol() + " connection to " + this.url.getHost());
+				
+				if (this.established)
 				{
-					this.transport.connect(this.url.getHost(), this.url.getPort(), this.url.getUsername(), this.url.getPassword());
-					
-					log.info("Successfully opened " + this.url.getProtocol() + " connection to " + this.url.getHost());
+					TransportProxy.this.metrics.recordReconnect();
 				}
-				catch (MessagingException e)
+				
+				this.established = true;
+				
+				return true;
+			}
+			catch (MessagingException | RuntimeException e)
+			{
+				log.warn("Failed to connect transport", e);
+				
+				return false;
+			}
+			finally
+			{
+				// Even unexpected failures must end the trial of a half-open breaker
+				if (!connected && breaker.recordFailure())
 				{
-					log.warn("Failed to connect transport", e);
-					
-					try
-					{
-						// Try again after a delay
-						Thread.sleep(TransportProxy.this.connectRetryPeriod);
-					}
-					catch (InterruptedException ie)
-					{
-						this.interrupt();
-					}
+					TransportProxy.this.evict(TransportProxy.this.hostIndexes[this.index]);
 				}
 			}
-
-			// Release connector back to the pool
-			TransportProxy.this.releaseConnector(this);
 		}
 	}
 
 	/**
 	 * Asynchronously send a message to a set of addresses via a transport.
+	 * Sends are executed by the sender and connector executor, rather than by a dedicated thread.
+	 * Before becoming idle, a sender processes any deliveries waiting in the submission queue.
+	 * Deliveries are only handed to senders by {@link TransportProxy#schedule(Delivery)}, and the submission queue,
+	 * so that every send is subject to throttling, backpressure, and metrics.
 	 */
-	private class MessageSender implements Sender, Runnable
+	private class MessageSender implements Runnable
 	{
-		private Integer index;
-		private Message message;
-		private Address[] addresses;
+		private int index;
+		private Delivery delivery;
 		
-		public MessageSender(Integer index)
+		public MessageSender(int index)
 		{
 			this.index = index;
 		}
 		
-		public Integer getIndex()
+		public int getIndex()
 		{
 			return this.index;
 		}
 		
+		public void submit(Delivery delivery)
+		{
+			this.delivery = delivery;
+			
+			TransportProxy.this.executor.execute(this);
+		}
+		
 		@Override
-		public void send(Message message, Address[] addresses)
+		public void run()
+		{
+			Delivery delivery = this.delivery;
+			
+			while (delivery != null)
+			{
+				delivery.deliver();
+				
+				delivery = TransportProxy.this.submissionQueue.poll();
+			}
+			
+			// Release sender back to the pool
+			TransportProxy.this.releaseSender(this);
+			
+			// A delivery may have been queued after the last poll
+			TransportProxy.this.pump();
+		}
+	}
+	
+	/**
+	 * A message to be sent to a set of addresses, along with its future outcome.
+	 */
+	private class Delivery
+	{
+		final Message message;
+		// Addresses of the next attempt, i.e. those not yet sent to, nor rejected
+		Address[] addresses;
+		// Renders the message on first use, if rendering is enabled
+		final MessageRenderer.Rendering rendering;
+		// Notified of the addresses no longer pending, before the others are retried
+		final Consumer<Address[]> progress;
+		final CompletableFuture<DeliveryReport> future = new CompletableFuture<>();
+		final long submitTime = System.currentTimeMillis();
+		long submitNanos = System.nanoTime();
+		// Indicates whether the delivery has passed its domain rate limit
+		boolean admitted = false;
+		// Indicates whether the deferred validators have run
+		boolean validated = false;
+		int attempts = 0;
+		String host;
+		// Outcome of previous attempts, if any
+		List<Address> sentList;
+		List<Address> invalidList;
+		// Indicates whether an attempt is in progress
+		volatile boolean sending = false;
+		
+		Delivery(Message message, Address[] addresses, MessageRenderer.Rendering rendering, Consumer<Address[]> progress)
 		{
 			this.message = message;
 			this.addresses = addresses;
+			this.rendering = rendering;
+			this.progress = progress;
 			
-			new Thread(this).start();
+			TransportProxy.this.pendingDeliveries.add(this);
 		}
 		
-		@Override
-		public void run()
+		/**
+		 * Completes this delivery with the specified report.
+		 */
+		void complete(DeliveryReport report)
+		{
+			this.future.complete(report);
+			
+			TransportProxy.this.pendingDeliveries.remove(this);
+		}
+		
+		/**
+		 * Completes this delivery with the specified failure.
+		 */
+		void fail(Throwable failure)
+		{
+			this.future.completeExceptionally(failure);
+			
+			TransportProxy.this.pendingDeliveries.remove(this);
+		}
+		
+		/**
+		 * Cancels this delivery, as the transport closed before it completed.
+		 * Cancelled deliveries remain pending, until reported by {@link TransportProxy#close(Duration)}.
+		 * Deliveries cancelled by the caller, e.g. by a proxy sharing this pool, are dropped once they would next be attempted.
+		 */
+		void cancel()
+		{
+			this.future.cancel(false);
+		}
+		
+		/**
+		 * @return true, if the message carries a bulk precedence, false otherwise
+		 */
+		boolean isBulk()
+		{
+			try
+			{
+				String[] precedences = this.message.getHeader("Precedence");
+				
+				if (precedences != null)
+				{
+					for (String precedence: precedences)
+					{
+						String value = precedence.trim();
+						
+						if (value.equalsIgnoreCase("bulk") || value.equalsIgnoreCase("list") || value.equalsIgnoreCase("junk"))
+						{
+							return true;
+						}
+					}
+				}
+			}
+			catch (MessagingException e)
+			{
+				// Treat as non-bulk
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Invoked by the deferral wheel once this delivery is due.
+		 */
+		void expire()
+		{
+			TransportProxy.this.resume(this);
+		}
+		
+		/**
+		 * Records the outcome of an attempt that failed for some, or all, of its addresses.
+		 * @return the delay, in milliseconds, before the unsent addresses are attempted again, or -1 if this delivery is complete
+		 */
+		long recover(String host, SendFailedException exception)
+		{
+			Map<Address, Integer> replyMap = getRecipientReplies(exception);
+			List<Address> unsentList = new ArrayList<>();
+			List<Address> invalidList = new ArrayList<>();
+			
+			// Recipients with a reply of their own are retried, or dropped, per that reply, regardless of how the failure as a whole was classified
+			if (exception.getValidUnsentAddresses() != null)
+			{
+				for (Address address: exception.getValidUnsentAddresses())
+				{
+					Integer reply = replyMap.get(address);
+					
+					if ((reply != null) && (reply >= 500))
+					{
+						invalidList.add(address);
+					}
+					else
+					{
+						unsentList.add(address);
+					}
+				}
+			}
+			
+			if (exception.getInvalidAddresses() != null)
+			{
+				for (Address address: exception.getInvalidAddresses())
+				{
+					Integer reply = replyMap.get(address);
+					
+					if ((reply != null) && (reply < 500))
+					{
+						unsentList.add(address);
+					}
+					else
+					{
+						invalidList.add(address);
+					}
+				}
+			}
+			
+			this.host = host;
+			this.attempts += 1;
+			this.sentList = append(this.sentList, exception.getValidSentAddresses());
+			this.invalidList = append(this.invalidList, invalidList.toArray(new Address[invalidList.size()]));
+			this.addresses = unsentList.toArray(new Address[unsentList.size()]);
+			
+			if ((this.addresses.length == 0) || !isTransient(exception))
+			{
+				return -1;
+			}
+			
+			long delay = TransportProxy.this.getRetryDelay(this);
+			
+			if (delay < 0)
+			{
+				log.warn("Giving up on " + InternetAddress.toString(this.addresses) + " after " + this.attempts + " attempts");
+			}
+			else
+			{
+				log.info("Retrying " + InternetAddress.toString(this.addresses) + " in " + delay + " ms, after attempt " + this.attempts);
+				
+				if (this.progress != null)
+				{
+					List<Address> doneList = append(new ArrayList<>(invalidList), exception.getValidSentAddresses());
+					
+					this.progress.accept(doneList.toArray(new Address[doneList.size()]));
+				}
+			}
+			
+			return delay;
+		}
+		
+		/**
+		 * Creates the report of this delivery, including the outcome of previous attempts.
+		 */
+		DeliveryReport report(Address[] sent, Address[] unsent, Address[] invalid)
+		{
+			if ((this.sentList == null) && (this.invalidList == null))
+			{
+				return new DeliveryReport(this.host, System.currentTimeMillis() - this.submitTime, sent, unsent, invalid, this.attempts);
+			}
+			
+			List<Address> sentList = append(this.sentList, sent);
+			List<Address> invalidList = append(this.invalidList, invalid);
+			
+			return new DeliveryReport(this.host, System.currentTimeMillis() - this.submitTime, (sentList != null) ? sentList.toArray(new Address[sentList.size()]) : null, unsent, (invalidList != null) ? invalidList.toArray(new Address[invalidList.size()]) : null, this.attempts);
+		}
+		
+		/**
+		 * Abandons this delivery, as it was dropped from the submission queue.
+		 */
+		void drop()
+		{
+			log.warn("Dropped bulk message to " + InternetAddress.toString(this.addresses) + " from full submission queue");
+			
+			this.fail(new MessagingException("Message dropped from full submission queue"));
+		}
+		
+		/**
+		 * Sends the message via a pooled connector, retrying on another connector if the connection is dead.
+		 */
+		void deliver()
 		{
 			TransportConnector connector = null;
+			DeliveryReport report = null;
+			Throwable failure = null;
+			long retryDelay = -1;
+			
+			TransportProxy.this.metrics.recordSenderWait(System.nanoTime() - this.submitNanos);
+			
+			if (!this.validated)
+			{
+				this.validated = true;
+				
+				try
+				{
+					// Deferred validators may inspect content, so run them here, rather than on the calling thread
+					validate(TransportProxy.this.deferredValidators, this.message, this.addresses);
+				}
+				catch (MessagingException | RuntimeException e)
+				{
+					this.fail(e);
+					return;
+				}
+			}
+			
+			Message message = this.message;
+			
+			if (this.rendering != null)
+			{
+				try
+				{
+					// Rendered by the first sender of this message, shared by its other address groups and retries
+					message = this.rendering.get();
+				}
+				catch (MessagingException | RuntimeException e)
+				{
+					this.fail(e);
+					return;
+				}
+			}
 			
 			while (connector == null)
 			{
-				connector = TransportProxy.this.acquireConnector();
+				// Cancelled while queued, deferred, or retrying on another connector
+				if (this.future.isCancelled())
+				{
+					TransportProxy.this.pendingDeliveries.remove(this);
+					return;
+				}
+				
+				connector = TransportProxy.this.acquireConnector(this.addresses);
 				
 				URLName url = connector.getTransport().getURLName();
 				
+				if (TransportProxy.this.relayRateLimiter != null)
+				{
+					long delay = TransportProxy.this.relayRateLimiter.tryAcquire(url.getHost().toLowerCase(Locale.ROOT));
+					
+					if (delay > 0)
+					{
+						// Rather than hold this sender and connector until the relay admits another send, try again later, possibly via another relay
+						TransportProxy.this.releaseConnector(connector);
+						TransportProxy.this.defer(this, delay);
+						
+						return;
+					}
+				}
+				
+				HostHealth health = TransportProxy.this.idleConnectorPool.getHealth(connector.getIndex());
+				CircuitBreaker breaker = TransportProxy.this.idleConnectorPool.getBreaker(connector.getIndex());
+				long start = System.nanoTime();
+				
+				this.sending = true;
+				
 				try
 				{
-					connector.getTransport().sendMessage(this.message, this.addresses);
+					connector.getTransport().sendMessage(message, this.addresses);
+					
+					health.recordSuccess(System.nanoTime() - start);
+					breaker.recordSuccess();
+					connector.messageSent();
+					
+					this.host = url.getHost();
+					this.attempts += 1;
+					
+					report = this.report(this.addresses, null, null);
 				}
 				catch (SendFailedException e)
 				{
-					log.error("Failed to send message to invalid addresses: " + InternetAddress.toString(this.addresses), e);
+					log.warn("Failed to send message to some of " + InternetAddress.toString(this.addresses), e);
+					
+					TransportProxy.this.metrics.recordSendFailure();
+					
+					// Rejected recipients do not reflect on the health of the host
+					health.recordSuccess(System.nanoTime() - start);
+					breaker.recordSuccess();
+					connector.messageSent();
+					
+					retryDelay = this.recover(url.getHost(), e);
+					
+					if (retryDelay < 0)
+					{
+						report = this.report(null, this.addresses, null);
+					}
 				}
 				catch (MessagingException e)
 				{
-					log.debug(url.getProtocol() + " connection to " + url.getHost() + " is dead.", e);
-					
-					// Transport connection is dead
-					connector.reconnect();
-					
-					connector = null;
+					if (connector.reset())
+					{
+						// Transport connection survived, so it can be reused without a new handshake
+						connector.messageSent();
+						
+						this.host = url.getHost();
+						this.attempts += 1;
+						
+						if (isPermanent(e))
+						{
+							log.error("Failed to send message to " + InternetAddress.toString(this.addresses) + " via " + url.getHost(), e);
+							
+							// The failure lies with the message, and would recur on any other connector
+							failure = e;
+						}
+						else
+						{
+							retryDelay = TransportProxy.this.getRetryDelay(this);
+							
+							if (retryDelay < 0)
+							{
+								log.error("Giving up on " + InternetAddress.toString(this.addresses) + " after " + this.attempts + " attempts", e);
+								
+								failure = e;
+							}
+							else
+							{
+								log.warn("Failed to send message to " + InternetAddress.toString(this.addresses) + " via " + url.getHost() + ", retrying in " + retryDelay + " ms", e);
+							}
+						}
+					}
+					else
+					{
+						log.debug(url.getProtocol() + " connection to " + url.getHost() + " is dead.", e);
+						
+						health.recordFailure();
+						
+						if (breaker.recordFailure())
+						{
+							TransportProxy.this.evict(TransportProxy.this.hostIndexes[connector.getIndex()]);
+						}
+						
+						// Transport connection is dead
+						TransportProxy.this.metrics.recordDeadConnection();
+						connector.reconnect();
+						
+						connector = null;
+					}
 				}
 				catch (Throwable e)
 				{
 					log.error("Unexpected failure while sending message via " + url.getHost(), e);
+					
+					failure = e;
+				}
+				finally
+				{
+					this.sending = false;
 				}
 			}
 			
 			// Release connector back to the pool
 			TransportProxy.this.releaseConnector(connector);
 			
-			// Release sender back to the pool
-			TransportProxy.this.releaseSender(this);
+			if (retryDelay >= 0)
+			{
+				// Only the unsent addresses are sent again, so recipients never receive the message twice
+				TransportProxy.this.retry(this, retryDelay);
+				
+				return;
+			}
+			
+			// Complete only after releasing, so that dependent actions cannot hold on to the connector
+			if (failure != null)
+			{
+				this.fail(failure);
+			}
+			else
+			{
+				this.complete(report);
+			}
 		}
 	}
 }
@@ -0,0 +1,87 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Describes a message whose send was cancelled by {@link net.sf.hajavamail.TransportProxy#close(java.time.Duration)}, because it was still pending at the deadline.
+ * A message split into several sends by the sender strategy is described once per cancelled send.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public class UndeliveredMessage
+{
+	private final Message message;
+	private final Address[] addresses;
+	private final boolean inFlight;
+
+	/**
+	 * Constructs a new UndeliveredMessage.
+	 * @param message the message, as handed to the underlying transport
+	 * @param addresses the addresses to which the message was not yet sent
+	 * @param inFlight indicates whether a send of this message was still in progress
+	 */
+	public UndeliveredMessage(Message message, Address[] addresses, boolean inFlight)
+	{
+		this.message = message;
+		this.addresses = addresses;
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * @return the message, as handed to the underlying transport
+	 */
+	public Message getMessage()
+	{
+		return this.message;
+	}
+
+	/**
+	 * @return the addresses to which the message was not yet sent
+	 */
+	public Address[] getAddresses()
+	{
+		return this.addresses.clone();
+	}
+
+	/**
+	 * Indicates whether a send of this message was still in progress, e.g. hung on an unresponsive relay, when it was cancelled.
+	 * Such a send may yet complete, so resending the message may deliver it twice.
+	 * @return true, if a send was in progress, false if the message was queued, throttled or waiting for a retry
+	 */
+	public boolean isInFlight()
+	{
+		return this.inFlight;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "UndeliveredMessage[addresses=" + InternetAddress.toString(this.addresses) + ", in-flight=" + this.inFlight + "]";
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * HA-JavaMail: High-Availability JavaMail
+ * Copyright (C) 2004 Paul Ferraro
+ * 
+ * This library is free software; you can redistribute it and/or modify it 
+ * under the terms of the GNU Lesser General Public License as published by the 
+ * Free Software Foundation; either version 2.1 of the License, or (at your 
+ * option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License 
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, 
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ * 
+ * Contact: ferraro@users.sourceforge.net
+ */
+package net.sf.hajavamail;
+
+import java.util.Locale;
+
+/**
+ * Determines when a {@link net.sf.hajavamail.TransportProxy} establishes the connections that connecting it does not wait for.
+ * To configure a specific warmup use the {@link net.sf.hajavamail.TransportProxy#WARMUP} session property.
+ *
+ * @author  mathieu
+ * @since   1.1
+ */
+public enum Warmup
+{
+	/**
+	 * Every connection is established up front, all at once.
+	 */
+	EAGER,
+	/**
+	 * Only the connections required by the {@link net.sf.hajavamail.ConnectMode}, and at least one per relay host, are established up front.
+	 * Each remaining connection is established on demand, once a send finds no idle connection.
+	 */
+	LAZY,
+	/**
+	 * Like {@link #LAZY}, but remaining connections are also established in the background, one at a time,
+	 * at the interval configured via the {@link net.sf.hajavamail.TransportProxy#WARMUP_INTERVAL} session property.
+	 */
+	GRADUAL;
+
+	/**
+	 * Returns the warmup matching the specified session property value.
+	 * @param value a case-insensitive warmup name
+	 * @return a warmup
+	 * @throws IllegalArgumentException if the value does not name a warmup
+	 */
+	public static Warmup forName(String value)
+	{
+		return valueOf(value.trim().toUpperCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,54 @@
+package net.sf.hajavamail;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void testBreakerOpensAndRecovers() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(2, 50, 1000);
+		assertTrue(breaker.allowConnect());
+
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowsTraffic());
+		assertFalse(breaker.allowConnect());
+
+		Thread.sleep(60);
+
+		// A single trial is permitted once the open period elapsed, while traffic waits for its outcome
+		assertFalse(breaker.allowsTraffic());
+		assertTrue(breaker.allowConnect());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowConnect());
+
+		// Failed trial reopens the breaker
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.getRetryDelay(0) > 0);
+
+		Thread.sleep(110);
+
+		assertTrue(breaker.allowConnect());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allowConnect());
+	}
+
+	@Test
+	public void testBackoffJitter() {
+		for (int attempt = 0; attempt < 40; ++attempt) {
+			long max = Math.min(1000, 10L << Math.min(attempt, 30));
+			long delay = CircuitBreaker.backoff(10, 1000, attempt);
+			assertTrue(delay >= max / 2);
+			assertTrue(delay <= max);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package net.sf.hajavamail;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class ConnectorPoolTest {
+
+	@Test
+	public void testSelectionFavorsHealthyHost() {
+		ConnectorPool pool = new ConnectorPool(4);
+		pool.configure(new String[] { "slow", "fast" }, new int[] { 0, 1, 0, 1 });
+		for (int i = 0; i < 4; ++i) {
+			pool.release(i);
+		}
+
+		for (int i = 0; i < 20; ++i) {
+			pool.getHealth(0).recordSuccess(100000000L);
+			pool.getHealth(1).recordSuccess(1000000L);
+		}
+		assertEquals("slow", pool.getHealth(2).getHost());
+		assertTrue(pool.getHealth(0).getScore() > pool.getHealth(1).getScore());
+
+		int fast = 0;
+		for (int i = 0; i < 1000; ++i) {
+			int index = pool.acquire();
+			if (index % 2 == 1) {
+				fast += 1;
+			}
+			pool.release(index);
+		}
+		// With both hosts idle, the faster host always wins
+		assertEquals(1000, fast);
+
+		// Slow host is still used when the fast host is busy
+		int first = pool.acquire();
+		int second = pool.acquire();
+		int third = pool.acquire();
+		assertEquals(1, first % 2);
+		assertEquals(1, second % 2);
+		assertEquals(0, third % 2);
+		assertEquals(1, pool.available());
+	}
+
+	@Test
+	public void testSelectionSkipsOpenBreaker() {
+		ConnectorPool pool = new ConnectorPool(4, 1, 60000, 60000);
+		pool.configure(new String[] { "down", "up" }, new int[] { 0, 1, 0, 1 });
+		pool.release(0);
+		pool.release(1);
+		pool.release(2);
+		pool.release(3);
+
+		pool.getBreaker(0).recordFailure();
+		assertFalse(pool.getBreaker(2).allowsTraffic());
+
+		assertEquals(1, pool.acquire() % 2);
+		assertEquals(1, pool.acquire() % 2);
+		// Open host is only used once no other host has idle connectors, for the caller to evict
+		assertEquals(0, pool.acquire() % 2);
+	}
+
+	@Test
+	public void testTryAcquireByHost() {
+		ConnectorPool pool = new ConnectorPool(3);
+		pool.configure(new String[] { "a", "b" }, new int[] { 0, 1, 0 });
+		assertEquals(-1, pool.tryAcquire(0));
+		pool.release(0);
+		pool.release(1);
+		pool.release(2);
+		assertEquals(2, pool.getHostCount());
+		assertEquals(2, pool.available(0));
+
+		assertEquals(0, pool.tryAcquire(0));
+		assertEquals(2, pool.tryAcquire(0));
+		assertEquals(-1, pool.tryAcquire(0));
+		// Failed attempt must not leak a permit
+		assertEquals(1, pool.available());
+		assertEquals(1, pool.acquire());
+	}
+
+	@Test
+	public void testAffinityIsBoundedByLoad() {
+		ConnectorPool pool = new ConnectorPool(6);
+		String[] hosts = new String[] { "a", "b", "c" };
+		pool.configure(hosts, new int[] { 0, 1, 2, 0, 1, 2 });
+		for (int i = 0; i < 6; ++i) {
+			pool.release(i);
+		}
+
+		HashRing ring = new HashRing(hosts);
+		int hash = HashRing.hash("example.com");
+		int preferred = ring.getHost(ring.locate(hash), 0);
+
+		// Same key keeps landing on the same host
+		for (int i = 0; i < 100; ++i) {
+			int index = pool.acquire(hash);
+			assertEquals(preferred, index % 3);
+			pool.release(index);
+		}
+
+		// Preferred host takes its share of busy connectors, then the key spills over to the next host on the ring
+		int first = pool.acquire(hash);
+		int second = pool.acquire(hash);
+		assertEquals(preferred, first % 3);
+		assertEquals(ring.getHost(ring.locate(hash), 1), second % 3);
+		pool.release(first);
+		pool.release(second);
+
+		// Keys of a failed host move to the next host on the ring
+		for (int i = 0; i < 3; ++i) {
+			pool.getBreaker(preferred).recordFailure();
+		}
+		int index = pool.acquire(hash);
+		assertEquals(ring.getHost(ring.locate(hash), 1), index % 3);
+	}
+}
@@ -0,0 +1,155 @@
+package net.sf.hajavamail;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+/**
+ * In-process transport that sends nothing, for tests and benchmarks.
+ * Registered for the "fake" protocol via META-INF/javamail.providers, behind {@link TransportProxy}.
+ * Latency and failures are injected via session properties:
+ * <ul>
+ *  <li>mail.fake.connect-latency / mail.fake.send-latency: delay in microseconds</li>
+ *  <li>mail.fake.connect-failure-rate: probability that a connect fails</li>
+ *  <li>mail.fake.failure-rate: probability that a send fails and drops the connection</li>
+ *  <li>mail.fake.reject-rate: probability that a send fails with a {@link SendFailedException}</li>
+ * </ul>
+ *
+ * @author mathieu
+ */
+public class FakeTransport extends Transport {
+
+	public static final String PROTOCOL = "fake";
+	public static final String CONNECT_LATENCY = "mail.fake.connect-latency";
+	public static final String SEND_LATENCY = "mail.fake.send-latency";
+	public static final String CONNECT_FAILURE_RATE = "mail.fake.connect-failure-rate";
+	public static final String FAILURE_RATE = "mail.fake.failure-rate";
+	public static final String REJECT_RATE = "mail.fake.reject-rate";
+
+	private static final LongAdder connects = new LongAdder();
+	private static final LongAdder messages = new LongAdder();
+	private static final LongAdder recipients = new LongAdder();
+	private static final LongAdder downSends = new LongAdder();
+	private static final Set<String> downHosts = ConcurrentHashMap.newKeySet();
+
+	private final long connectLatency;
+	private final long sendLatency;
+	private final double connectFailureRate;
+	private final double failureRate;
+	private final double rejectRate;
+
+	public FakeTransport(Session session, URLName url) {
+		super(session, url);
+		this.connectLatency = Long.parseLong(session.getProperty(CONNECT_LATENCY) != null ? session.getProperty(CONNECT_LATENCY) : "0");
+		this.sendLatency = Long.parseLong(session.getProperty(SEND_LATENCY) != null ? session.getProperty(SEND_LATENCY) : "0");
+		this.connectFailureRate = Double.parseDouble(session.getProperty(CONNECT_FAILURE_RATE) != null ? session.getProperty(CONNECT_FAILURE_RATE) : "0");
+		this.failureRate = Double.parseDouble(session.getProperty(FAILURE_RATE) != null ? session.getProperty(FAILURE_RATE) : "0");
+		this.rejectRate = Double.parseDouble(session.getProperty(REJECT_RATE) != null ? session.getProperty(REJECT_RATE) : "0");
+	}
+
+	@Override
+	protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+		pause(this.connectLatency);
+		if (downHosts.contains(host)) {
+			throw new MessagingException("Host is down: " + host);
+		}
+		if (chance(this.connectFailureRate)) {
+			throw new MessagingException("Injected connect failure: " + host);
+		}
+		connects.increment();
+		return true;
+	}
+
+	@Override
+	public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+		if (!this.isConnected()) {
+			throw new IllegalStateException("Not connected");
+		}
+		pause(this.sendLatency);
+		// A sender interrupted by close abandons its send, which must not count as sent
+		if (Thread.currentThread().isInterrupted()) {
+			throw new MessagingException("Interrupted while sending");
+		}
+		if (downHosts.contains(this.url.getHost())) {
+			downSends.increment();
+			this.close();
+			throw new MessagingException("Host is down: " + this.url.getHost());
+		}
+		if (chance(this.failureRate)) {
+			this.close();
+			throw new MessagingException("Injected connection failure");
+		}
+		if (chance(this.rejectRate)) {
+			throw new SendFailedException("Injected rejection", null, new Address[0], addresses, new Address[0]);
+		}
+		messages.increment();
+		recipients.add(addresses.length);
+	}
+
+	/**
+	 * @return the number of successful connects of all fake transports
+	 */
+	public static long getConnects() {
+		return connects.sum();
+	}
+
+	/**
+	 * @return the number of messages sent by all fake transports
+	 */
+	public static long getMessages() {
+		return messages.sum();
+	}
+
+	/**
+	 * @return the number of recipients of all messages sent by all fake transports
+	 */
+	public static long getRecipients() {
+		return recipients.sum();
+	}
+
+	/**
+	 * @return the number of sends attempted via hosts that were down
+	 */
+	public static long getDownSends() {
+		return downSends.sum();
+	}
+
+	/**
+	 * Takes the specified host down, or brings it back up: connects to a down host fail, and so do sends, which also drop the connection.
+	 */
+	public static void setDown(String host, boolean down) {
+		if (down) {
+			downHosts.add(host);
+		} else {
+			downHosts.remove(host);
+		}
+	}
+
+	public static void reset() {
+		connects.reset();
+		messages.reset();
+		recipients.reset();
+		downSends.reset();
+		downHosts.clear();
+	}
+
+	private static boolean chance(double rate) {
+		return (rate > 0) && (ThreadLocalRandom.current().nextDouble() < rate);
+	}
+
+	private static void pause(long micros) {
+		if (micros > 0) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+	}
+}
@@ -0,0 +1,715 @@
+package net.sf.hajavamail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class FakeTransportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testProxyOverFakeTransport() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, "2");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "100");
+
+		Session session = Session.getInstance(properties);
+		Transport transport = session.getTransport();
+		assertTrue(transport instanceof TransportProxy);
+
+		FakeTransport.reset();
+		transport.connect();
+		for (int i = 0; i < 50; ++i) {
+			Message message = new MimeMessage(session);
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress("test" + i + "@example.com"));
+			message.setSubject("Test #" + i);
+			message.setText("");
+			transport.sendMessage(message, message.getAllRecipients());
+		}
+		transport.close();
+
+		assertEquals(4, FakeTransport.getConnects());
+		assertEquals(50, FakeTransport.getMessages());
+	}
+
+	@Test
+	public void testThrottledDomainDoesNotBlockOthers() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.POOL_SIZE, "2");
+		properties.setProperty(TransportProxy.DOMAIN_RATE + ".slow.com", "5");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		try {
+			CompletableFuture<?>[] slow = new CompletableFuture<?>[5];
+			for (int i = 0; i < slow.length; ++i) {
+				slow[i] = transport.sendMessageAsync(message(session, "test" + i + "@slow.com"), new InternetAddress[] { new InternetAddress("test" + i + "@slow.com") });
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < 50; ++i) {
+				transport.sendMessageAsync(message(session, "test" + i + "@fast.com"), new InternetAddress[] { new InternetAddress("test" + i + "@fast.com") }).get(1, TimeUnit.SECONDS);
+			}
+			// Deferred messages hold no sender, so other domains flow while they wait
+			assertFalse(slow[slow.length - 1].isDone());
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+			CompletableFuture.allOf(slow).get(5, TimeUnit.SECONDS);
+			// 5 sends at 5 per second, with a burst of 1
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(700));
+			assertEquals(4, transport.getMetrics().getThrottledSends());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testThrottledDomainAmongRecipients() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.POOL_SIZE, "2");
+		properties.setProperty(TransportProxy.DOMAIN_RATE + ".slow.com", "5");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		try {
+			// The default strategy does not group recipients by domain, so the throttled domain is not always first
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[4];
+			long start = System.nanoTime();
+			for (int i = 0; i < futures.length; ++i) {
+				InternetAddress fast = new InternetAddress("test" + i + "@fast.com");
+				InternetAddress slow = new InternetAddress("test" + i + "@slow.com");
+				InternetAddress[] addresses = (i % 2 == 0) ? new InternetAddress[] { fast, slow } : new InternetAddress[] { slow, fast };
+				futures[i] = transport.sendMessageAsync(message(session, "test" + i + "@fast.com"), addresses);
+			}
+			CompletableFuture.allOf(futures).get(5, TimeUnit.SECONDS);
+			// 4 sends at 5 per second, with a burst of 1
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+			assertEquals(3, transport.getMetrics().getThrottledSends());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testResumedDeliveriesDoNotBlockOnFullQueue() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.POOL_SIZE, "1");
+		// Every send recycles the connection, which needs an executor thread to reconnect
+		properties.setProperty(TransportProxy.MAX_MESSAGES_PER_CONNECTION, "1");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "1");
+		properties.setProperty(TransportProxy.QUEUE_TIMEOUT, "10000");
+		properties.setProperty(TransportProxy.DOMAIN_RATE + ".slow.com", "50");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "20000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		try {
+			// Throttled deliveries resume while new sends keep the queue full
+			List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; ++i) {
+				String recipient = "test" + i + ((i % 2 == 0) ? "@slow.com" : "@fast.com");
+				futures.add(transport.sendMessageAsync(message(session, recipient), new InternetAddress[] { new InternetAddress(recipient) }));
+			}
+			for (CompletableFuture<DeliveryReport> future : futures) {
+				assertTrue(future.get(5, TimeUnit.SECONDS).isComplete());
+			}
+		} finally {
+			transport.close();
+		}
+	}
+
+	private static Message message(Session session, String recipient) throws Exception {
+		Message message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+		message.setSubject("Test");
+		message.setText("");
+		return message;
+	}
+
+	@Test
+	public void testPoolGrowsUnderLoadAndShrinksWhenIdle() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_MIN_SIZE, "1");
+		properties.setProperty(TransportProxy.POOL_MAX_SIZE, "4");
+		// Per-relay connection cap
+		properties.setProperty(TransportProxy.POOL_MAX_SIZE + ".relay2", "2");
+		properties.setProperty(TransportProxy.POOL_IDLE_TIMEOUT, "0");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "1000");
+		// Load must outlast the two resizes, a second apart, that grow the pool to its maximum
+		properties.setProperty(FakeTransport.SEND_LATENCY, "20000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			assertEquals(2, active(transport));
+
+			List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+			for (int i = 0; i < 600; ++i) {
+				futures.add(transport.sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+			}
+			int peak = 0;
+			while (!CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).isDone()) {
+				peak = Math.max(peak, active(transport));
+				Thread.sleep(50);
+			}
+			// Grows to the maximum of relay1, plus the capped maximum of relay2
+			assertEquals(6, peak);
+			assertTrue(FakeTransport.getConnects() <= 6);
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((active(transport) > 2) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(100);
+			}
+			assertEquals(2, active(transport));
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsAreRecycledByAge() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.MAX_CONNECTION_AGE, "1");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			assertEquals(1, FakeTransport.getConnects());
+			// Without keepalive, nor any send, the connection is still recycled once it ages out
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((FakeTransport.getConnects() < 2) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(50);
+			}
+			assertTrue(FakeTransport.getConnects() >= 2);
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testOpenHostReceivesNoTraffic() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, "4");
+		properties.setProperty(TransportProxy.CONNECT_MODE, "all");
+		properties.setProperty(TransportProxy.BREAKER_FAILURE_THRESHOLD, "1");
+		properties.setProperty(TransportProxy.CONNECT_RETRY_INITIAL_PERIOD, "100");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "20000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			FakeTransport.setDown("relay1", true);
+			// Send until one message stumbles upon the down host, which opens its breaker
+			for (int i = 0; (i < 50) && (FakeTransport.getDownSends() == 0); ++i) {
+				transport.sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }).get(5, TimeUnit.SECONDS);
+			}
+			assertEquals(1, FakeTransport.getDownSends());
+
+			// Once the open period elapsed, only trial connects reach the down host, even while every connector of the other host is busy
+			Thread.sleep(300);
+			List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+			for (int i = 0; i < 10; ++i) {
+				futures.add(transport.sendMessageAsync(message(session, "load" + i + "@example.com"), new InternetAddress[] { new InternetAddress("load" + i + "@example.com") }));
+			}
+			for (CompletableFuture<DeliveryReport> future : futures) {
+				future.get(5, TimeUnit.SECONDS);
+			}
+			assertEquals(1, FakeTransport.getDownSends());
+		} finally {
+			FakeTransport.setDown("relay1", false);
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testCloseStopsResolverThreads() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.SENDER_STRATEGY, MailExchangerGroupingSenderStrategy.class.getName());
+		properties.setProperty(MailExchangerGroupingSenderStrategy.RESOLVER, StaticMailExchangerResolver.class.getName());
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		// Multiple recipients are grouped by mail exchanger, resolved on the threads of the strategy
+		transport.sendMessageAsync(message(session, "test@example.com"), new InternetAddress[] { new InternetAddress("test@example.com"), new InternetAddress("test@example.org") }).get(5, TimeUnit.SECONDS);
+		assertTrue(resolverThreads() > 0);
+		transport.close();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((resolverThreads() > 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, resolverThreads());
+	}
+
+	private static long resolverThreads() {
+		return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().startsWith("hajavamail-mx-")).count();
+	}
+
+	@Test
+	public void testBlockedSendTimesOutByDefault() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.CONNECT_TIMEOUT, "1");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "1");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "3000000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		try {
+			// One send occupies the only sender, and another the only queue slot
+			transport.sendMessageAsync(message(session, "test1@example.com"), new InternetAddress[] { new InternetAddress("test1@example.com") });
+			transport.sendMessageAsync(message(session, "test2@example.com"), new InternetAddress[] { new InternetAddress("test2@example.com") });
+			long start = System.currentTimeMillis();
+			try {
+				transport.sendMessageAsync(message(session, "test3@example.com"), new InternetAddress[] { new InternetAddress("test3@example.com") });
+				fail();
+			} catch (MessagingException e) {
+				// Blocked for the connect timeout
+				long elapsed = System.currentTimeMillis() - start;
+				assertTrue(elapsed >= 900);
+				assertTrue(elapsed < 2900);
+			}
+		} finally {
+			transport.close(Duration.ofMillis(100));
+		}
+	}
+
+	@Test
+	public void testLazyWarmup() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, "3");
+		properties.setProperty(TransportProxy.CONNECT_MODE, "quorum");
+		properties.setProperty(TransportProxy.WARMUP, "lazy");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "100");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "50000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			// Majority of 6 connections
+			assertEquals(4, active(transport));
+			assertEquals(4, FakeTransport.getConnects());
+
+			List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; ++i) {
+				futures.add(transport.sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+			assertEquals(6, active(transport));
+			assertEquals(6, FakeTransport.getConnects());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testGradualWarmup() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, "3");
+		properties.setProperty(TransportProxy.WARMUP, "gradual");
+		properties.setProperty(TransportProxy.WARMUP_INTERVAL, "200");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		try {
+			// One connection per host up front
+			assertEquals(2, active(transport));
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((active(transport) < 6) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(50);
+			}
+			assertEquals(6, active(transport));
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testConnectDeadline() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.CONNECT_MODE, "all");
+		properties.setProperty(TransportProxy.CONNECT_TIMEOUT, "1");
+		properties.setProperty(FakeTransport.CONNECT_FAILURE_RATE, "1");
+
+		Session session = Session.getInstance(properties);
+		Transport transport = session.getTransport();
+		long start = System.currentTimeMillis();
+		try {
+			transport.connect();
+			fail();
+		} catch (MessagingException e) {
+			assertTrue(System.currentTimeMillis() - start < 3000);
+		}
+	}
+
+	@Test
+	public void testCoalescingHashesOffCallerThread() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.COALESCE_WINDOW, "50");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			Thread caller = Thread.currentThread();
+			List<Thread> writers = new ArrayList<>();
+			List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+			for (int i = 0; i < 5; ++i) {
+				MimeMessage message = new MimeMessage(session) {
+					@Override
+					public void writeTo(OutputStream output, String[] ignoreList) throws IOException, MessagingException {
+						synchronized (writers) {
+							writers.add(Thread.currentThread());
+						}
+						super.writeTo(output, ignoreList);
+					}
+				};
+				message.setFrom(new InternetAddress("sender@example.com"));
+				message.setRecipient(Message.RecipientType.TO, new InternetAddress("list@example.com"));
+				message.setSubject("Test");
+				message.setText("Hello world");
+				futures.add(transport.sendMessageAsync(message, new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+			}
+			synchronized (writers) {
+				assertTrue(writers.isEmpty());
+			}
+			for (CompletableFuture<DeliveryReport> future : futures) {
+				assertEquals(1, future.get(5, TimeUnit.SECONDS).getValidSentAddresses().length);
+			}
+			assertEquals(1, FakeTransport.getMessages());
+			synchronized (writers) {
+				assertFalse(writers.contains(caller));
+			}
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testRenderingOffCallerThread() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.RENDER_ONCE, "true");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			List<Thread> writers = new ArrayList<>();
+			MimeMessage message = new MimeMessage(session) {
+				@Override
+				public void writeTo(OutputStream output, String[] ignoreList) throws IOException, MessagingException {
+					synchronized (writers) {
+						writers.add(Thread.currentThread());
+					}
+					super.writeTo(output, ignoreList);
+				}
+			};
+			message.setFrom(new InternetAddress("sender@example.com"));
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress("test@example.com"));
+			message.setSubject("Test");
+			message.setText("Hello world");
+			assertTrue(transport.sendMessageAsync(message, message.getAllRecipients()).get(5, TimeUnit.SECONDS).isComplete());
+			assertEquals(1, FakeTransport.getMessages());
+			synchronized (writers) {
+				// Rendered exactly once, by the sender
+				assertEquals(1, writers.size());
+				assertNotSame(Thread.currentThread(), writers.get(0));
+			}
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testCloseCancelsMessagesHeldByCoalescer() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.COALESCE_WINDOW, "10");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		CountDownLatch hashing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MimeMessage message = new MimeMessage(session) {
+			@Override
+			public void writeTo(OutputStream output, String[] ignoreList) throws IOException, MessagingException {
+				// Holds the flush after it collected this message, but before it dispatched it
+				hashing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				super.writeTo(output, ignoreList);
+			}
+		};
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("test@example.com"));
+		message.setSubject("Test");
+		message.setText("Hello world");
+		CompletableFuture<DeliveryReport> future = transport.sendMessageAsync(message, message.getAllRecipients());
+		try {
+			assertTrue(hashing.await(5, TimeUnit.SECONDS));
+
+			List<UndeliveredMessage> undelivered = transport.close(Duration.ofMillis(200));
+			assertEquals(1, undelivered.size());
+			assertSame(message, undelivered.get(0).getMessage());
+			assertTrue(future.isCancelled());
+		} finally {
+			release.countDown();
+		}
+		Thread.sleep(100);
+		assertEquals(0, FakeTransport.getMessages());
+	}
+
+	@Test
+	public void testDeferredValidatorRejectsMessage() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.DEFERRED_VALIDATORS, ContentMessageValidator.class.getName());
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		FakeTransport.reset();
+		transport.connect();
+		try {
+			MimeMessage malformed = new MimeMessage(session, new ByteArrayInputStream("To: test@example.com\r\nContent-Type: multipart/mixed; boundary=xyz\r\n\r\nNo parts\r\n".getBytes("US-ASCII")));
+			// Accepted on the calling thread, whose validators only inspect headers
+			CompletableFuture<DeliveryReport> future = transport.sendMessageAsync(malformed, malformed.getAllRecipients());
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof MessagingException);
+			}
+
+			Message message = message(session, "test@example.com");
+			assertTrue(transport.sendMessageAsync(message, message.getAllRecipients()).get(5, TimeUnit.SECONDS).isComplete());
+			assertEquals(1, FakeTransport.getMessages());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testCloseDrainsPendingMessages() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "10");
+		properties.setProperty(FakeTransport.SEND_LATENCY, "100000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			futures.add(transport.sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+		}
+		assertTrue(transport.close(Duration.ofSeconds(10)).isEmpty());
+		for (CompletableFuture<DeliveryReport> future : futures) {
+			assertTrue(future.get().isComplete());
+		}
+	}
+
+	@Test
+	public void testCloseCancelsPendingMessagesAtDeadline() throws Exception {
+		Path directory = this.folder.getRoot().toPath();
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "10");
+		properties.setProperty(TransportProxy.SPOOL_DIRECTORY, directory.toString());
+		// Hung relay
+		properties.setProperty(FakeTransport.SEND_LATENCY, "60000000");
+
+		Session session = Session.getInstance(properties);
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+		List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+		for (int i = 0; i < 3; ++i) {
+			futures.add(transport.sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+		}
+		Thread.sleep(100);
+
+		long start = System.nanoTime();
+		List<UndeliveredMessage> undelivered = transport.close(Duration.ofMillis(500));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+		assertEquals(3, undelivered.size());
+		int inFlight = 0;
+		for (UndeliveredMessage message : undelivered) {
+			if (message.isInFlight()) {
+				inFlight += 1;
+			}
+		}
+		assertEquals(1, inFlight);
+		for (CompletableFuture<DeliveryReport> future : futures) {
+			assertTrue(future.isCancelled());
+		}
+
+		// Cancelled messages are resent by the next run
+		MessageSpool spool = new MessageSpool(session, directory, 64 * 1024);
+		try {
+			assertEquals(3, spool.getRecoveredEntries().size());
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void testUnclosedProxyIsReclaimed() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.KEEPALIVE_INTERVAL, "1");
+
+		Session session = Session.getInstance(properties);
+		Transport transport = session.getTransport();
+		transport.connect();
+		transport.sendMessage(message(session, "test@example.com"), new InternetAddress[] { new InternetAddress("test@example.com") });
+		WeakReference<Transport> reference = new WeakReference<>(transport);
+		transport = null;
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((reference.get() != null) && (System.currentTimeMillis() < deadline)) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		// Periodic tasks must not keep the proxy reachable, or it would never be cleaned
+		assertNull(reference.get());
+	}
+
+	@Test
+	public void testSharedPool() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", FakeTransport.PROTOCOL);
+		properties.setProperty("mail.host", "relay1,relay2");
+		properties.setProperty(TransportProxy.POOL_SIZE, "2");
+		properties.setProperty(TransportProxy.SHARED_POOL, "true");
+		properties.setProperty(TransportProxy.SHARED_POOL_IDLE_TIMEOUT, "0");
+		properties.setProperty(TransportProxy.CONNECT_MODE, "all");
+
+		FakeTransport.reset();
+		// e.g. a transport per tenant, each with its own session
+		List<TransportProxy> transports = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			Session session = Session.getInstance(properties);
+			TransportProxy transport = (TransportProxy) session.getTransport();
+			transport.connect();
+			transports.add(transport);
+		}
+		assertEquals(4, FakeTransport.getConnects());
+		assertEquals(4, active(transports.get(0)));
+
+		// Other credentials get a pool of their own
+		Session session = Session.getInstance(properties);
+		TransportProxy other = (TransportProxy) session.getTransport();
+		other.connect("relay1,relay2", "user", "password");
+		assertEquals(8, FakeTransport.getConnects());
+		other.close();
+
+		List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>();
+		for (int i = 0; i < transports.size(); ++i) {
+			futures.add(transports.get(i).sendMessageAsync(message(session, "test" + i + "@example.com"), new InternetAddress[] { new InternetAddress("test" + i + "@example.com") }));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+		assertEquals(10, FakeTransport.getMessages());
+
+		// The pool outlives all but its last lease
+		for (int i = 1; i < transports.size(); ++i) {
+			assertTrue(transports.get(i).close(Duration.ofSeconds(1)).isEmpty());
+		}
+		transports.get(0).sendMessageAsync(message(session, "last@example.com"), new InternetAddress[] { new InternetAddress("last@example.com") }).get(5, TimeUnit.SECONDS);
+		transports.get(0).close();
+
+		// Once idle, the pool is closed, so the next lease connects a new one
+		Thread.sleep(500);
+		TransportProxy transport = (TransportProxy) Session.getInstance(properties).getTransport();
+		transport.connect();
+		try {
+			assertEquals(12, FakeTransport.getConnects());
+		} finally {
+			transport.close();
+		}
+	}
+
+	private static int active(TransportProxy transport) {
+		MetricsSnapshot metrics = transport.getMetrics();
+		return metrics.getIdleConnectors() + metrics.getBusyConnectors();
+	}
+}
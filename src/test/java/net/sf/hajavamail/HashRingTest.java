@@ -0,0 +1,72 @@
+package net.sf.hajavamail;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class HashRingTest {
+
+	private static final int KEYS = 10000;
+
+	@Test
+	public void testPreferencesVisitEachHostOnce() {
+		HashRing ring = new HashRing(new String[] { "a", "b", "c" });
+		assertEquals(3, ring.getHostCount());
+		for (int i = 0; i < 100; ++i) {
+			int position = ring.locate(HashRing.hash("domain" + i + ".com"));
+			boolean[] seen = new boolean[3];
+			for (int rank = 0; rank < 3; ++rank) {
+				int host = ring.getHost(position, rank);
+				assertFalse(seen[host]);
+				seen[host] = true;
+			}
+		}
+	}
+
+	@Test
+	public void testKeysAreBalanced() {
+		HashRing ring = new HashRing(new String[] { "relay1", "relay2", "relay3", "relay4" });
+		int[] counts = new int[4];
+		for (int i = 0; i < KEYS; ++i) {
+			counts[ring.getHost(ring.locate(HashRing.hash("domain" + i + ".com")), 0)] += 1;
+		}
+		for (int count: counts) {
+			assertTrue(String.valueOf(count), Math.abs(count - KEYS / 4) < KEYS / 10);
+		}
+	}
+
+	@Test
+	public void testAddingHostOnlyMovesItsShare() {
+		HashRing before = new HashRing(new String[] { "relay1", "relay2", "relay3" });
+		HashRing after = new HashRing(new String[] { "relay1", "relay2", "relay3", "relay4" });
+		int moved = 0;
+		for (int i = 0; i < KEYS; ++i) {
+			int hash = HashRing.hash("domain" + i + ".com");
+			int oldHost = before.getHost(before.locate(hash), 0);
+			int newHost = after.getHost(after.locate(hash), 0);
+			if (oldHost != newHost) {
+				// Keys only ever move to the new host
+				assertEquals(3, newHost);
+				moved += 1;
+			}
+		}
+		assertTrue(String.valueOf(moved), (moved > KEYS / 6) && (moved < KEYS / 3));
+	}
+
+	@Test
+	public void testFailedHostKeysMoveToNextPreference() {
+		HashRing ring = new HashRing(new String[] { "relay1", "relay2", "relay3" });
+		HashRing survivors = new HashRing(new String[] { "relay1", "relay3" });
+		for (int i = 0; i < 1000; ++i) {
+			int position = ring.locate(HashRing.hash("domain" + i + ".com"));
+			int host = ring.getHost(position, 0);
+			int fallback = (host == 1) ? ring.getHost(position, 1) : host;
+			// Skipping a host on the ring is equivalent to removing it
+			int expected = survivors.getHost(survivors.locate(HashRing.hash("domain" + i + ".com")), 0);
+			assertEquals((expected == 0) ? 0 : 2, fallback);
+		}
+	}
+}
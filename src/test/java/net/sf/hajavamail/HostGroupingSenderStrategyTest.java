@@ -0,0 +1,77 @@
+package net.sf.hajavamail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class HostGroupingSenderStrategyTest {
+
+	@Test
+	public void testGroupsByCanonicalDomain() throws Exception {
+		Address[] addresses = new Address[] {
+			new InternetAddress("a@Example.com"),
+			new InternetAddress("b@other.org"),
+			new InternetAddress("c@EXAMPLE.COM"),
+			new InternetAddress("d@example.com"),
+		};
+		Collection<Address[]> groups = new HostGroupingSenderStrategy().groupAddresses(addresses);
+		assertEquals(2, groups.size());
+		for (Address[] group : groups) {
+			if (group.length == 3) {
+				// Relative order is preserved
+				assertArrayEquals(new Address[] { addresses[0], addresses[2], addresses[3] }, group);
+			} else {
+				assertArrayEquals(new Address[] { addresses[1] }, group);
+			}
+		}
+	}
+
+	@Test
+	public void testSingleDomainIsNotCopied() throws Exception {
+		Address[] addresses = new Address[] { new InternetAddress("a@example.com"), new InternetAddress("b@Example.com") };
+		Collection<Address[]> groups = new HostGroupingSenderStrategy().groupAddresses(addresses);
+		assertEquals(1, groups.size());
+		assertSame(addresses, groups.iterator().next());
+	}
+
+	@Test
+	public void testManyDomains() throws Exception {
+		HostGroupingSenderStrategy strategy = new HostGroupingSenderStrategy();
+		Address[] addresses = new Address[10000];
+		for (int i = 0; i < addresses.length; ++i) {
+			addresses[i] = new InternetAddress("user" + i + "@domain" + (i % 100) + ".example.com");
+		}
+		// Repeat, so that the second run hits the domain cache
+		for (int run = 0; run < 2; ++run) {
+			Collection<Address[]> groups = strategy.groupAddresses(addresses);
+			assertEquals(100, groups.size());
+			Map<String, List<Address>> expected = new HashMap<>();
+			for (Address address : addresses) {
+				String value = ((InternetAddress) address).getAddress();
+				expected.computeIfAbsent(value.substring(value.indexOf('@') + 1), key -> new ArrayList<>()).add(address);
+			}
+			for (Address[] group : groups) {
+				String value = ((InternetAddress) group[0]).getAddress();
+				assertArrayEquals(expected.get(value.substring(value.indexOf('@') + 1)).toArray(), group);
+			}
+		}
+	}
+
+	@Test
+	public void testAddressWithoutDomain() throws Exception {
+		DomainCache cache = new DomainCache(4);
+		assertEquals(DomainCache.NO_DOMAIN, cache.getDomain(new InternetAddress("postmaster")));
+		assertEquals("example.com", cache.getDomain(new InternetAddress("a@EXAMPLE.com")));
+		assertSame(cache.getDomain(new InternetAddress("b@example.COM")), cache.getDomain(new InternetAddress("c@Example.Com")));
+	}
+}
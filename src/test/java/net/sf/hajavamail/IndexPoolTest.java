@@ -0,0 +1,70 @@
+package net.sf.hajavamail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class IndexPoolTest {
+
+	@Test
+	public void testAcquireRelease() {
+		IndexPool pool = new IndexPool(3);
+		for (int i = 0; i < 3; ++i) {
+			pool.release(i);
+		}
+		assertEquals(3, pool.available());
+
+		int index = pool.acquire();
+		assertEquals(2, pool.available());
+		assertFalse(pool.await(3, 10, true));
+
+		pool.release(index);
+		assertTrue(pool.await(3, 10, true));
+
+		pool.clear();
+		assertEquals(0, pool.available());
+		assertEquals(-1, pool.tryAcquire());
+	}
+
+	@Test
+	public void testConcurrentAcquireRelease() throws Exception {
+		final int size = 5;
+		final int threads = 16;
+		final int iterations = 20000;
+		final IndexPool pool = new IndexPool(size);
+		final AtomicIntegerArray owners = new AtomicIntegerArray(size);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final boolean[] failed = new boolean[1];
+
+		for (int i = 0; i < size; ++i) {
+			pool.release(i);
+		}
+
+		for (int t = 0; t < threads; ++t) {
+			new Thread(() -> {
+				for (int i = 0; i < iterations; ++i) {
+					int index = pool.acquire();
+					// Each index must be held by at most one thread at a time
+					if (owners.getAndIncrement(index) != 0) {
+						failed[0] = true;
+					}
+					owners.decrementAndGet(index);
+					pool.release(index);
+				}
+				done.countDown();
+			}).start();
+		}
+
+		pool.drain();
+		done.await();
+		pool.drain();
+
+		assertFalse(failed[0]);
+		assertEquals(size, pool.available());
+	}
+}
@@ -0,0 +1,71 @@
+package net.sf.hajavamail;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsBoundRelativeError() {
+		for (long value = 0; value < 1000000; value = value * 3 / 2 + 1) {
+			int index = LatencyHistogram.index(value);
+			long highest = LatencyHistogram.highestValue(index);
+			assertTrue(highest >= value);
+			assertTrue(highest - value <= value / 16);
+			assertEquals(index, LatencyHistogram.index(highest));
+		}
+		assertEquals(LatencyHistogram.index(Long.MAX_VALUE), LatencyHistogram.index(LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE))));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; ++i) {
+			histogram.record(i * 1000000L);
+		}
+		LatencySummary summary = histogram.summarize();
+		assertEquals(1000, summary.getCount());
+		assertEquals(500.5, summary.getMean(), 0.01);
+		assertEquals(500, summary.getMedian(), 500 / 16d);
+		assertEquals(990, summary.getPercentile99(), 990 / 16d);
+		assertEquals(1000, summary.getMax(), 0);
+	}
+
+	@Test
+	public void testMXBeanMapping() throws Exception {
+		ConnectorPool connectorPool = new ConnectorPool(2);
+		connectorPool.configure(new String[] { "a", "b" }, new int[] { 0, 1 });
+		connectorPool.getHostHealth(1).recordSuccess(5000000L);
+		IndexPool senderPool = new IndexPool(2);
+		senderPool.release(0);
+		TransportMetrics metrics = new TransportMetrics(2, senderPool, connectorPool, new SubmissionQueue<Object>(1, BackpressurePolicy.FAIL, 0, null, null));
+		metrics.recordSendFailure();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("net.sf.hajavamail:type=Test");
+		server.registerMBean(new StandardMBean(metrics, TransportMetricsMXBean.class, true), name);
+		try {
+			assertEquals(1, server.getAttribute(name, "IdleSenders"));
+			assertEquals(1, server.getAttribute(name, "BusySenders"));
+			assertEquals(1L, server.getAttribute(name, "SendFailures"));
+			CompositeData[] hosts = (CompositeData[]) server.getAttribute(name, "Hosts");
+			assertEquals("b", hosts[1].get("host"));
+			assertEquals(1L, ((CompositeData) hosts[1].get("latency")).get("count"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+
+		MetricsSnapshot snapshot = new MetricsSnapshot(metrics);
+		assertEquals(2, snapshot.getHosts().size());
+		assertEquals(0, snapshot.getSenderWait().getCount());
+	}
+}
@@ -0,0 +1,338 @@
+package net.sf.hajavamail;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Minimal embedded SMTP server, bound to a loopback address, for offline tests.
+ * Faults are injected via setters: slow banners, temporary (4xx) and permanent (5xx) replies,
+ * disconnects in the middle of DATA, and a limit on concurrent connections.
+ * Received messages are counted by the value of their {@link #SEQUENCE_HEADER} header, to detect lost or duplicated messages.
+ *
+ * @author mathieu
+ */
+public class LoopbackSmtpServer implements Closeable
+{
+
+	public static final String SEQUENCE_HEADER = "X-Sequence";
+	// Recipients containing this marker are rejected with 550
+	public static final String REJECT_MARKER = "reject";
+	// Recipients containing this marker are deferred with 450 the first time they are seen, like greylisting
+	public static final String GREYLIST_MARKER = "greylist";
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable ->
+	{
+		Thread thread = new Thread(runnable, "loopback-smtp");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicInteger connections = new AtomicInteger();
+	private final LongAdder messages = new LongAdder();
+	private final Map<String, AtomicInteger> sequences = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> recipientCounts = new ConcurrentHashMap<>();
+	private final Map<String, Boolean> greylist = new ConcurrentHashMap<>();
+	private volatile long bannerDelay = 0;
+	private volatile int maxConnections = Integer.MAX_VALUE;
+	private volatile double mailFailureRate = 0;
+	private volatile double dataFailureRate = 0;
+	private volatile double disconnectRate = 0;
+
+	/**
+	 * Starts a server on an ephemeral port of 127.0.0.1.
+	 */
+	public LoopbackSmtpServer() throws IOException
+	{
+		this("127.0.0.1", 0);
+	}
+
+	/**
+	 * Starts a server on the specified loopback address and port.
+	 * @param address a loopback address, e.g. 127.0.0.2
+	 * @param port a port, or 0 for an ephemeral port
+	 */
+	public LoopbackSmtpServer(String address, int port) throws IOException
+	{
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.setReuseAddress(true);
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+		this.executor.execute(this::accept);
+	}
+
+	public String getAddress()
+	{
+		return this.serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort()
+	{
+		return this.serverSocket.getLocalPort();
+	}
+
+	public void setBannerDelay(long millis)
+	{
+		this.bannerDelay = millis;
+	}
+
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @param rate probability of replying 451 to MAIL FROM
+	 */
+	public void setMailFailureRate(double rate)
+	{
+		this.mailFailureRate = rate;
+	}
+
+	/**
+	 * @param rate probability of replying 554 to the end of DATA
+	 */
+	public void setDataFailureRate(double rate)
+	{
+		this.dataFailureRate = rate;
+	}
+
+	/**
+	 * @param rate probability of dropping the connection in the middle of DATA, before the message is accepted
+	 */
+	public void setDisconnectRate(double rate)
+	{
+		this.disconnectRate = rate;
+	}
+
+	/**
+	 * @return the number of accepted messages
+	 */
+	public long getMessages()
+	{
+		return this.messages.sum();
+	}
+
+	/**
+	 * @return the number of times a message with the specified sequence header was accepted
+	 */
+	public int getCount(String sequence)
+	{
+		AtomicInteger count = this.sequences.get(sequence);
+		return (count != null) ? count.get() : 0;
+	}
+
+	/**
+	 * @return the number of accepted messages sent to the specified recipient
+	 */
+	public int getRecipientCount(String recipient)
+	{
+		AtomicInteger count = this.recipientCounts.get(recipient.toLowerCase());
+		return (count != null) ? count.get() : 0;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.serverSocket.close();
+		this.executor.shutdownNow();
+	}
+
+	private void accept()
+	{
+		while (!this.serverSocket.isClosed())
+		{
+			try
+			{
+				Socket socket = this.serverSocket.accept();
+				this.executor.execute(() -> this.serve(socket));
+			}
+			catch (IOException e)
+			{
+				// Server closed
+			}
+		}
+	}
+
+	private void serve(Socket socket)
+	{
+		boolean counted = false;
+		try (Socket connection = socket)
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.ISO_8859_1));
+			OutputStream output = connection.getOutputStream();
+
+			if (this.bannerDelay > 0)
+			{
+				Thread.sleep(this.bannerDelay);
+			}
+			counted = true;
+			if (this.connections.incrementAndGet() > this.maxConnections)
+			{
+				reply(output, "421 4.3.2 Too many connections");
+				return;
+			}
+			reply(output, "220 loopback ESMTP");
+
+			List<String> recipients = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+				switch (command)
+				{
+					case "EHLO":
+						reply(output, "250-loopback\r\n250 8BITMIME");
+						break;
+					case "HELO":
+						reply(output, "250 loopback");
+						break;
+					case "MAIL":
+						recipients.clear();
+						reply(output, chance(this.mailFailureRate) ? "451 4.3.0 Injected temporary failure" : "250 2.1.0 OK");
+						break;
+					case "RCPT":
+						if (line.contains(REJECT_MARKER))
+						{
+							reply(output, "550 5.1.1 Injected rejection");
+						}
+						else if (line.contains(GREYLIST_MARKER) && (this.greylist.putIfAbsent(line.toLowerCase(), Boolean.TRUE) == null))
+						{
+							reply(output, "450 4.2.0 Greylisted, try again later");
+						}
+						else
+						{
+							recipients.add(recipient(line));
+							reply(output, "250 2.1.5 OK");
+						}
+						break;
+					case "DATA":
+						if (recipients.isEmpty())
+						{
+							reply(output, "503 5.5.1 No recipients");
+							break;
+						}
+						reply(output, "354 Go ahead");
+						if (!this.data(reader, output, recipients))
+						{
+							// Drop the connection mid-DATA
+							return;
+						}
+						recipients.clear();
+						break;
+					case "RSET":
+						recipients.clear();
+						reply(output, "250 2.0.0 OK");
+						break;
+					case "NOOP":
+						reply(output, "250 2.0.0 OK");
+						break;
+					case "QUIT":
+						reply(output, "221 2.0.0 Bye");
+						return;
+					default:
+						reply(output, "500 5.5.2 Unknown command");
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// Client disconnected
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if (counted)
+			{
+				this.connections.decrementAndGet();
+			}
+		}
+	}
+
+	private boolean data(BufferedReader reader, OutputStream output, List<String> recipients) throws IOException
+	{
+		boolean disconnect = chance(this.disconnectRate);
+		String sequence = null;
+		boolean headers = true;
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			if (line.equals("."))
+			{
+				if (chance(this.dataFailureRate))
+				{
+					reply(output, "554 5.6.0 Injected failure");
+				}
+				else
+				{
+					if (sequence != null)
+					{
+						this.sequences.computeIfAbsent(sequence, key -> new AtomicInteger()).incrementAndGet();
+					}
+					this.messages.increment();
+					for (String recipient : recipients)
+					{
+						this.recipientCounts.computeIfAbsent(recipient, key -> new AtomicInteger()).incrementAndGet();
+					}
+					reply(output, "250 2.0.0 Accepted");
+				}
+				return true;
+			}
+			if (headers)
+			{
+				if (line.isEmpty())
+				{
+					headers = false;
+					if (disconnect)
+					{
+						return false;
+					}
+				}
+				else if (line.regionMatches(true, 0, SEQUENCE_HEADER + ":", 0, SEQUENCE_HEADER.length() + 1))
+				{
+					sequence = line.substring(SEQUENCE_HEADER.length() + 1).trim();
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void reply(OutputStream output, String reply) throws IOException
+	{
+		output.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		output.flush();
+	}
+
+	/**
+	 * Extracts the recipient of a RCPT command, e.g. RCPT TO:&lt;user@example.com&gt;
+	 */
+	private static String recipient(String line)
+	{
+		int start = line.indexOf('<');
+		int end = line.indexOf('>', start + 1);
+		return ((start >= 0) && (end > start)) ? line.substring(start + 1, end).toLowerCase() : line.substring(line.indexOf(':') + 1).trim().toLowerCase();
+	}
+
+		private static boolean chance(double rate)
+	{
+		return (rate > 0) && (ThreadLocalRandom.current().nextDouble() < rate);
+	}
+}
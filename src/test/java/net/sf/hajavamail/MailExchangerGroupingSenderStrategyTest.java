@@ -0,0 +1,87 @@
+package net.sf.hajavamail;
+
+import java.util.Collection;
+import java.util.Properties;
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class MailExchangerGroupingSenderStrategyTest {
+
+	private static final Address[] ADDRESSES = new Address[4];
+
+	static {
+		try {
+			ADDRESSES[0] = new InternetAddress("a@vanity1.com");
+			ADDRESSES[1] = new InternetAddress("b@vanity2.com");
+			ADDRESSES[2] = new InternetAddress("c@other.org");
+			ADDRESSES[3] = new InternetAddress("d@unknown.net");
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Test
+	public void testGroupsByMailExchanger() throws Exception {
+		StaticMailExchangerResolver resolver = new StaticMailExchangerResolver()
+			.register("vanity1.com", "mx1.provider.com", "mx2.provider.com")
+			.register("vanity2.com", "mx1.provider.com")
+			.register("other.org", "mail.other.org");
+		// Resolve synchronously
+		MailExchangerGroupingSenderStrategy strategy = new MailExchangerGroupingSenderStrategy(resolver, Runnable::run, 60000, 60000, 100);
+
+		// Resolution happens in the background, so the first message is grouped by domain
+		assertEquals(4, strategy.groupAddresses(ADDRESSES).size());
+		assertEquals(4, resolver.getLookups());
+
+		Collection<Address[]> groups = strategy.groupAddresses(ADDRESSES);
+		assertEquals(3, groups.size());
+		assertArrayEquals(new Address[] { ADDRESSES[0], ADDRESSES[1] }, groups.iterator().next());
+
+		// Cached, including the negative result of the unknown domain
+		strategy.groupAddresses(ADDRESSES);
+		assertEquals(4, resolver.getLookups());
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		StaticMailExchangerResolver resolver = new StaticMailExchangerResolver().register("vanity1.com", "mx.provider.com");
+		MailExchangerCache cache = new MailExchangerCache(resolver, Runnable::run, 50, 0, 1);
+
+		assertNull(cache.getMailExchanger("vanity1.com"));
+		assertEquals("mx.provider.com", cache.getMailExchanger("vanity1.com"));
+		assertEquals(1, resolver.getLookups());
+
+		Thread.sleep(60);
+		// Stale value is served while refreshing
+		assertEquals("mx.provider.com", cache.getMailExchanger("vanity1.com"));
+		assertEquals(2, resolver.getLookups());
+
+		// Negative results expire immediately, and the cache is bounded
+		assertNull(cache.getMailExchanger("unknown.net"));
+		assertNull(cache.getMailExchanger("unknown.net"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testConfiguredResolver() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(MailExchangerGroupingSenderStrategy.RESOLVER, StaticMailExchangerResolver.class.getName());
+		try (MailExchangerGroupingSenderStrategy strategy = new MailExchangerGroupingSenderStrategy(properties)) {
+			assertEquals(4, strategy.groupAddresses(ADDRESSES).size());
+		}
+
+		properties.setProperty(MailExchangerGroupingSenderStrategy.RESOLVER, String.class.getName());
+		try {
+			new MailExchangerGroupingSenderStrategy(properties);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package net.sf.hajavamail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class MessageRendererTest {
+
+	@Test
+	public void testRenderToHeap() throws Exception {
+		this.testRender(1024 * 1024);
+	}
+
+	@Test
+	public void testRenderToMappedFile() throws Exception {
+		this.testRender(16);
+	}
+
+	@Test
+	public void testRenderFailure() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		MimeMessage message = new MimeMessage(session) {
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				// Exceed the threshold, then fail
+				output.write(new byte[64]);
+				throw new IOException();
+			}
+		};
+
+		try {
+			new MessageRenderer(session, 16).render(message);
+			fail();
+		} catch (MessagingException e) {
+			assertTrue(e.getNextException() instanceof IOException);
+		}
+	}
+
+	private void testRender(int threshold) throws Exception {
+		Session session = Session.getInstance(new Properties());
+		MimeMessage message = new MimeMessage(session);
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("test@example.com"));
+		message.setSubject("Test");
+		message.setText("Hello world");
+		message.saveChanges();
+
+		MimeMessage rendered = new MessageRenderer(session, threshold).render(message);
+
+		assertEquals(toString(message), toString(rendered));
+		// Each write streams the same shared buffer
+		assertEquals(toString(rendered), toString(rendered));
+		assertEquals("Test", rendered.getSubject());
+		assertEquals("Hello world", rendered.getContent());
+	}
+
+	private static String toString(MimeMessage message) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		message.writeTo(output, new String[] { "Bcc" });
+		return output.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,161 @@
+package net.sf.hajavamail;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class MessageSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRecoverUndelivered() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		Path directory = this.folder.getRoot().toPath();
+		// Small segments, so that appends roll over to new segments
+		MessageSpool spool = new MessageSpool(session, directory, 512);
+
+		MessageSpool.Entry delivered = spool.append(createMessage(session, "Delivered"), InternetAddress.parse("a@example.com"));
+		MessageSpool.Entry pending = spool.append(createMessage(session, "Pending"), InternetAddress.parse("b@example.com, c@example.org"));
+
+		assertEquals("Pending", pending.getMessage().getSubject());
+
+		delivered.delivered();
+		spool.close();
+
+		spool = new MessageSpool(session, directory, 512);
+		List<MessageSpool.Entry> entries = spool.getRecoveredEntries();
+
+		assertEquals(1, entries.size());
+		MessageSpool.Entry entry = entries.get(0);
+		assertEquals("Pending", entry.getMessage().getSubject());
+		assertEquals("Hello world", entry.getMessage().getContent());
+		Address[] addresses = entry.getAddresses();
+		assertEquals(2, addresses.length);
+		assertEquals(new InternetAddress("c@example.org"), addresses[1]);
+
+		entry.delivered();
+		spool.close();
+
+		spool = new MessageSpool(session, directory, 512);
+		assertTrue(spool.getRecoveredEntries().isEmpty());
+		spool.close();
+	}
+
+	@Test
+	public void testDirectoryIsLocked() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		Path directory = this.folder.getRoot().toPath();
+		MessageSpool spool = new MessageSpool(session, directory, 512);
+
+		try {
+			new MessageSpool(session, directory, 512);
+			fail();
+		} catch (MessagingException e) {
+			// Expected
+		}
+
+		spool.close();
+		new MessageSpool(session, directory, 512).close();
+	}
+
+	@Test
+	public void testRecoverSkipsTornRecord() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		Path directory = this.folder.getRoot().toPath();
+		MessageSpool spool = new MessageSpool(session, directory, 4096);
+
+		spool.append(createMessage(session, "Torn"), InternetAddress.parse("a@example.com"));
+		spool.append(createMessage(session, "Complete"), InternetAddress.parse("b@example.com"));
+		spool.close();
+
+		// Corrupt the body of the first record, as if its writer crashed
+		try (FileChannel channel = FileChannel.open(directory.resolve("spool-0.log"), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 }), 20);
+		}
+
+		spool = new MessageSpool(session, directory, 4096);
+		List<MessageSpool.Entry> entries = spool.getRecoveredEntries();
+
+		assertEquals(1, entries.size());
+		assertEquals("Complete", entries.get(0).getMessage().getSubject());
+		spool.close();
+	}
+
+	@Test
+	public void testRemoveRecipients() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		Path directory = this.folder.getRoot().toPath();
+		MessageSpool spool = new MessageSpool(session, directory, 512);
+
+		MessageSpool.Entry entry = spool.append(createMessage(session, "Partial"), InternetAddress.parse("a@example.com, b@example.com, c@example.com"));
+		entry.remove(InternetAddress.parse("a@example.com"));
+		entry.remove(InternetAddress.parse("c@example.com"));
+		spool.close();
+
+		spool = new MessageSpool(session, directory, 512);
+		List<MessageSpool.Entry> entries = spool.getRecoveredEntries();
+
+		assertEquals(1, entries.size());
+		assertEquals("Partial", entries.get(0).getMessage().getSubject());
+		assertEquals("Hello world", entries.get(0).getMessage().getContent());
+		assertArrayEquals(InternetAddress.parse("b@example.com"), entries.get(0).getAddresses());
+
+		// Removing the last recipient delivers the entry
+		entries.get(0).remove(InternetAddress.parse("b@example.com"));
+		spool.close();
+
+		spool = new MessageSpool(session, directory, 512);
+		assertTrue(spool.getRecoveredEntries().isEmpty());
+		spool.close();
+	}
+
+	@Test
+	public void testDeliveredAfterCloseIsIgnored() throws Exception {
+		Session session = Session.getInstance(new Properties());
+		Path directory = this.folder.getRoot().toPath();
+		MessageSpool spool = new MessageSpool(session, directory, 512);
+
+		MessageSpool.Entry entry = spool.append(createMessage(session, "Late"), InternetAddress.parse("a@example.com, b@example.com"));
+		spool.close();
+
+		// Completions of sends that outlived the spool must not alter the journal of the next spool
+		spool = new MessageSpool(session, directory, 512);
+		entry.remove(InternetAddress.parse("a@example.com"));
+		entry.delivered();
+		spool.close();
+
+		spool = new MessageSpool(session, directory, 512);
+		List<MessageSpool.Entry> entries = spool.getRecoveredEntries();
+
+		assertEquals(1, entries.size());
+		assertEquals(2, entries.get(0).getAddresses().length);
+		spool.close();
+	}
+
+	private static MimeMessage createMessage(Session session, String subject) throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("test@example.com"));
+		message.setSubject(subject);
+		message.setText("Hello world");
+		return message;
+	}
+}
@@ -0,0 +1,83 @@
+package net.sf.hajavamail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class MessageValidatorTest {
+
+	private final Session session = Session.getInstance(new Properties());
+
+	@Test
+	public void testHeaderValidatorDoesNotReadContent() throws Exception {
+		StringBuilder text = new StringBuilder("To: test@example.com\r\nContent-Type: multipart/mixed; boundary=xyz\r\n\r\n--xyz\r\nContent-Transfer-Encoding: base64\r\n\r\n");
+		for (int i = 0; i < 10000; ++i) {
+			text.append("QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVo=\r\n");
+		}
+		text.append("--xyz--\r\n");
+		MimeMessage message = new MimeMessage(this.session, new SharedByteArrayInputStream(text.toString().getBytes("US-ASCII"))) {
+			@Override
+			public Object getContent() {
+				throw new AssertionError("Content was read");
+			}
+		};
+
+		new HeaderMessageValidator().validate(message, message.getAllRecipients());
+
+		assertEquals("", message.getSubject());
+		assertEquals("multipart/mixed; boundary=xyz", message.getContentType());
+	}
+
+	@Test
+	public void testHeaderValidatorSuppliesEmptyBody() throws Exception {
+		MimeMessage message = new MimeMessage(this.session);
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("test@example.com"));
+		message.setSubject("Test");
+
+		new HeaderMessageValidator().validate(message, message.getAllRecipients());
+
+		assertEquals("", message.getContent());
+
+		MimeMessage parsed = parse("To: test@example.com\r\nSubject: Test\r\n\r\nHello world\r\n");
+
+		new HeaderMessageValidator().validate(parsed, parsed.getAllRecipients());
+
+		assertEquals("Hello world\r\n", parsed.getContent());
+	}
+
+	@Test(expected = MessagingException.class)
+	public void testHeaderValidatorRejectsMessageWithoutRecipients() throws Exception {
+		MimeMessage message = new MimeMessage(this.session);
+		message.setText("");
+
+		new HeaderMessageValidator().validate(message, new InternetAddress[] { new InternetAddress("test@example.com") });
+	}
+
+	@Test
+	public void testContentValidatorRejectsMalformedMultipart() throws Exception {
+		MimeMessage message = parse("To: test@example.com\r\nContent-Type: multipart/mixed; boundary=xyz\r\n\r\nNo parts\r\n");
+
+		new HeaderMessageValidator().validate(message, message.getAllRecipients());
+		try {
+			new ContentMessageValidator().validate(message, message.getAllRecipients());
+			fail();
+		} catch (MessagingException e) {
+			// Expected
+		}
+	}
+
+	private MimeMessage parse(String text) throws Exception {
+		return new MimeMessage(this.session, new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+}
@@ -0,0 +1,72 @@
+package net.sf.hajavamail;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void testBurstThenDelay() {
+		// One send per second, bursts of 3
+		RateLimiter limiter = new RateLimiter(1, Collections.emptyMap(), 3);
+		assertEquals(0, limiter.tryAcquire("example.com"));
+		assertEquals(0, limiter.tryAcquire("example.com"));
+		assertEquals(0, limiter.tryAcquire("example.com"));
+
+		long delay = limiter.tryAcquire("example.com");
+		assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(900));
+		assertTrue(delay <= TimeUnit.SECONDS.toNanos(1));
+		// Failed attempts do not consume tokens
+		assertTrue(limiter.tryAcquire("example.com") <= delay);
+
+		// Other keys have their own bucket
+		assertEquals(0, limiter.tryAcquire("example.org"));
+	}
+
+	@Test
+	public void testReservationsQueueUp() {
+		RateLimiter limiter = new RateLimiter(10, Collections.emptyMap(), 1);
+		assertEquals(0, limiter.reserve("example.com"));
+		long first = limiter.reserve("example.com");
+		long second = limiter.reserve("example.com");
+		assertTrue(first > TimeUnit.MILLISECONDS.toNanos(90));
+		// Each reservation takes the next token
+		assertTrue(second - first > TimeUnit.MILLISECONDS.toNanos(90));
+	}
+
+	@Test
+	public void testStripesAreBounded() {
+		// Buckets never refill within this test
+		RateLimiter limiter = new RateLimiter(0.001, Collections.emptyMap(), 1);
+		assertEquals(0, limiter.tryAcquire("hot.example.com"));
+		for (int i = 0; i < 20000; ++i) {
+			assertEquals(0, limiter.tryAcquire("domain" + i + ".example.com"));
+			// Recently used buckets are evicted last
+			assertTrue(limiter.tryAcquire("hot.example.com") > 0);
+		}
+		assertTrue(limiter.size() <= 16 * 1024);
+	}
+
+	@Test
+	public void testSpecificRates() {
+		Properties properties = new Properties();
+		assertNull(RateLimiter.create(properties, TransportProxy.DOMAIN_RATE, TransportProxy.DOMAIN_BURST));
+
+		properties.setProperty(TransportProxy.DOMAIN_RATE + ".Example.COM", "1");
+		RateLimiter limiter = RateLimiter.create(properties, TransportProxy.DOMAIN_RATE, TransportProxy.DOMAIN_BURST);
+		assertNotNull(limiter);
+		assertEquals(0, limiter.tryAcquire("example.com"));
+		assertTrue(limiter.tryAcquire("example.com") > 0);
+		// Without a default rate, other domains are not throttled
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(0, limiter.tryAcquire("example.org"));
+		}
+	}
+}
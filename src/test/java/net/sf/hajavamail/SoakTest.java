@@ -0,0 +1,138 @@
+package net.sf.hajavamail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.mail.Message;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Drives a large number of messages through a pool spanning several misbehaving loopback relays,
+ * then reports throughput and tail latency, and checks that no message was lost or duplicated.
+ * The number of messages is configurable via the soak.messages system property.
+ *
+ * @author mathieu
+ */
+public class SoakTest {
+
+	private final List<LoopbackSmtpServer> servers = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		LoopbackSmtpServer first = new LoopbackSmtpServer("127.0.0.1", 0);
+		this.servers.add(first);
+		try {
+			// Relays share a port, since the proxy uses one port for all hosts
+			this.servers.add(new LoopbackSmtpServer("127.0.0.2", first.getPort()));
+			this.servers.add(new LoopbackSmtpServer("127.0.0.3", first.getPort()));
+		} catch (IOException e) {
+			Assume.assumeNoException("Platform does not route 127.0.0.0/8 to loopback", e);
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (LoopbackSmtpServer server : this.servers) {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSoak() throws Exception {
+		int count = Integer.getInteger("soak.messages", 5000);
+
+		// 127.0.0.1 is well behaved
+		this.servers.get(1).setMailFailureRate(0.02);
+		this.servers.get(1).setDisconnectRate(0.01);
+		this.servers.get(2).setBannerDelay(50);
+		this.servers.get(2).setDataFailureRate(0.01);
+		this.servers.get(2).setMaxConnections(2);
+
+		Properties properties = new Properties();
+		properties.setProperty("mail.transport.protocol", "smtp");
+		properties.setProperty("mail.host", "127.0.0.1,127.0.0.2,127.0.0.3");
+		properties.setProperty("mail.smtp.port", Integer.toString(this.servers.get(0).getPort()));
+		properties.setProperty(TransportProxy.POOL_SIZE, "4");
+		properties.setProperty(TransportProxy.QUEUE_CAPACITY, "1000");
+		properties.setProperty(TransportProxy.CONNECT_TIMEOUT, "10");
+		properties.setProperty(TransportProxy.CONNECT_RETRY_INITIAL_PERIOD, "100");
+		properties.setProperty(TransportProxy.RETRY_INITIAL_DELAY, "50");
+
+		Session session = Session.getInstance(properties);
+		session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", TransportProxy.class.getName(), "HA-JavaMail", null));
+		TransportProxy transport = (TransportProxy) session.getTransport();
+		transport.connect();
+
+		List<CompletableFuture<DeliveryReport>> futures = new ArrayList<>(count);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress("soak@example.com"));
+			// A few recipients are rejected by every relay
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress(((i % 500) == 0) ? "reject" + i + "@example.com" : "user" + i + "@example.com"));
+			message.setHeader(LoopbackSmtpServer.SEQUENCE_HEADER, Integer.toString(i));
+			message.setSubject("Soak #" + i);
+			message.setText("Soak test message " + i);
+			futures.add(transport.sendMessageAsync(message, message.getAllRecipients()));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+		long elapsed = System.nanoTime() - start;
+
+		MetricsSnapshot metrics = transport.getMetrics();
+		transport.close();
+
+		int sent = 0;
+		int unsent = 0;
+		int failed = 0;
+		int lost = 0;
+		int duplicated = 0;
+		long[] latencies = new long[count];
+		for (int i = 0; i < count; ++i) {
+			int received = 0;
+			for (LoopbackSmtpServer server : this.servers) {
+				received += server.getCount(Integer.toString(i));
+			}
+			if (received > 1) {
+				duplicated += 1;
+			}
+			try {
+				DeliveryReport report = futures.get(i).join();
+				latencies[i] = report.getLatency();
+				if (report.isComplete()) {
+					sent += 1;
+					if (received == 0) {
+						lost += 1;
+					}
+				} else {
+					unsent += 1;
+				}
+			} catch (CompletionException e) {
+				failed += 1;
+			}
+		}
+		Arrays.sort(latencies);
+
+		System.out.println("Soak: " + count + " messages in " + (elapsed / 1000000) + " ms (" + (count * 1000000000L / Math.max(elapsed, 1)) + " msg/s), sent=" + sent + ", unsent=" + unsent + ", failed=" + failed + ", lost=" + lost + ", duplicated=" + duplicated);
+		System.out.println("Soak latency: p50=" + latencies[count / 2] + " ms, p99=" + latencies[count * 99 / 100] + " ms, max=" + latencies[count - 1] + " ms");
+		System.out.println("Soak " + metrics);
+
+		assertEquals(0, lost);
+		assertEquals(0, duplicated);
+		assertEquals(0, failed);
+		assertEquals(count, sent + unsent);
+		// Rejected recipients are always reported
+		assertTrue(unsent >= count / 500);
+	}
+}
@@ -0,0 +1,37 @@
+package net.sf.hajavamail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+
+/**
+ * In-memory mail exchanger resolver, for tests.
+ * Domains not explicitly registered fail to resolve.
+ *
+ * @author mathieu
+ */
+public class StaticMailExchangerResolver implements MailExchangerResolver {
+
+	private final Map<String, String[]> hostMap = new ConcurrentHashMap<>();
+	private final AtomicInteger lookups = new AtomicInteger();
+
+	public StaticMailExchangerResolver register(String domain, String... hosts) {
+		this.hostMap.put(domain, hosts);
+		return this;
+	}
+
+	public int getLookups() {
+		return this.lookups.get();
+	}
+
+	@Override
+	public String[] resolve(String domain) throws MessagingException {
+		this.lookups.incrementAndGet();
+		String[] hosts = this.hostMap.get(domain);
+		if (hosts == null) {
+			throw new MessagingException("Unknown domain: " + domain);
+		}
+		return hosts;
+	}
+}
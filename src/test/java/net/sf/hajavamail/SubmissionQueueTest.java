@@ -0,0 +1,91 @@
+package net.sf.hajavamail;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.mail.MessagingException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class SubmissionQueueTest {
+
+	private final List<String> dropped = new ArrayList<>();
+
+	private SubmissionQueue<String> createQueue(BackpressurePolicy policy) {
+		return new SubmissionQueue<>(2, policy, 10, task -> task.startsWith("bulk"), this.dropped::add);
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		SubmissionQueue<String> queue = this.createQueue(BackpressurePolicy.BLOCK);
+		assertTrue(queue.offer("a"));
+		assertTrue(queue.offer("b"));
+		assertEquals(2, queue.size());
+		try {
+			queue.offer("c");
+			fail("Expected timeout");
+		} catch (MessagingException e) {
+			// Expected
+		}
+		assertEquals("a", queue.poll());
+		assertTrue(queue.offer("c"));
+	}
+
+	@Test(expected = MessagingException.class)
+	public void testFail() throws Exception {
+		SubmissionQueue<String> queue = this.createQueue(BackpressurePolicy.FAIL);
+		queue.offer("a");
+		queue.offer("b");
+		queue.offer("c");
+	}
+
+	@Test
+	public void testCallerRuns() throws Exception {
+		SubmissionQueue<String> queue = this.createQueue(BackpressurePolicy.CALLER_RUNS);
+		assertTrue(queue.offer("a"));
+		assertTrue(queue.offer("b"));
+		assertFalse(queue.offer("c"));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	public void testDropOldestBulk() throws Exception {
+		SubmissionQueue<String> queue = this.createQueue(BackpressurePolicy.DROP_OLDEST_BULK);
+		assertTrue(queue.offer("bulk-1"));
+		assertTrue(queue.offer("a"));
+		assertTrue(queue.offer("b"));
+		assertEquals(1, this.dropped.size());
+		assertEquals("bulk-1", this.dropped.get(0));
+		try {
+			queue.offer("bulk-2");
+			fail("Expected bulk message to be rejected");
+		} catch (MessagingException e) {
+			// Expected
+		}
+		assertEquals("a", queue.poll());
+		assertEquals("b", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testBulkTasksKeepTheirPlace() throws Exception {
+		SubmissionQueue<String> queue = new SubmissionQueue<>(4, BackpressurePolicy.DROP_OLDEST_BULK, 10, task -> task.startsWith("bulk"), this.dropped::add);
+		assertTrue(queue.offer("a"));
+		assertTrue(queue.offer("bulk-1"));
+		assertTrue(queue.offer("b"));
+		assertTrue(queue.offer("bulk-2"));
+		assertTrue(queue.offer("c"));
+		assertEquals(4, queue.size());
+		assertEquals(1, this.dropped.size());
+		assertEquals("bulk-1", this.dropped.get(0));
+		// Queued tasks leave in order, whether bulk or not
+		assertEquals("a", queue.poll());
+		assertEquals("b", queue.poll());
+		assertEquals("bulk-2", queue.poll());
+		assertEquals("c", queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+}
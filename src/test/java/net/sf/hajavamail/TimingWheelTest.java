@@ -0,0 +1,111 @@
+package net.sf.hajavamail;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mathieu
+ */
+public class TimingWheelTest {
+
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+
+	@After
+	public void tearDown() {
+		this.scheduler.shutdownNow();
+	}
+
+	@Test
+	public void testTasksExpireInOrderAndNeverEarly() throws Exception {
+		Queue<Long> expired = new ConcurrentLinkedQueue<>();
+		long start = System.nanoTime();
+		// Small wheel, so that later tasks need several revolutions
+		TimingWheel<Long> wheel = new TimingWheel<>(this.scheduler, 5, TimeUnit.MILLISECONDS, 4, delay -> {
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+			expired.add(delay);
+		});
+		for (long delay: new long[] { 120, 0, 60, 30, 90 }) {
+			assertTrue(wheel.schedule(delay, delay, TimeUnit.MILLISECONDS));
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((expired.size() < 5) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertArrayEquals(new Long[] { 0L, 30L, 60L, 90L, 120L }, expired.toArray(new Long[0]));
+		assertTrue(wheel.stop().isEmpty());
+	}
+
+	@Test
+	public void testStopReturnsPendingTasks() {
+		TimingWheel<String> wheel = new TimingWheel<>(this.scheduler, 10, TimeUnit.MILLISECONDS, 8, task -> fail(task));
+		assertTrue(wheel.schedule("first", 1, TimeUnit.HOURS));
+		assertTrue(wheel.schedule("second", 1, TimeUnit.DAYS));
+		List<String> pending = wheel.stop();
+		assertEquals(2, pending.size());
+		assertTrue(pending.contains("first"));
+		assertTrue(pending.contains("second"));
+		assertFalse(wheel.schedule("third", 1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testIdleWheelDoesNotTick() throws Exception {
+		this.scheduler.setRemoveOnCancelPolicy(true);
+		Queue<String> expired = new ConcurrentLinkedQueue<>();
+		TimingWheel<String> wheel = new TimingWheel<>(this.scheduler, 5, TimeUnit.MILLISECONDS, 8, expired::add);
+		assertTrue(this.scheduler.getQueue().isEmpty());
+
+		for (String task : new String[] { "first", "second" }) {
+			assertTrue(wheel.schedule(task, 20, TimeUnit.MILLISECONDS));
+			assertFalse(this.scheduler.getQueue().isEmpty());
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((!expired.contains(task) || !this.scheduler.getQueue().isEmpty()) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			// Stops ticking once empty, and starts again on the next schedule
+			assertTrue(expired.contains(task));
+			assertTrue(this.scheduler.getQueue().isEmpty());
+		}
+		assertTrue(wheel.stop().isEmpty());
+	}
+
+	@Test
+	public void testTickBeforeTickingStarted() throws Exception {
+		// Emulates a scheduling thread preempted before it records the future of the first tick
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1) {
+			@Override
+			public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+				ScheduledFuture<?> future = super.schedule(command, delay, unit);
+				try {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(unit.toNanos(delay)) + 50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return future;
+			}
+		};
+		try {
+			Queue<String> expired = new ConcurrentLinkedQueue<>();
+			TimingWheel<String> wheel = new TimingWheel<>(scheduler, 5, TimeUnit.MILLISECONDS, 8, expired::add);
+			for (String task : new String[] { "first", "second" }) {
+				assertTrue(wheel.schedule(task, 0, TimeUnit.MILLISECONDS));
+				long deadline = System.currentTimeMillis() + 5000;
+				while (!expired.contains(task) && (System.currentTimeMillis() < deadline)) {
+					Thread.sleep(10);
+				}
+				// The wheel emptied on its first tick, and must tick again for the next task
+				assertTrue(expired.contains(task));
+			}
+			assertTrue(wheel.stop().isEmpty());
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -9,7 +9,9 @@ import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.event.TransportListener;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 /**
@@ -18,6 +20,9 @@ import static org.junit.Assert.*;
  */
 public class TransportProxyTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	public TransportProxyTest() {
 	}
 
@@ -27,34 +32,204 @@ public class TransportProxyTest {
 
 	@Test
 	public void testSendManyMessages() throws Exception {
-		java.util.Properties properties = new java.util.Properties();
-		properties.setProperty("mail.transport.protocol", "smtp");
-		properties.setProperty("mail.host", "localhost");
-		properties.setProperty("mail.transport.pool-size", "10");
+		try (LoopbackSmtpServer server = new LoopbackSmtpServer()) {
+			java.util.Properties properties = new java.util.Properties();
+			properties.setProperty("mail.transport.protocol", "smtp");
+			properties.setProperty("mail.host", server.getAddress());
+			properties.setProperty("mail.smtp.port", Integer.toString(server.getPort()));
+			properties.setProperty("mail.transport.pool-size", "10");
+
+			javax.mail.Session session = javax.mail.Session.getInstance(properties);
+			session.setProvider(new javax.mail.Provider(javax.mail.Provider.Type.TRANSPORT, "smtp", TransportProxy.class.getName(), "HA-JavaMail", null));
+			javax.mail.Transport transport = session.getTransport();
+			assertTrue(transport instanceof TransportProxy);
+
+			long startTime = System.currentTimeMillis();
+
+			transport.connect();
+
+			javax.mail.Address address = new javax.mail.internet.InternetAddress("test@adelya.com");
+
+			for (int i = 1; i <= 25 ; ++i) {
+				javax.mail.Message message = new javax.mail.internet.MimeMessage(session);
+				message.setRecipient(javax.mail.Message.RecipientType.TO, address);
+				message.setSubject("Test #" + i);
+				message.setText("");
 
-		javax.mail.Session session = javax.mail.Session.getInstance(properties);
-		javax.mail.Transport transport = session.getTransport();
+				transport.sendMessage(message, message.getAllRecipients());
+			}
 
-		long startTime = System.currentTimeMillis();
+			transport.close();
 
-		transport.connect();
+			long endTime = System.currentTimeMillis();
+			System.out.println("Total execution time = " + (endTime - startTime) + " ms");
+
+			assertEquals(25, server.getMessages());
+		}
+	}
+
+	@Test
+	public void testRetryUnsentRecipients() throws Exception {
+		try (LoopbackSmtpServer server = new LoopbackSmtpServer()) {
+			java.util.Properties properties = new java.util.Properties();
+			properties.setProperty("mail.transport.protocol", "smtp");
+			properties.setProperty("mail.host", server.getAddress());
+			properties.setProperty("mail.smtp.port", Integer.toString(server.getPort()));
+			properties.setProperty(TransportProxy.RETRY_INITIAL_DELAY, "50");
+
+			javax.mail.Session session = javax.mail.Session.getInstance(properties);
+			session.setProvider(new javax.mail.Provider(javax.mail.Provider.Type.TRANSPORT, "smtp", TransportProxy.class.getName(), "HA-JavaMail", null));
+			TransportProxy transport = (TransportProxy) session.getTransport();
+			transport.connect();
+
+			Address sent = new javax.mail.internet.InternetAddress("user@example.com");
+			Address greylisted = new javax.mail.internet.InternetAddress("greylist@example.com");
+			Address rejected = new javax.mail.internet.InternetAddress("reject@example.com");
+			javax.mail.Message message = new javax.mail.internet.MimeMessage(session);
+			message.setFrom(new javax.mail.internet.InternetAddress("sender@example.com"));
+			message.setRecipients(javax.mail.Message.RecipientType.TO, new Address[] { sent, greylisted, rejected });
+			message.setSubject("Test");
+			message.setText("");
+
+			DeliveryReport report = transport.sendMessageAsync(message, message.getAllRecipients()).get(10, java.util.concurrent.TimeUnit.SECONDS);
+			transport.close();
+
+			// Deferred recipient is retried, rejected recipient is not
+			assertEquals(2, report.getAttempts());
+			assertEquals(new java.util.HashSet<>(java.util.Arrays.asList(sent, greylisted)), new java.util.HashSet<>(java.util.Arrays.asList(report.getValidSentAddresses())));
+			assertArrayEquals(new Address[] { rejected }, report.getInvalidAddresses());
+			assertEquals(0, report.getValidUnsentAddresses().length);
+			assertEquals(1, server.getMessages());
+			assertEquals(1, transport.getMetrics().getRetries());
+		}
+	}
+
+	@Test
+	public void testSpoolOmitsSentRecipientsOfCancelledRetry() throws Exception {
+		try (LoopbackSmtpServer server = new LoopbackSmtpServer()) {
+			java.util.Properties properties = new java.util.Properties();
+			properties.setProperty("mail.transport.protocol", "smtp");
+			properties.setProperty("mail.host", server.getAddress());
+			properties.setProperty("mail.smtp.port", Integer.toString(server.getPort()));
+			// Sends to the accepted recipient, despite the deferred one
+			properties.setProperty("mail.smtp.sendpartial", "true");
+			properties.setProperty(TransportProxy.SPOOL_DIRECTORY, this.folder.getRoot().getPath());
+			// The retry is still pending when the transport closes
+			properties.setProperty(TransportProxy.RETRY_INITIAL_DELAY, "60000");
 
-		javax.mail.Address address = new javax.mail.internet.InternetAddress("test@adelya.com");
+			javax.mail.Session session = javax.mail.Session.getInstance(properties);
+			session.setProvider(new javax.mail.Provider(javax.mail.Provider.Type.TRANSPORT, "smtp", TransportProxy.class.getName(), "HA-JavaMail", null));
+			TransportProxy transport = (TransportProxy) session.getTransport();
+			transport.connect();
 
-		for (int i = 1; i <= 25 ; ++i) {
+			Address sent = new javax.mail.internet.InternetAddress("user@example.com");
+			Address greylisted = new javax.mail.internet.InternetAddress("greylist@example.com");
 			javax.mail.Message message = new javax.mail.internet.MimeMessage(session);
-			message.setRecipient(javax.mail.Message.RecipientType.TO, address);
-			message.setSubject("Test #" + i);
+			message.setFrom(new javax.mail.internet.InternetAddress("sender@example.com"));
+			message.setRecipients(javax.mail.Message.RecipientType.TO, new Address[] { sent, greylisted });
+			message.setSubject("Test");
 			message.setText("");
 
-			transport.sendMessage(message, message.getAllRecipients());
+			java.util.concurrent.CompletableFuture<DeliveryReport> future = transport.sendMessageAsync(message, message.getAllRecipients());
+			long deadline = System.currentTimeMillis() + 10000;
+			while ((transport.getMetrics().getRetries() == 0) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, transport.getMetrics().getRetries());
+			assertEquals(1, transport.close(java.time.Duration.ofMillis(200)).size());
+			assertTrue(future.isCancelled());
+
+			// The next run only resends to the recipient of the cancelled retry
+			transport = (TransportProxy) session.getTransport();
+			transport.connect();
+			deadline = System.currentTimeMillis() + 10000;
+			while ((server.getRecipientCount("greylist@example.com") == 0) && (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(10);
+			}
+			transport.close();
+
+			assertEquals(1, server.getRecipientCount("greylist@example.com"));
+			assertEquals(1, server.getRecipientCount("user@example.com"));
+			assertEquals(2, server.getMessages());
 		}
+	}
+
+	@Test
+	public void testRetryDependsOnRecipientReplies() throws Exception {
+		try (LoopbackSmtpServer server = new LoopbackSmtpServer()) {
+			java.util.Properties properties = new java.util.Properties();
+			properties.setProperty("mail.transport.protocol", "smtp");
+			properties.setProperty("mail.host", server.getAddress());
+			properties.setProperty("mail.smtp.port", Integer.toString(server.getPort()));
+			properties.setProperty(TransportProxy.RETRY_INITIAL_DELAY, "50");
+
+			javax.mail.Session session = javax.mail.Session.getInstance(properties);
+			session.setProvider(new javax.mail.Provider(javax.mail.Provider.Type.TRANSPORT, "smtp", TransportProxy.class.getName(), "HA-JavaMail", null));
+			TransportProxy transport = (TransportProxy) session.getTransport();
+			transport.connect();
 
-		transport.close();
+			// The outcome must not depend on whether the deferred or the rejected recipient comes last
+			for (int i = 0; i < 2; ++i) {
+				Address greylisted = new javax.mail.internet.InternetAddress("greylist" + i + "@example.com");
+				Address rejected = new javax.mail.internet.InternetAddress("reject" + i + "@example.com");
+				Address[] addresses = (i == 0) ? new Address[] { greylisted, rejected } : new Address[] { rejected, greylisted };
+				javax.mail.Message message = new javax.mail.internet.MimeMessage(session);
+				message.setFrom(new javax.mail.internet.InternetAddress("sender@example.com"));
+				message.setRecipients(javax.mail.Message.RecipientType.TO, addresses);
+				message.setSubject("Test");
+				message.setText("");
 
-		long endTime = System.currentTimeMillis();
-		System.out.println("Total execution time = " + (startTime - endTime) + " ms");
+				DeliveryReport report = transport.sendMessageAsync(message, addresses).get(10, java.util.concurrent.TimeUnit.SECONDS);
+
+				assertEquals(2, report.getAttempts());
+				assertArrayEquals(new Address[] { greylisted }, report.getValidSentAddresses());
+				assertArrayEquals(new Address[] { rejected }, report.getInvalidAddresses());
+				assertEquals(0, report.getValidUnsentAddresses().length);
+			}
+			transport.close();
+
+			assertEquals(2, server.getMessages());
+		}
 	}
+
+	@Test
+	public void testRecipientRepliesInEitherOrder() throws Exception {
+		javax.mail.internet.InternetAddress deferred = new javax.mail.internet.InternetAddress("deferred@example.com");
+		javax.mail.internet.InternetAddress rejected = new javax.mail.internet.InternetAddress("rejected@example.com");
+
+		for (boolean rejectedLast : new boolean[] { true, false }) {
+			com.sun.mail.smtp.SMTPAddressFailedException deferral = new com.sun.mail.smtp.SMTPAddressFailedException(deferred, "RCPT TO:<deferred@example.com>", 451, "451 4.3.0 Try again later");
+			com.sun.mail.smtp.SMTPAddressFailedException rejection = new com.sun.mail.smtp.SMTPAddressFailedException(rejected, "RCPT TO:<rejected@example.com>", 550, "550 5.1.1 No such user");
+			com.sun.mail.smtp.SMTPAddressFailedException first = rejectedLast ? deferral : rejection;
+			com.sun.mail.smtp.SMTPAddressFailedException last = rejectedLast ? rejection : deferral;
+			first.setNextException(last);
+			// The reply of the failure as a whole is that of the last recipient
+			javax.mail.SendFailedException failure = new com.sun.mail.smtp.SMTPSendFailedException(last.getCommand(), last.getReturnCode(), last.getMessage(), first, null, new Address[] { deferred }, new Address[] { rejected });
+
+			assertTrue(TransportProxy.isTransient(failure));
+			java.util.Map<Address, Integer> replies = TransportProxy.getRecipientReplies(failure);
+			assertEquals(Integer.valueOf(451), replies.get(deferred));
+			assertEquals(Integer.valueOf(550), replies.get(rejected));
+		}
+
+		// Failures of the message as a whole are classified by their own reply
+		assertFalse(TransportProxy.isTransient(new com.sun.mail.smtp.SMTPSendFailedException("DATA", 554, "554 5.6.0 Message rejected", null, null, new Address[] { deferred }, null)));
+		assertTrue(TransportProxy.isTransient(new com.sun.mail.smtp.SMTPSendFailedException("MAIL FROM:<sender@example.com>", 452, "452 4.3.1 Insufficient storage", null, null, new Address[] { deferred }, null)));
+	}
+
+	@Test
+	public void testPermanentFailures() throws Exception {
+		// Only 5xx replies fail a send whose connection survived
+		assertTrue(TransportProxy.isPermanent(new javax.mail.MessagingException("554 5.6.0 Message rejected")));
+		assertFalse(TransportProxy.isPermanent(new javax.mail.MessagingException("451 4.3.0 Try again later")));
+		assertFalse(TransportProxy.isPermanent(new javax.mail.MessagingException("Exception reading response", new java.net.SocketTimeoutException("Read timed out"))));
+
+		javax.mail.MessagingException chained = new javax.mail.MessagingException("Failed to send message");
+		chained.setNextException(new com.sun.mail.smtp.SMTPSenderFailedException(new javax.mail.internet.InternetAddress("sender@example.com"), "MAIL FROM:<sender@example.com>", 550, "550 5.7.1 Sender rejected"));
+		assertTrue(TransportProxy.isPermanent(chained));
+		assertFalse(TransportProxy.isPermanent(new com.sun.mail.smtp.SMTPSendFailedException(".", 451, "451 4.3.0 Try again later", null, null, null, null)));
+	}
+
 /*
 	@Test
 	public void testSendMessage() throws Exception {